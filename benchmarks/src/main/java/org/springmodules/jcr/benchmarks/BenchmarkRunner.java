@@ -0,0 +1,28 @@
+package org.springmodules.jcr.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the benchmarks of this module and writes the results as JSON so
+ * that runs of different releases can be compared. The result file can be
+ * passed as first argument (target/jmh-result.json by default); an optional
+ * second argument restricts the benchmarks to the ones matching the given
+ * regular expression.
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String result = (args.length > 0 ? args[0] : "target/jmh-result.json");
+		String include = (args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark.*");
+
+		Options options = new OptionsBuilder().include(include).resultFormat(ResultFormatType.JSON).result(result)
+				.build();
+
+		new Runner(options).run();
+	}
+}
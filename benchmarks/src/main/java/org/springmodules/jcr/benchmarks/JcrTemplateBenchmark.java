@@ -0,0 +1,144 @@
+package org.springmodules.jcr.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.JcrCallback;
+import org.springmodules.jcr.JcrTemplate;
+import org.springmodules.jcr.support.SimpleJcrMetrics;
+
+/**
+ * Benchmarks for the {@link JcrTemplate} methods. A session is bound to the
+ * benchmark thread (as {@link org.springmodules.jcr.support.OpenSessionInViewFilter}
+ * would do) so the numbers reflect the template overhead and the repository
+ * work, not the login; session acquisition is covered by
+ * {@link SessionFactoryUtilsBenchmark}. Binding the session also keeps the
+ * returned query results usable after the template call.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JcrTemplateBenchmark {
+
+	private static final String XPATH = "/jcr:root/" + RepositoryState.ROOT + "/*[@index < 10]";
+
+	private static final JcrCallback ROOT_NODE_CALLBACK = new JcrCallback() {
+		public Object doInJcr(Session session) throws IOException, RepositoryException {
+			return session.getRootNode();
+		}
+	};
+
+	@State(Scope.Thread)
+	public static class BoundSession {
+
+		private RepositoryState repository;
+
+		private Session session;
+
+		public JcrTemplate template;
+
+		public JcrTemplate meteredTemplate;
+
+		public Node root;
+
+		public List statements;
+
+		@Setup(Level.Trial)
+		public void bind(RepositoryState repository) throws RepositoryException {
+			this.repository = repository;
+			template = repository.template;
+			meteredTemplate = new JcrTemplate(repository.sessionFactory);
+			meteredTemplate.setMetrics(new SimpleJcrMetrics());
+			session = repository.sessionFactory.getSession();
+			TransactionSynchronizationManager.bindResource(repository.sessionFactory,
+					repository.sessionFactory.getSessionHolder(session));
+			root = session.getRootNode().getNode(RepositoryState.ROOT);
+
+			statements = new ArrayList();
+			statements.add(XPATH);
+			statements.add("/jcr:root/" + RepositoryState.ROOT + "/*[@title = 'Node number 42']");
+			statements.add("/jcr:root/" + RepositoryState.ROOT + "/*/child0");
+		}
+
+		@TearDown(Level.Trial)
+		public void unbind() {
+			TransactionSynchronizationManager.unbindResource(repository.sessionFactory);
+			// the repository might have been shut down already
+			if (session.isLive())
+				session.logout();
+		}
+	}
+
+	@Benchmark
+	public Object executeNativeSession(BoundSession state) {
+		return state.template.execute(ROOT_NODE_CALLBACK, true);
+	}
+
+	@Benchmark
+	public Object executeProxiedSession(BoundSession state) {
+		return state.template.execute(ROOT_NODE_CALLBACK, false);
+	}
+
+	@Benchmark
+	public Object executeWithMetrics(BoundSession state) {
+		return state.meteredTemplate.execute(ROOT_NODE_CALLBACK, true);
+	}
+
+	@Benchmark
+	public void queryString(BoundSession state, Blackhole blackhole) throws RepositoryException {
+		consume(state.template.query(XPATH), blackhole);
+	}
+
+	@Benchmark
+	public void queryList(BoundSession state, Blackhole blackhole) throws RepositoryException {
+		Map results = state.template.query(state.statements);
+		for (Iterator iter = results.values().iterator(); iter.hasNext();) {
+			consume((QueryResult) iter.next(), blackhole);
+		}
+	}
+
+	@Benchmark
+	public String dump(BoundSession state) {
+		return state.template.dump(state.root);
+	}
+
+	@Benchmark
+	public StringBuilder dumpAppendable(BoundSession state) {
+		StringBuilder out = new StringBuilder();
+		state.template.dump(state.root, out);
+		return out;
+	}
+
+	private static void consume(QueryResult result, Blackhole blackhole) throws RepositoryException {
+		for (NodeIterator iter = result.getNodes(); iter.hasNext();) {
+			blackhole.consume(iter.nextNode());
+		}
+	}
+}
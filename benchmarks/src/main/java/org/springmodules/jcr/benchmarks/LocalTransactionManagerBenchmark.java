@@ -0,0 +1,84 @@
+package org.springmodules.jcr.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springmodules.jcr.JcrCallback;
+import org.springmodules.jcr.jackrabbit.LocalTransactionManager;
+
+/**
+ * Benchmarks for complete {@link LocalTransactionManager} begin/commit cycles,
+ * with and without repository work inside the transaction, committing in one
+ * or two phases.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalTransactionManagerBenchmark {
+
+	private static final String PATH = "/" + RepositoryState.ROOT + "/node0";
+
+	@State(Scope.Benchmark)
+	public static class TransactionState {
+
+		public LocalTransactionManager transactionManager;
+
+		public DefaultTransactionDefinition definition;
+
+		@Param({ "true", "false" })
+		public boolean onePhaseCommit;
+
+		@Setup(Level.Trial)
+		public void setUp(RepositoryState repository) throws Exception {
+			transactionManager = new LocalTransactionManager(repository.sessionFactory);
+			transactionManager.setOnePhaseCommit(onePhaseCommit);
+			transactionManager.afterPropertiesSet();
+			definition = new DefaultTransactionDefinition();
+		}
+	}
+
+	@Benchmark
+	public void beginCommit(TransactionState state) {
+		TransactionStatus status = state.transactionManager.getTransaction(state.definition);
+		state.transactionManager.commit(status);
+	}
+
+	@Benchmark
+	public void beginWriteCommit(RepositoryState repository, TransactionState state) {
+		TransactionStatus status = state.transactionManager.getTransaction(state.definition);
+		try {
+			repository.template.execute(new JcrCallback() {
+				public Object doInJcr(Session session) throws IOException, RepositoryException {
+					session.getNode(PATH).setProperty("counter", System.nanoTime());
+					session.save();
+					return null;
+				}
+			}, true);
+		}
+		catch (RuntimeException ex) {
+			state.transactionManager.rollback(status);
+			throw ex;
+		}
+		state.transactionManager.commit(status);
+	}
+}
@@ -0,0 +1,105 @@
+package org.springmodules.jcr.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springmodules.jcr.JcrSessionFactory;
+import org.springmodules.jcr.JcrTemplate;
+
+/**
+ * In-process Jackrabbit repository shared by all the benchmarks of a trial.
+ * The repository lives in a temporary folder and is populated with a small
+ * content tree under {@link #ROOT}: {@link #CHILDREN} nodes, each with a few
+ * properties and {@link #GRAND_CHILDREN} children of its own.
+ *
+ * <p/> A session is kept open for the whole trial since a
+ * {@link TransientRepository} shuts down as soon as its last session is
+ * logged out.
+ *
+ */
+@State(Scope.Benchmark)
+public class RepositoryState {
+
+	public static final String ROOT = "benchmark";
+
+	public static final int CHILDREN = 100;
+
+	public static final int GRAND_CHILDREN = 2;
+
+	public File homeDir;
+
+	public TransientRepository repository;
+
+	public JcrSessionFactory sessionFactory;
+
+	public JcrTemplate template;
+
+	private Session keepAlive;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		homeDir = File.createTempFile("jcr-benchmark", "");
+		homeDir.delete();
+		homeDir.mkdirs();
+
+		repository = new TransientRepository(homeDir);
+
+		sessionFactory = new JcrSessionFactory();
+		sessionFactory.setRepository(repository);
+		sessionFactory.setCredentials(new SimpleCredentials("admin", "admin".toCharArray()));
+		sessionFactory.afterPropertiesSet();
+
+		keepAlive = sessionFactory.getSession();
+		populate(keepAlive);
+
+		template = new JcrTemplate(sessionFactory);
+		template.setAllowCreate(true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		sessionFactory.destroy();
+		keepAlive.logout();
+		repository.shutdown();
+		delete(homeDir);
+	}
+
+	private void populate(Session session) throws Exception {
+		Node root = session.getRootNode();
+		if (root.hasNode(ROOT))
+			root.getNode(ROOT).remove();
+
+		Node parent = root.addNode(ROOT);
+		for (int i = 0; i < CHILDREN; i++) {
+			Node child = parent.addNode("node" + i);
+			child.setProperty("index", i);
+			child.setProperty("title", "Node number " + i);
+			child.setProperty("tags", new String[] { "benchmark", "tag" + (i % 10) });
+			for (int j = 0; j < GRAND_CHILDREN; j++) {
+				child.addNode("child" + j).setProperty("value", (long) j);
+			}
+		}
+		session.save();
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				delete(children[i]);
+			}
+		}
+		if (!file.delete() && file.exists())
+			throw new IOException("could not delete " + file);
+	}
+}
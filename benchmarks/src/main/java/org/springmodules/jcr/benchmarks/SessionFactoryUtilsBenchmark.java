@@ -0,0 +1,89 @@
+package org.springmodules.jcr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.SessionFactory;
+import org.springmodules.jcr.SessionFactoryUtils;
+
+/**
+ * Benchmarks for {@link SessionFactoryUtils#doGetSession(SessionFactory, boolean)}
+ * with and without a session bound to the current thread, and for the
+ * thread-bound resource lookup itself (which hashes the session factory on
+ * every call).
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionFactoryUtilsBenchmark {
+
+	@State(Scope.Thread)
+	public static class BoundSession {
+
+		private SessionFactory sessionFactory;
+
+		private Session session;
+
+		@Setup(Level.Trial)
+		public void bind(RepositoryState repository) throws RepositoryException {
+			sessionFactory = repository.sessionFactory;
+			session = sessionFactory.getSession();
+			TransactionSynchronizationManager.bindResource(sessionFactory, sessionFactory.getSessionHolder(session));
+		}
+
+		@TearDown(Level.Trial)
+		public void unbind() {
+			TransactionSynchronizationManager.unbindResource(sessionFactory);
+			// the repository might have been shut down already
+			if (session.isLive())
+				session.logout();
+		}
+	}
+
+	@Benchmark
+	public int sessionFactoryHashCode(RepositoryState repository) {
+		return repository.sessionFactory.hashCode();
+	}
+
+	@Benchmark
+	public Object getResourceBound(RepositoryState repository, BoundSession bound) {
+		return TransactionSynchronizationManager.getResource(repository.sessionFactory);
+	}
+
+	@Benchmark
+	public boolean isSessionThreadBound(RepositoryState repository, BoundSession bound) {
+		return SessionFactoryUtils.isSessionThreadBound(bound.session, repository.sessionFactory);
+	}
+
+	@Benchmark
+	public Session doGetSessionUnbound(RepositoryState repository) throws RepositoryException {
+		Session session = SessionFactoryUtils.doGetSession(repository.sessionFactory, true);
+		SessionFactoryUtils.releaseSession(session, repository.sessionFactory);
+		return session;
+	}
+
+	@Benchmark
+	public Session doGetSessionBound(RepositoryState repository, BoundSession bound) throws RepositoryException {
+		Session session = SessionFactoryUtils.doGetSession(repository.sessionFactory, true);
+		SessionFactoryUtils.releaseSession(session, repository.sessionFactory);
+		return session;
+	}
+}
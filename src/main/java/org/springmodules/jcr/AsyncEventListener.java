@@ -0,0 +1,407 @@
+package org.springmodules.jcr;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * EventListener decorator which delivers the events to the target listener
+ * asynchronously, so a slow listener does not hold up the observation
+ * dispatcher of the repository (and thus all the other listeners).
+ *
+ * <p/> The events received in one {@link #onEvent(EventIterator)} call are
+ * copied and queued as one batch; worker threads take the batches from the
+ * queue and hand them to the target listener. The queue holds at most
+ * <code>queueCapacity</code> batches; the {@link BackpressurePolicy} decides
+ * what happens when it is full. With more than one dispatch thread batches
+ * may be delivered out of order and the target listener has to be thread
+ * safe.
+ *
+ * <p/> The queue depth and the number of dispatched, dropped and coalesced
+ * events are exposed for monitoring.
+ *
+ * @see EventListenerDefinition#setAsynchronous(boolean)
+ */
+public class AsyncEventListener implements EventListener, DisposableBean {
+
+	/**
+	 * What to do with new events if the queue is full.
+	 */
+	public static enum BackpressurePolicy {
+		/**
+		 * Wait until there is room in the queue, holding up the observation
+		 * dispatcher. No events are lost.
+		 */
+		BLOCK,
+		/**
+		 * Discard the oldest queued batch.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Merge the new events into the most recently queued batch. Duplicates
+		 * (same type, path and identifier) are delivered once, at the position
+		 * of the last one, so no changes are lost but listeners see fewer,
+		 * larger batches. Once the batch holds
+		 * <code>maxCoalescedBatchSize</code> events, new events wait for room
+		 * in the queue as with {@link #BLOCK}.
+		 */
+		COALESCE
+	}
+
+	private static final Log log = LogFactory.getLog(AsyncEventListener.class);
+
+	private static final AtomicInteger instanceCount = new AtomicInteger();
+
+	private final EventListener target;
+
+	private final int queueCapacity;
+
+	private final BackpressurePolicy backpressurePolicy;
+
+	private final LinkedList<Batch> queue = new LinkedList<Batch>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Thread[] dispatchers;
+
+	private boolean shutdown;
+
+	private int maxCoalescedBatchSize = 1000;
+
+	private int maxQueueDepth;
+
+	private final AtomicLong dispatchedEvents = new AtomicLong();
+
+	private final AtomicLong droppedEvents = new AtomicLong();
+
+	private final AtomicLong coalescedEvents = new AtomicLong();
+
+	private final AtomicLong failedDispatches = new AtomicLong();
+
+	/**
+	 * Create a new listener and start its dispatch threads.
+	 *
+	 * @param target the listener to deliver the events to
+	 * @param queueCapacity the maximum number of queued batches
+	 * @param dispatchThreads the number of threads delivering the events
+	 * @param backpressurePolicy what to do if the queue is full
+	 */
+	public AsyncEventListener(EventListener target, int queueCapacity, int dispatchThreads,
+			BackpressurePolicy backpressurePolicy) {
+		Assert.notNull(target, "target listener is required");
+		Assert.isTrue(queueCapacity > 0, "queueCapacity has to be positive");
+		Assert.isTrue(dispatchThreads > 0, "dispatchThreads has to be positive");
+		Assert.notNull(backpressurePolicy, "backpressurePolicy is required");
+
+		this.target = target;
+		this.queueCapacity = queueCapacity;
+		this.backpressurePolicy = backpressurePolicy;
+
+		int instance = instanceCount.incrementAndGet();
+		dispatchers = new Thread[dispatchThreads];
+		for (int i = 0; i < dispatchThreads; i++) {
+			dispatchers[i] = new Thread(new Dispatcher(), "jcr-event-dispatcher-" + instance + "-" + (i + 1));
+			dispatchers[i].setDaemon(true);
+			dispatchers[i].start();
+		}
+	}
+
+	/**
+	 * Copy the events and queue them for delivery.
+	 *
+	 * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+	 */
+	public void onEvent(EventIterator events) {
+		List<Event> batch = new ArrayList<Event>((int) Math.max(events.getSize(), 0));
+		while (events.hasNext()) {
+			Event event = events.nextEvent();
+			try {
+				batch.add(new DetachedEvent(event));
+			} catch (RepositoryException ex) {
+				log.warn("could not copy event " + event + "; skipping it", ex);
+			}
+		}
+		if (batch.isEmpty())
+			return;
+
+		lock.lock();
+		try {
+			if (shutdown) {
+				droppedEvents.addAndGet(batch.size());
+				log.warn("listener has been shut down; dropping " + batch.size() + " events");
+				return;
+			}
+
+			if (queue.size() >= queueCapacity) {
+				switch (backpressurePolicy) {
+				case COALESCE:
+					Batch last = queue.getLast();
+					if (last.size() + batch.size() <= maxCoalescedBatchSize) {
+						coalesce(last, batch);
+						return;
+					}
+					// the batch is large enough already: wait as with BLOCK
+				case BLOCK:
+					while (queue.size() >= queueCapacity && !shutdown)
+						notFull.awaitUninterruptibly();
+					if (shutdown) {
+						droppedEvents.addAndGet(batch.size());
+						return;
+					}
+					break;
+				case DROP_OLDEST:
+					Batch dropped = queue.removeFirst();
+					droppedEvents.addAndGet(dropped.size());
+					if (log.isDebugEnabled())
+						log.debug("queue full; dropped the oldest batch of " + dropped.size() + " events");
+					break;
+				}
+			}
+
+			queue.addLast(new Batch(batch));
+			if (queue.size() > maxQueueDepth)
+				maxQueueDepth = queue.size();
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Append the given events to the queued batch, moving duplicates to their
+	 * latest position. Called with the lock held; the batch has not been taken
+	 * by a dispatcher yet.
+	 */
+	private void coalesce(Batch queued, List<Event> batch) {
+		int duplicates = 0;
+		for (Event event : batch) {
+			if (!queued.merge(event))
+				duplicates++;
+		}
+		coalescedEvents.addAndGet(duplicates);
+	}
+
+	/**
+	 * Take the next batch, waiting for one if the queue is empty.
+	 *
+	 * @return the next batch or null if the listener has been shut down and
+	 *         the queue is empty
+	 */
+	private List<Event> take() {
+		lock.lock();
+		try {
+			while (queue.isEmpty()) {
+				if (shutdown)
+					return null;
+				notEmpty.awaitUninterruptibly();
+			}
+			Batch batch = queue.removeFirst();
+			notFull.signal();
+			return batch.getEvents();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the dispatch threads once the queued events have been delivered.
+	 * Events received afterwards are dropped.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		lock.lock();
+		try {
+			shutdown = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of queued batches
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the highest number of queued batches so far
+	 */
+	public int getMaxQueueDepth() {
+		lock.lock();
+		try {
+			return maxQueueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events delivered to the target listener
+	 */
+	public long getDispatchedEvents() {
+		return dispatchedEvents.get();
+	}
+
+	/**
+	 * @return the number of events dropped because the queue was full or the
+	 *         listener was shut down
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * @return the number of duplicate events merged while coalescing
+	 */
+	public long getCoalescedEvents() {
+		return coalescedEvents.get();
+	}
+
+	/**
+	 * @return the number of batches for which the target listener threw an
+	 *         exception
+	 */
+	public long getFailedDispatches() {
+		return failedDispatches.get();
+	}
+
+	/**
+	 * @return Returns the maxCoalescedBatchSize.
+	 */
+	public int getMaxCoalescedBatchSize() {
+		return maxCoalescedBatchSize;
+	}
+
+	/**
+	 * Set the number of events up to which the {@link BackpressurePolicy#COALESCE}
+	 * policy merges new events into the last queued batch. Default is 1000.
+	 *
+	 * @param maxCoalescedBatchSize The maxCoalescedBatchSize to set.
+	 */
+	public void setMaxCoalescedBatchSize(int maxCoalescedBatchSize) {
+		Assert.isTrue(maxCoalescedBatchSize > 0, "maxCoalescedBatchSize has to be positive");
+		lock.lock();
+		try {
+			this.maxCoalescedBatchSize = maxCoalescedBatchSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Returns the target listener.
+	 */
+	public EventListener getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return Returns the queueCapacity.
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return Returns the number of dispatch threads.
+	 */
+	public int getDispatchThreads() {
+		return dispatchers.length;
+	}
+
+	/**
+	 * @return Returns the backpressurePolicy.
+	 */
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	public String toString() {
+		return "AsyncEventListener[" + target + "]";
+	}
+
+	/**
+	 * Queued events. The ordered set used to merge duplicates is only built
+	 * when events are first coalesced into the batch, then kept up to date.
+	 */
+	private static class Batch {
+
+		private final List<Event> events;
+
+		private Set<Event> merged;
+
+		Batch(List<Event> events) {
+			this.events = events;
+		}
+
+		int size() {
+			return (merged == null ? events.size() : merged.size());
+		}
+
+		/**
+		 * Append the event, or move its duplicate to the end of the batch.
+		 *
+		 * @return false if the event was a duplicate
+		 */
+		boolean merge(Event event) {
+			if (merged == null) {
+				merged = new LinkedHashSet<Event>();
+				for (Event queued : events) {
+					merged.remove(queued);
+					merged.add(queued);
+				}
+			}
+			boolean duplicate = merged.remove(event);
+			merged.add(event);
+			return !duplicate;
+		}
+
+		List<Event> getEvents() {
+			return (merged == null ? events : new ArrayList<Event>(merged));
+		}
+	}
+
+	private class Dispatcher implements Runnable {
+		public void run() {
+			List<Event> batch;
+			while ((batch = take()) != null) {
+				try {
+					target.onEvent(new EventListIterator(batch));
+					dispatchedEvents.addAndGet(batch.size());
+				} catch (RuntimeException ex) {
+					failedDispatches.incrementAndGet();
+					log.error("listener " + target + " failed to process " + batch.size() + " events", ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.springmodules.jcr;
+
+import java.io.IOException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Callback interface used by {@link BatchWriter} for writing one item of a
+ * bulk load. Implementations add the nodes and properties for the given item
+ * to the session; saving the session and handling transactions is done by
+ * the writer.
+ * 
+ * @see BatchWriter#write(java.util.Iterator, BatchCallback)
+ */
+public interface BatchCallback {
+
+    /**
+     * Write the given item using the given session.
+     * 
+     * @param session the session of the current batch
+     * @param item the item to write
+     * @return an estimate of the number of bytes written (0 if unknown), used
+     *         for limiting the size of the batch
+     */
+    public long doInBatch(Session session, Object item) throws IOException, RepositoryException;
+}
@@ -0,0 +1,32 @@
+package org.springmodules.jcr;
+
+import java.util.List;
+
+/**
+ * Callback interface for receiving the progress of a {@link BatchWriter}.
+ * Called once per batch, after the batch has been saved (and committed) or
+ * discarded.
+ * 
+ * @see BatchWriter#setBatchListener(BatchListener)
+ */
+public interface BatchListener {
+
+    /**
+     * Called after a batch has been saved.
+     * 
+     * @param batchNumber the number of the batch (starting at 1)
+     * @param items the items written in the batch
+     * @param bytes the estimated number of bytes written in the batch
+     */
+    public void batchSaved(int batchNumber, List items, long bytes);
+
+    /**
+     * Called after a batch has failed; the changes of the batch have been
+     * discarded.
+     * 
+     * @param batchNumber the number of the batch (starting at 1)
+     * @param items the items of the batch, including the failing one
+     * @param ex the failure
+     */
+    public void batchFailed(int batchNumber, List items, RuntimeException ex);
+}
@@ -0,0 +1,275 @@
+package org.springmodules.jcr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.util.Assert;
+
+/**
+ * Helper for bulk loading content. The items to load are handed one at a time
+ * to a {@link BatchCallback} and the session is saved every
+ * <code>batchSize</code> items, or as soon as the callbacks report having
+ * written <code>maxBatchBytes</code>, which keeps the transient space bounded.
+ *
+ * <p/> If a transaction manager is set (typically a
+ * {@link org.springmodules.jcr.jackrabbit.LocalTransactionManager}), every batch
+ * runs in a new transaction (PROPAGATION_REQUIRES_NEW) which is committed after
+ * the save - for XA sessions the changes are only persisted on commit, so this
+ * is what keeps the memory bounded there. Without a transaction manager all
+ * batches share one session: the thread-bound one if any, a new one otherwise.
+ *
+ * <p/> A failing batch is discarded (rolled back, respectively refreshed without
+ * keeping the changes) and reported to the {@link BatchListener}. The exception
+ * is propagated unless <code>continueOnError</code> is set, in which case the
+ * writer carries on with the next batch.
+ *
+ * @see BatchCallback
+ * @see BatchListener
+ */
+public class BatchWriter extends JcrAccessor {
+
+	private static final TransactionDefinition BATCH_TRANSACTION = new DefaultTransactionDefinition(
+			TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+	private int batchSize = 100;
+
+	private long maxBatchBytes = -1;
+
+	private PlatformTransactionManager transactionManager;
+
+	private BatchListener batchListener;
+
+	private boolean continueOnError = false;
+
+	public BatchWriter() {
+	}
+
+	/**
+	 * @param sessionFactory
+	 */
+	public BatchWriter(SessionFactory sessionFactory) {
+		setSessionFactory(sessionFactory);
+		afterPropertiesSet();
+	}
+
+	/**
+	 * Write the given items, saving the session after every batch.
+	 *
+	 * @param items the items to write
+	 * @param callback callback writing a single item
+	 * @return the number of items which have been saved
+	 * @throws DataAccessException in case of a failing batch (unless
+	 *             continueOnError is set)
+	 */
+	public int write(Iterator items, BatchCallback callback) throws DataAccessException {
+		Assert.notNull(items, "items are required");
+		Assert.notNull(callback, "callback is required");
+
+		int written = 0;
+		int batchNumber = 0;
+
+		if (transactionManager != null) {
+			while (items.hasNext()) {
+				written += writeBatch(++batchNumber, items, callback, null);
+			}
+			return written;
+		}
+
+		Session session = SessionFactoryUtils.getSession(getSessionFactory(), true);
+		try {
+			while (items.hasNext()) {
+				written += writeBatch(++batchNumber, items, callback, session);
+			}
+		} finally {
+			SessionFactoryUtils.releaseSession(session, getSessionFactory());
+		}
+		return written;
+	}
+
+	/**
+	 * Write the given items, saving the session after every batch.
+	 *
+	 * @see #write(Iterator, BatchCallback)
+	 */
+	public int write(Collection items, BatchCallback callback) throws DataAccessException {
+		Assert.notNull(items, "items are required");
+		return write(items.iterator(), callback);
+	}
+
+	/**
+	 * Write one batch of items. The session is null if the batch has to run in
+	 * its own transaction.
+	 *
+	 * @return the number of saved items
+	 */
+	private int writeBatch(int batchNumber, Iterator items, BatchCallback callback, Session session) {
+		List batch = new ArrayList();
+		long bytes = 0;
+		TransactionStatus status = null;
+		Session transactionalSession = null;
+
+		try {
+			if (transactionManager != null) {
+				status = transactionManager.getTransaction(BATCH_TRANSACTION);
+				session = SessionFactoryUtils.getSession(getSessionFactory(), true);
+				// normally bound by the transaction manager and closed on completion
+				if (!SessionFactoryUtils.isSessionThreadBound(session, getSessionFactory()))
+					transactionalSession = session;
+			}
+
+			while (items.hasNext() && batch.size() < batchSize && (maxBatchBytes < 0 || bytes < maxBatchBytes)) {
+				Object item = items.next();
+				batch.add(item);
+				bytes += callback.doInBatch(session, item);
+			}
+			session.save();
+
+			if (status != null) {
+				// the transaction manager cleans up itself if the commit fails
+				TransactionStatus committed = status;
+				status = null;
+				transactionManager.commit(committed);
+			}
+		} catch (RepositoryException ex) {
+			return batchFailed(batchNumber, batch, convertJcrAccessException(ex), session, status);
+		} catch (IOException ex) {
+			return batchFailed(batchNumber, batch, convertJcrAccessException(ex), session, status);
+		} catch (RuntimeException ex) {
+			return batchFailed(batchNumber, batch, convertJcrAccessException(ex), session, status);
+		} finally {
+			if (transactionalSession != null)
+				SessionFactoryUtils.releaseSession(transactionalSession, getSessionFactory());
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("Saved batch " + batchNumber + " with " + batch.size() + " items (~" + bytes + " bytes)");
+		if (batchListener != null)
+			batchListener.batchSaved(batchNumber, batch, bytes);
+		return batch.size();
+	}
+
+	/**
+	 * Discard the changes of a failed batch and report the failure. The
+	 * exception is rethrown unless continueOnError is set; failures which
+	 * happen before any item has been consumed (i.e. when opening the
+	 * transaction) are always rethrown as there is nothing to skip.
+	 */
+	private int batchFailed(int batchNumber, List batch, RuntimeException ex, Session session,
+			TransactionStatus status) {
+		if (status != null) {
+			try {
+				transactionManager.rollback(status);
+			} catch (RuntimeException rollbackEx) {
+				logger.error("Could not roll back batch " + batchNumber, rollbackEx);
+			}
+		} else if (transactionManager == null) {
+			try {
+				session.refresh(false);
+			} catch (RepositoryException refreshEx) {
+				logger.error("Could not discard the changes of batch " + batchNumber, refreshEx);
+			}
+		}
+
+		logger.warn("Batch " + batchNumber + " with " + batch.size() + " items failed", ex);
+		if (batchListener != null)
+			batchListener.batchFailed(batchNumber, batch, ex);
+
+		if (!continueOnError || batch.isEmpty())
+			throw ex;
+		return 0;
+	}
+
+	/**
+	 * @return Returns the batchSize.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the maximum number of items per batch. Default is 100.
+	 *
+	 * @param batchSize The batchSize to set.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "batchSize has to be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return Returns the maxBatchBytes.
+	 */
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Set the number of bytes (as estimated by the {@link BatchCallback}) after
+	 * which a batch is saved even if it has less than batchSize items. A
+	 * negative value (the default) means no limit.
+	 *
+	 * @param maxBatchBytes The maxBatchBytes to set.
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * @return Returns the transactionManager.
+	 */
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * Set the transaction manager used for committing every batch in its own
+	 * transaction. Default is none.
+	 *
+	 * @param transactionManager The transactionManager to set.
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * @return Returns the batchListener.
+	 */
+	public BatchListener getBatchListener() {
+		return batchListener;
+	}
+
+	/**
+	 * @param batchListener The batchListener to set.
+	 */
+	public void setBatchListener(BatchListener batchListener) {
+		this.batchListener = batchListener;
+	}
+
+	/**
+	 * @return Returns the continueOnError.
+	 */
+	public boolean isContinueOnError() {
+		return continueOnError;
+	}
+
+	/**
+	 * Set whether to carry on with the next batch when a batch fails. Default
+	 * is false.
+	 *
+	 * @param continueOnError The continueOnError to set.
+	 */
+	public void setContinueOnError(boolean continueOnError) {
+		this.continueOnError = continueOnError;
+	}
+}
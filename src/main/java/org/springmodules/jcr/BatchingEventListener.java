@@ -0,0 +1,269 @@
+package org.springmodules.jcr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * EventListener decorator which collects the events for a time window (or up
+ * to a number of events) and delivers them to the target listener as one
+ * compact batch. Useful for listeners like cache invalidators which are
+ * flooded with events by bulk saves.
+ *
+ * <p/> Within a batch, duplicate events (same type and path) are delivered
+ * once, at the position of the last one, so that a node added, removed and
+ * added again is reported as removed then added. With
+ * <code>collapseDescendants</code>, events below the path of a node event
+ * (added, removed or moved) of the same batch are dropped as well, since the
+ * node event already covers its subtree.
+ *
+ * <p/> The window starts with the first event after a delivery. Batches
+ * completed by the window are delivered by a timer thread, batches completed
+ * by the size limit by the thread which received the last event. Batches are
+ * delivered one at a time, in the order they were completed.
+ *
+ * @see EventListenerDefinition#setBatchWindow(long)
+ */
+public class BatchingEventListener implements EventListener, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(BatchingEventListener.class);
+
+	private static final int NODE_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED;
+
+	private final EventListener target;
+
+	private final long batchWindow;
+
+	private final int batchSize;
+
+	private final boolean collapseDescendants;
+
+	private final Timer timer = new Timer("jcr-event-batcher", true);
+
+	/** pending events, by type and path */
+	private Map<String, Event> pending = new LinkedHashMap<String, Event>();
+
+	private TimerTask flushTask;
+
+	/** held while taking and delivering a batch, before the monitor */
+	private final Object deliveryLock = new Object();
+
+	private boolean destroyed;
+
+	private final AtomicLong receivedEvents = new AtomicLong();
+
+	private final AtomicLong deliveredEvents = new AtomicLong();
+
+	private final AtomicLong deliveredBatches = new AtomicLong();
+
+	/**
+	 * @param target the listener to deliver the batches to
+	 * @param batchWindow the time (in milliseconds) events are collected for
+	 * @param batchSize the number of (distinct) events after which a batch is
+	 *            delivered before the end of the window; 0 means no limit
+	 * @param collapseDescendants whether to drop events below the path of a
+	 *            node event of the same batch
+	 */
+	public BatchingEventListener(EventListener target, long batchWindow, int batchSize, boolean collapseDescendants) {
+		Assert.notNull(target, "target listener is required");
+		Assert.isTrue(batchWindow > 0, "batchWindow has to be positive");
+		Assert.isTrue(batchSize >= 0, "batchSize can't be negative");
+		this.target = target;
+		this.batchWindow = batchWindow;
+		this.batchSize = batchSize;
+		this.collapseDescendants = collapseDescendants;
+	}
+
+	/**
+	 * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+	 */
+	public void onEvent(EventIterator events) {
+		boolean complete = false;
+
+		synchronized (this) {
+			while (events.hasNext()) {
+				Event event = events.nextEvent();
+				receivedEvents.incrementAndGet();
+				try {
+					String key = event.getType() + ":" + event.getPath();
+					Event detached = (event instanceof DetachedEvent ? event : new DetachedEvent(event));
+					// move duplicates to the end to keep the order of the latest changes
+					pending.remove(key);
+					pending.put(key, detached);
+				} catch (RepositoryException ex) {
+					log.warn("could not copy event " + event + "; skipping it", ex);
+				}
+			}
+
+			if (destroyed || (batchSize > 0 && pending.size() >= batchSize)) {
+				complete = true;
+			} else if (flushTask == null && !pending.isEmpty()) {
+				flushTask = new TimerTask() {
+					public void run() {
+						flush();
+					}
+				};
+				timer.schedule(flushTask, batchWindow);
+			}
+		}
+
+		if (complete)
+			flush();
+	}
+
+	/**
+	 * Deliver the pending events right away.
+	 */
+	public void flush() {
+		// take the batch with the delivery lock held, so that batches can't
+		// overtake each other
+		synchronized (deliveryLock) {
+			List<Event> batch;
+			synchronized (this) {
+				batch = takePending();
+			}
+			deliver(batch);
+		}
+	}
+
+	/**
+	 * Take the pending events, collapsing them if needed. Called with the lock
+	 * held.
+	 */
+	private List<Event> takePending() {
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+		Map<String, Event> events = pending;
+		pending = new LinkedHashMap<String, Event>();
+
+		List<Event> batch = new ArrayList<Event>(events.size());
+		for (Iterator<Event> iter = events.values().iterator(); iter.hasNext();) {
+			Event event = iter.next();
+			if (!collapseDescendants || !hasNodeEventAncestor(event, events))
+				batch.add(event);
+		}
+		return batch;
+	}
+
+	/**
+	 * Check whether the given events contain a node event for one of the
+	 * ancestors of the given event's path.
+	 */
+	private static boolean hasNodeEventAncestor(Event event, Map<String, Event> events) {
+		String path;
+		try {
+			path = event.getPath();
+		} catch (RepositoryException ex) {
+			return false;
+		}
+		if (path == null || path.length() <= 1)
+			return false;
+
+		for (int index = path.lastIndexOf('/'); index >= 0; index = path.lastIndexOf('/', index - 1)) {
+			String ancestor = (index == 0 ? "/" : path.substring(0, index));
+			for (int type = 1; type <= NODE_EVENTS; type <<= 1) {
+				if ((type & NODE_EVENTS) != 0 && events.containsKey(type + ":" + ancestor))
+					return true;
+			}
+			if (index == 0)
+				break;
+		}
+		return false;
+	}
+
+	private void deliver(List<Event> batch) {
+		if (batch.isEmpty())
+			return;
+		try {
+			target.onEvent(new EventListIterator(batch));
+			deliveredEvents.addAndGet(batch.size());
+			deliveredBatches.incrementAndGet();
+		} catch (RuntimeException ex) {
+			log.error("listener " + target + " failed to process " + batch.size() + " events", ex);
+		}
+	}
+
+	/**
+	 * Deliver the pending events and stop the timer. Events received
+	 * afterwards are delivered right away.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		synchronized (this) {
+			destroyed = true;
+		}
+		timer.cancel();
+		flush();
+	}
+
+	/**
+	 * @return the number of events received
+	 */
+	public long getReceivedEvents() {
+		return receivedEvents.get();
+	}
+
+	/**
+	 * @return the number of events delivered to the target listener
+	 */
+	public long getDeliveredEvents() {
+		return deliveredEvents.get();
+	}
+
+	/**
+	 * @return the number of batches delivered to the target listener
+	 */
+	public long getDeliveredBatches() {
+		return deliveredBatches.get();
+	}
+
+	/**
+	 * @return Returns the target listener.
+	 */
+	public EventListener getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return Returns the batchWindow.
+	 */
+	public long getBatchWindow() {
+		return batchWindow;
+	}
+
+	/**
+	 * @return Returns the batchSize.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return Returns the collapseDescendants.
+	 */
+	public boolean isCollapseDescendants() {
+		return collapseDescendants;
+	}
+
+	public String toString() {
+		return "BatchingEventListener[" + target + "]";
+	}
+}
@@ -0,0 +1,610 @@
+package org.springmodules.jcr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.util.Assert;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parallel alternative to {@link JcrTemplate#importXML(String, InputStream, int)}
+ * for large system view or document view documents.
+ *
+ * <p/> The document is parsed once and split at the children of its root
+ * element. The root node (with its properties) is imported first; every child
+ * subtree is then streamed, while it is being parsed, to a worker which
+ * imports it through {@link Session#getImportContentHandler(String, int)} of
+ * its own session and saves it. The events are handed over through a bounded
+ * queue, so neither the document nor a subtree is kept in memory and at most
+ * <code>concurrency</code> subtrees (and sessions) are in flight.
+ *
+ * <p/> Every subtree is saved on its own: if one fails, the import stops and
+ * the subtrees saved so far are kept. The order of the imported children is
+ * the order in which their workers complete, which is the document order only
+ * for a concurrency of 1. Text directly below the root element (document
+ * view) is only supported before its first child element.
+ *
+ * @see JcrTemplate#importXML(String, InputStream, int)
+ */
+public class BulkImporter extends JcrAccessor {
+
+	private static final String SV_URI = "http://www.jcp.org/jcr/sv/1.0";
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+
+	private int queueCapacity = 1000;
+
+	private Executor executor;
+
+	public BulkImporter() {
+	}
+
+	/**
+	 * @param sessionFactory
+	 */
+	public BulkImporter(SessionFactory sessionFactory) {
+		setSessionFactory(sessionFactory);
+		afterPropertiesSet();
+	}
+
+	/**
+	 * Import the given document below the given node.
+	 *
+	 * @param parentAbsPath the absolute path of the node below which the
+	 *            document is imported
+	 * @param in the document (system or document view)
+	 * @param uuidBehavior one of the {@link javax.jcr.ImportUUIDBehavior}
+	 *            constants
+	 * @return the number of subtrees imported in parallel
+	 * @throws DataAccessException
+	 */
+	public int importXML(String parentAbsPath, InputStream in, int uuidBehavior) throws DataAccessException {
+		Assert.hasText(parentAbsPath, "parentAbsPath is required");
+		Assert.notNull(in, "input stream is required");
+
+		ExecutorService ownExecutor = null;
+		Executor workers = executor;
+		if (workers == null) {
+			ownExecutor = Executors.newFixedThreadPool(concurrency);
+			workers = ownExecutor;
+		}
+
+		Splitter splitter = new Splitter(parentAbsPath, uuidBehavior, workers);
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			// the document comes from the caller: don't resolve external entities
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+			try {
+				factory.newSAXParser().parse(new InputSource(in), splitter);
+			} finally {
+				splitter.finish();
+			}
+		} catch (SAXException ex) {
+			throw convert(splitter.getFailure() != null ? splitter.getFailure() : ex);
+		} catch (IOException ex) {
+			throw convertJcrAccessException(ex);
+		} catch (ParserConfigurationException ex) {
+			throw new JcrSystemException(ex);
+		} finally {
+			if (ownExecutor != null)
+				ownExecutor.shutdown();
+		}
+
+		if (splitter.getFailure() != null)
+			throw convert(splitter.getFailure());
+
+		return splitter.getChunks();
+	}
+
+	private RuntimeException convert(Throwable ex) {
+		if (ex instanceof SAXException && ((SAXException) ex).getException() != null)
+			ex = ((SAXException) ex).getException();
+
+		if (ex instanceof RepositoryException)
+			return convertJcrAccessException((RepositoryException) ex);
+		if (ex instanceof IOException)
+			return convertJcrAccessException((IOException) ex);
+		if (ex instanceof RuntimeException)
+			return convertJcrAccessException((RuntimeException) ex);
+		if (ex instanceof Error)
+			throw (Error) ex;
+		return new JcrSystemException(ex);
+	}
+
+	/**
+	 * Decode a document view element name (ISO 9075 escaping of invalid
+	 * characters as <code>_xHHHH_</code>).
+	 */
+	private static String decodeName(String name) {
+		if (name.indexOf("_x") < 0)
+			return name;
+
+		StringBuilder decoded = new StringBuilder(name.length());
+		int i = 0;
+		while (i < name.length()) {
+			if (name.startsWith("_x", i) && i + 7 <= name.length() && name.charAt(i + 6) == '_') {
+				try {
+					decoded.append((char) Integer.parseInt(name.substring(i + 2, i + 6), 16));
+					i += 7;
+					continue;
+				} catch (NumberFormatException ex) {
+					// not an escape sequence
+				}
+			}
+			decoded.append(name.charAt(i++));
+		}
+		return decoded.toString();
+	}
+
+	/**
+	 * @return Returns the concurrency.
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Set the maximum number of subtrees imported at the same time. Default is
+	 * the number of available processors.
+	 *
+	 * @param concurrency The concurrency to set.
+	 */
+	public void setConcurrency(int concurrency) {
+		Assert.isTrue(concurrency > 0, "concurrency has to be positive");
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @return Returns the queueCapacity.
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Set the number of parsing events buffered per subtree before the parser
+	 * waits for the worker. Default is 1000.
+	 *
+	 * @param queueCapacity The queueCapacity to set.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		Assert.isTrue(queueCapacity > 0, "queueCapacity has to be positive");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return Returns the executor.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Set the executor running the import workers. It has to run the tasks
+	 * asynchronously and should provide at least <code>concurrency</code>
+	 * threads. By default a thread pool is created for every import.
+	 *
+	 * @param executor The executor to set.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * SAX handler splitting the document; runs on the parsing thread.
+	 */
+	private class Splitter extends DefaultHandler {
+
+		private final String parentAbsPath;
+
+		private final int uuidBehavior;
+
+		private final Executor workers;
+
+		private final int maxChunks = concurrency;
+
+		private final Semaphore permits = new Semaphore(maxChunks);
+
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		/** prefix mappings declared on the root element, replayed for every chunk */
+		private final Map<String, String> rootMappings = new LinkedHashMap<String, String>();
+
+		/** prefix mappings for the next element */
+		private final List<SaxEvent> pendingMappings = new ArrayList<SaxEvent>();
+
+		/** events of the root node; null once it has been imported */
+		private List<SaxEvent> rootEvents = new ArrayList<SaxEvent>();
+
+		private StartElement rootElement;
+
+		private boolean systemView;
+
+		private String rootPath;
+
+		private boolean inRootProperty;
+
+		private Chunk chunk;
+
+		private int chunks;
+
+		private int depth;
+
+		private Splitter(String parentAbsPath, int uuidBehavior, Executor workers) {
+			this.parentAbsPath = parentAbsPath;
+			this.uuidBehavior = uuidBehavior;
+			this.workers = workers;
+		}
+
+		public void startPrefixMapping(String prefix, String uri) throws SAXException {
+			if (depth == 0)
+				rootMappings.put(prefix, uri);
+			// handed over together with the element declaring it
+			pendingMappings.add(new PrefixMapping(prefix, uri));
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			depth++;
+			StartElement event = new StartElement(uri, localName, qName, atts);
+
+			if (depth == 1) {
+				systemView = SV_URI.equals(uri) && "node".equals(localName);
+				rootElement = event;
+				addToRoot(event);
+			} else if (depth == 2) {
+				if (systemView && !(SV_URI.equals(uri) && "node".equals(localName))) {
+					// a property of the root node
+					if (rootEvents == null)
+						throw new SAXException("root node properties have to precede its child nodes");
+					inRootProperty = true;
+					addToRoot(event);
+				} else {
+					if (rootEvents != null)
+						importRoot();
+					startChunk();
+					forward(event);
+				}
+			} else {
+				forward(event);
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			SaxEvent event = new EndElement(uri, localName, qName);
+
+			if (depth == 1) {
+				if (rootEvents != null) {
+					rootEvents.add(event);
+					importRoot();
+				}
+			} else if (depth == 2 && inRootProperty) {
+				rootEvents.add(event);
+				inRootProperty = false;
+			} else if (depth == 2) {
+				chunk.put(event);
+				chunk.put(SaxEvent.END);
+				chunk = null;
+			} else {
+				forward(event);
+			}
+			depth--;
+		}
+
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (depth == 1) {
+				if (new String(ch, start, length).trim().length() == 0)
+					return;
+				if (rootEvents == null)
+					throw new SAXException("text below the root element has to precede its child elements");
+				rootEvents.add(new Characters(ch, start, length));
+			} else if (depth > 1) {
+				forward(new Characters(ch, start, length));
+			}
+		}
+
+		private void addToRoot(SaxEvent event) {
+			rootEvents.addAll(pendingMappings);
+			pendingMappings.clear();
+			rootEvents.add(event);
+		}
+
+		private void forward(SaxEvent event) throws SAXException {
+			if (inRootProperty) {
+				addToRoot(event);
+				return;
+			}
+			for (Iterator iter = pendingMappings.iterator(); iter.hasNext();) {
+				chunk.put((SaxEvent) iter.next());
+			}
+			pendingMappings.clear();
+			chunk.put(event);
+		}
+
+		/**
+		 * Import the root node without its children, on the parsing thread.
+		 */
+		private void importRoot() throws SAXException {
+			List<SaxEvent> events = rootEvents;
+			rootEvents = null;
+
+			try {
+				Session session = SessionFactoryUtils.openSession(getSessionFactory());
+				try {
+					ContentHandler handler = session.getImportContentHandler(parentAbsPath, uuidBehavior);
+					handler.startDocument();
+					for (Iterator iter = events.iterator(); iter.hasNext();) {
+						((SaxEvent) iter.next()).replay(handler);
+					}
+					// the root element is still open if it has children
+					if (depth > 1)
+						handler.endElement(rootElement.uri, rootElement.localName, rootElement.qName);
+					handler.endDocument();
+					session.save();
+
+					if (depth > 1)
+						rootPath = findRootPath(session);
+				} finally {
+					SessionFactoryUtils.releaseSession(session, getSessionFactory());
+				}
+			} catch (RepositoryException ex) {
+				throw new SAXException(ex);
+			}
+		}
+
+		/**
+		 * Find the path of the imported root node - the last child of the
+		 * parent node with the root node's name.
+		 */
+		private String findRootPath(Session session) throws RepositoryException, SAXException {
+			String name = (systemView ? rootElement.attributes.getValue(SV_URI, "name")
+					: decodeName(rootElement.qName));
+			Node imported = null;
+			for (NodeIterator iter = session.getNode(parentAbsPath).getNodes(name); iter.hasNext();) {
+				imported = iter.nextNode();
+			}
+			if (imported == null)
+				throw new SAXException("imported root node " + name + " not found below " + parentAbsPath);
+			return imported.getPath();
+		}
+
+		private void startChunk() throws SAXException {
+			checkFailure();
+			try {
+				permits.acquire();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SAXException("interrupted while waiting for an import worker", ex);
+			}
+			chunk = new Chunk(this);
+			try {
+				workers.execute(chunk);
+			} catch (RuntimeException ex) {
+				chunk = null;
+				permits.release();
+				throw ex;
+			}
+			chunks++;
+			// fail fast instead of parsing the chunk for nothing
+			checkFailure();
+		}
+
+		private void checkFailure() throws SAXException {
+			if (failure.get() != null)
+				throw new SAXException("import worker failed");
+		}
+
+		/**
+		 * Abort the open chunk (if the parsing failed) and wait for the
+		 * workers.
+		 */
+		private void finish() {
+			if (chunk != null) {
+				chunk.putUninterruptibly(SaxEvent.ABORT);
+				chunk = null;
+			}
+			permits.acquireUninterruptibly(maxChunks);
+			permits.release(maxChunks);
+		}
+
+		private Throwable getFailure() {
+			return failure.get();
+		}
+
+		private int getChunks() {
+			return chunks;
+		}
+	}
+
+	/**
+	 * Import of one child subtree of the root node; runs on a worker thread.
+	 */
+	private class Chunk implements Runnable {
+
+		private final Splitter splitter;
+
+		private final BlockingQueue<SaxEvent> events = new ArrayBlockingQueue<SaxEvent>(queueCapacity);
+
+		private boolean done;
+
+		private Chunk(Splitter splitter) {
+			this.splitter = splitter;
+		}
+
+		private void put(SaxEvent event) throws SAXException {
+			try {
+				events.put(event);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SAXException("interrupted while handing over the import", ex);
+			}
+		}
+
+		private void putUninterruptibly(SaxEvent event) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					events.put(event);
+					break;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		public void run() {
+			try {
+				importChunk();
+			} catch (Throwable ex) {
+				splitter.failure.compareAndSet(null, ex);
+				// keep consuming so the parser does not block
+				drain();
+			} finally {
+				splitter.permits.release();
+			}
+		}
+
+		private void importChunk() throws Exception {
+			Session session = SessionFactoryUtils.openSession(getSessionFactory());
+			try {
+				ContentHandler handler = session.getImportContentHandler(splitter.rootPath, splitter.uuidBehavior);
+				handler.startDocument();
+				for (Iterator iter = splitter.rootMappings.entrySet().iterator(); iter.hasNext();) {
+					Map.Entry entry = (Map.Entry) iter.next();
+					handler.startPrefixMapping((String) entry.getKey(), (String) entry.getValue());
+				}
+				while (true) {
+					SaxEvent event = events.take();
+					if (event == SaxEvent.END || event == SaxEvent.ABORT) {
+						done = true;
+						if (event == SaxEvent.ABORT)
+							return;
+						break;
+					}
+					event.replay(handler);
+				}
+				handler.endDocument();
+				session.save();
+			} finally {
+				SessionFactoryUtils.releaseSession(session, getSessionFactory());
+			}
+		}
+
+		private void drain() {
+			try {
+				while (!done) {
+					SaxEvent event = events.take();
+					done = (event == SaxEvent.END || event == SaxEvent.ABORT);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Recorded SAX event.
+	 */
+	private static abstract class SaxEvent {
+
+		private static final SaxEvent END = new Characters(new char[0], 0, 0);
+
+		private static final SaxEvent ABORT = new Characters(new char[0], 0, 0);
+
+		abstract void replay(ContentHandler handler) throws SAXException;
+	}
+
+	private static class PrefixMapping extends SaxEvent {
+		private final String prefix;
+		private final String uri;
+
+		private PrefixMapping(String prefix, String uri) {
+			this.prefix = prefix;
+			this.uri = uri;
+		}
+
+		void replay(ContentHandler handler) throws SAXException {
+			handler.startPrefixMapping(prefix, uri);
+		}
+	}
+
+	private static class StartElement extends SaxEvent {
+		private final String uri;
+		private final String localName;
+		private final String qName;
+		private final Attributes attributes;
+
+		private StartElement(String uri, String localName, String qName, Attributes attributes) {
+			this.uri = uri;
+			this.localName = localName;
+			this.qName = qName;
+			// the parser reuses the attributes
+			this.attributes = new AttributesImpl(attributes);
+		}
+
+		void replay(ContentHandler handler) throws SAXException {
+			handler.startElement(uri, localName, qName, attributes);
+		}
+	}
+
+	private static class EndElement extends SaxEvent {
+		private final String uri;
+		private final String localName;
+		private final String qName;
+
+		private EndElement(String uri, String localName, String qName) {
+			this.uri = uri;
+			this.localName = localName;
+			this.qName = qName;
+		}
+
+		void replay(ContentHandler handler) throws SAXException {
+			handler.endElement(uri, localName, qName);
+		}
+	}
+
+	private static class Characters extends SaxEvent {
+		private final char[] text;
+
+		private Characters(char[] ch, int start, int length) {
+			// the parser reuses the buffer
+			text = new char[length];
+			System.arraycopy(ch, start, text, 0, length);
+		}
+
+		void replay(ContentHandler handler) throws SAXException {
+			handler.characters(text, 0, text.length);
+		}
+	}
+}
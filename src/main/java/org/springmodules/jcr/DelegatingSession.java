@@ -0,0 +1,233 @@
+package org.springmodules.jcr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.jcr.Credentials;
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.retention.RetentionManager;
+import javax.jcr.security.AccessControlManager;
+
+import org.springframework.util.Assert;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Session implementation which delegates all calls to a target Session.
+ * Subclasses can override the methods they are interested in (for example
+ * {@link #logout()}) without paying the price of a reflective proxy on every
+ * call.
+ *
+ * <p/> Only the {@link Session} interface is exposed; vendor specific
+ * extensions of the target session are not visible through the wrapper.
+ * Equality is based on identity, like for the JDK proxies used before.
+ *
+ * @see JcrTemplate#createSessionProxy(Session)
+ * @see TransactionAwareRepository
+ */
+public class DelegatingSession implements Session {
+
+	private final Session target;
+
+	/**
+	 * @param target session to delegate to
+	 */
+	public DelegatingSession(Session target) {
+		Assert.notNull(target, "target session is required");
+		this.target = target;
+	}
+
+	/**
+	 * @return Returns the target session.
+	 */
+	public Session getTargetSession() {
+		return target;
+	}
+
+	public Repository getRepository() {
+		return target.getRepository();
+	}
+
+	public String getUserID() {
+		return target.getUserID();
+	}
+
+	public String[] getAttributeNames() {
+		return target.getAttributeNames();
+	}
+
+	public Object getAttribute(String name) {
+		return target.getAttribute(name);
+	}
+
+	public Workspace getWorkspace() {
+		return target.getWorkspace();
+	}
+
+	public Node getRootNode() throws RepositoryException {
+		return target.getRootNode();
+	}
+
+	public Session impersonate(Credentials credentials) throws RepositoryException {
+		return target.impersonate(credentials);
+	}
+
+	/**
+	 * @deprecated As of JCR 2.0, {@link #getNodeByIdentifier(String)} should be
+	 *             used instead.
+	 */
+	@Deprecated
+	public Node getNodeByUUID(String uuid) throws RepositoryException {
+		return target.getNodeByUUID(uuid);
+	}
+
+	public Node getNodeByIdentifier(String id) throws RepositoryException {
+		return target.getNodeByIdentifier(id);
+	}
+
+	public Item getItem(String absPath) throws RepositoryException {
+		return target.getItem(absPath);
+	}
+
+	public Node getNode(String absPath) throws RepositoryException {
+		return target.getNode(absPath);
+	}
+
+	public Property getProperty(String absPath) throws RepositoryException {
+		return target.getProperty(absPath);
+	}
+
+	public boolean itemExists(String absPath) throws RepositoryException {
+		return target.itemExists(absPath);
+	}
+
+	public boolean nodeExists(String absPath) throws RepositoryException {
+		return target.nodeExists(absPath);
+	}
+
+	public boolean propertyExists(String absPath) throws RepositoryException {
+		return target.propertyExists(absPath);
+	}
+
+	public void move(String srcAbsPath, String destAbsPath) throws RepositoryException {
+		target.move(srcAbsPath, destAbsPath);
+	}
+
+	public void removeItem(String absPath) throws RepositoryException {
+		target.removeItem(absPath);
+	}
+
+	public void save() throws RepositoryException {
+		target.save();
+	}
+
+	public void refresh(boolean keepChanges) throws RepositoryException {
+		target.refresh(keepChanges);
+	}
+
+	public boolean hasPendingChanges() throws RepositoryException {
+		return target.hasPendingChanges();
+	}
+
+	public ValueFactory getValueFactory() throws RepositoryException {
+		return target.getValueFactory();
+	}
+
+	public boolean hasPermission(String absPath, String actions) throws RepositoryException {
+		return target.hasPermission(absPath, actions);
+	}
+
+	public void checkPermission(String absPath, String actions) throws RepositoryException {
+		target.checkPermission(absPath, actions);
+	}
+
+	public boolean hasCapability(String methodName, Object target, Object[] arguments) throws RepositoryException {
+		return this.target.hasCapability(methodName, target, arguments);
+	}
+
+	public ContentHandler getImportContentHandler(String parentAbsPath, int uuidBehavior)
+			throws RepositoryException {
+		return target.getImportContentHandler(parentAbsPath, uuidBehavior);
+	}
+
+	public void importXML(String parentAbsPath, InputStream in, int uuidBehavior) throws IOException,
+			RepositoryException {
+		target.importXML(parentAbsPath, in, uuidBehavior);
+	}
+
+	public void exportSystemView(String absPath, ContentHandler contentHandler, boolean skipBinary,
+			boolean noRecurse) throws SAXException, RepositoryException {
+		target.exportSystemView(absPath, contentHandler, skipBinary, noRecurse);
+	}
+
+	public void exportSystemView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
+			throws IOException, RepositoryException {
+		target.exportSystemView(absPath, out, skipBinary, noRecurse);
+	}
+
+	public void exportDocumentView(String absPath, ContentHandler contentHandler, boolean skipBinary,
+			boolean noRecurse) throws SAXException, RepositoryException {
+		target.exportDocumentView(absPath, contentHandler, skipBinary, noRecurse);
+	}
+
+	public void exportDocumentView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
+			throws IOException, RepositoryException {
+		target.exportDocumentView(absPath, out, skipBinary, noRecurse);
+	}
+
+	public void setNamespacePrefix(String prefix, String uri) throws RepositoryException {
+		target.setNamespacePrefix(prefix, uri);
+	}
+
+	public String[] getNamespacePrefixes() throws RepositoryException {
+		return target.getNamespacePrefixes();
+	}
+
+	public String getNamespaceURI(String prefix) throws RepositoryException {
+		return target.getNamespaceURI(prefix);
+	}
+
+	public String getNamespacePrefix(String uri) throws RepositoryException {
+		return target.getNamespacePrefix(uri);
+	}
+
+	public void logout() {
+		target.logout();
+	}
+
+	public boolean isLive() {
+		return target.isLive();
+	}
+
+	public void addLockToken(String lt) {
+		target.addLockToken(lt);
+	}
+
+	public String[] getLockTokens() {
+		return target.getLockTokens();
+	}
+
+	public void removeLockToken(String lt) {
+		target.removeLockToken(lt);
+	}
+
+	public AccessControlManager getAccessControlManager() throws RepositoryException {
+		return target.getAccessControlManager();
+	}
+
+	public RetentionManager getRetentionManager() throws RepositoryException {
+		return target.getRetentionManager();
+	}
+
+	public String toString() {
+		return target.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package org.springmodules.jcr;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+
+/**
+ * Copy of an observation {@link Event} which stays usable after the
+ * {@link javax.jcr.observation.EventListener#onEvent} call it was delivered in,
+ * for example when the event is processed by another thread.
+ *
+ * @see AsyncEventListener
+ */
+class DetachedEvent implements Event {
+
+	private final int type;
+
+	private final String path;
+
+	private final String userID;
+
+	private final String identifier;
+
+	private final Map info;
+
+	private final String userData;
+
+	private final long date;
+
+	/**
+	 * Copy the given event.
+	 */
+	DetachedEvent(Event event) throws RepositoryException {
+		this.type = event.getType();
+		this.path = event.getPath();
+		this.userID = event.getUserID();
+		this.identifier = event.getIdentifier();
+		Map eventInfo = event.getInfo();
+		this.info = (eventInfo == null ? Collections.EMPTY_MAP : eventInfo);
+		this.userData = event.getUserData();
+		this.date = event.getDate();
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getUserID() {
+		return userID;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public Map getInfo() {
+		return info;
+	}
+
+	public String getUserData() {
+		return userData;
+	}
+
+	public long getDate() {
+		return date;
+	}
+
+	/**
+	 * Events are equal if they describe the same change of the same item.
+	 */
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof DetachedEvent))
+			return false;
+		DetachedEvent other = (DetachedEvent) obj;
+		return type == other.type && (path == null ? other.path == null : path.equals(other.path))
+				&& (identifier == null ? other.identifier == null : identifier.equals(other.identifier));
+	}
+
+	public int hashCode() {
+		int result = 17;
+		result = 37 * result + type;
+		if (path != null)
+			result = 37 * result + path.hashCode();
+		if (identifier != null)
+			result = 37 * result + identifier.hashCode();
+		return result;
+	}
+
+	public String toString() {
+		return "Event[type=" + type + ", path=" + path + "]";
+	}
+}
@@ -0,0 +1,55 @@
+package org.springmodules.jcr;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * {@link EventIterator} over a list of events.
+ *
+ * @see AsyncEventListener
+ */
+class EventListIterator implements EventIterator {
+
+	private final List events;
+
+	private int position;
+
+	EventListIterator(List events) {
+		this.events = events;
+	}
+
+	public Event nextEvent() {
+		if (position >= events.size())
+			throw new NoSuchElementException();
+		return (Event) events.get(position++);
+	}
+
+	public Object next() {
+		return nextEvent();
+	}
+
+	public boolean hasNext() {
+		return position < events.size();
+	}
+
+	public void skip(long skipNum) {
+		if (skipNum < 0 || position + skipNum > events.size())
+			throw new NoSuchElementException();
+		position += (int) skipNum;
+	}
+
+	public long getSize() {
+		return events.size();
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -9,7 +9,9 @@ package org.springmodules.jcr;
 import javax.jcr.observation.Event;
 import javax.jcr.observation.EventListener;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springmodules.jcr.AsyncEventListener.BackpressurePolicy;
 
 /**
  * Transport class used for registering event types inside a workspace. It contains defaults for
@@ -21,13 +23,26 @@ import org.springframework.beans.factory.InitializingBean;
  * <li> uuid = null </li>
  * <li> nodeTypeName = null </li>
  * <li> noLocal = false </li>
+ * <li> asynchronous = false </li>
+ * <li> batchWindow = 0 (no batching) </li>
  * </ol>
  * 
+ * <p/> Asynchronous definitions register an {@link AsyncEventListener} wrapping
+ * the listener (configured through queueCapacity = 1000, dispatchThreads = 1
+ * and backpressurePolicy = BLOCK) so a slow listener does not hold up the
+ * observation dispatcher of the repository. The wrapper is shared by all the
+ * sessions the definition is registered with and stopped when the definition
+ * is destroyed.
+ * 
+ * <p/> A positive batchWindow registers a {@link BatchingEventListener} which
+ * collects the events for the window (or up to batchSize events) and delivers
+ * them to the (possibly asynchronous) listener as one batch.
+ * 
  * @see javax.jcr.observation.ObservationManager#addEventListener(javax.jcr.observation.EventListener, int, java.lang.String, boolean, java.lang.String[], java.lang.String[], boolean)
  * @author Costin Leau
  *
  */
-public class EventListenerDefinition implements InitializingBean {
+public class EventListenerDefinition implements InitializingBean, DisposableBean {
     
     private EventListener listener;
     private int eventTypes = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
@@ -37,6 +52,17 @@ public class EventListenerDefinition implements InitializingBean {
     String[] uuid;
     String[] nodeTypeName;
     boolean noLocal = false;
+
+    private boolean asynchronous = false;
+    private int queueCapacity = 1000;
+    private int dispatchThreads = 1;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private int maxCoalescedBatchSize = 1000;
+    private long batchWindow = 0;
+    private int batchSize = 0;
+    private boolean collapseDescendants = false;
+    private AsyncEventListener asyncListener;
+    private BatchingEventListener batchingListener;
     
     /**
      * @return Returns the absPath.
@@ -122,6 +148,138 @@ public class EventListenerDefinition implements InitializingBean {
     public void setUuid(String[] uuid) {
         this.uuid = uuid;
     }
+    /**
+     * @return Returns the asynchronous.
+     */
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+    /**
+     * @param asynchronous The asynchronous to set.
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+    /**
+     * @return Returns the queueCapacity.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    /**
+     * @param queueCapacity The maximum number of event batches queued for an
+     *            asynchronous listener.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    /**
+     * @return Returns the dispatchThreads.
+     */
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+    /**
+     * @param dispatchThreads The number of threads delivering the events to an
+     *            asynchronous listener.
+     */
+    public void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+    }
+    /**
+     * @return Returns the backpressurePolicy.
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+    /**
+     * @param backpressurePolicy What to do when the queue of an asynchronous
+     *            listener is full.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * @return Returns the maxCoalescedBatchSize.
+     */
+    public int getMaxCoalescedBatchSize() {
+        return maxCoalescedBatchSize;
+    }
+    /**
+     * @param maxCoalescedBatchSize The number of events up to which the
+     *            COALESCE policy merges new events into the last queued batch.
+     */
+    public void setMaxCoalescedBatchSize(int maxCoalescedBatchSize) {
+        this.maxCoalescedBatchSize = maxCoalescedBatchSize;
+    }
+
+    /**
+     * @return Returns the batchWindow.
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+    /**
+     * @param batchWindow The time (in milliseconds) events are collected for
+     *            before they are delivered as one batch; 0 disables batching.
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+    /**
+     * @return Returns the batchSize.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    /**
+     * @param batchSize The number of events after which a batch is delivered
+     *            before the end of the window; 0 means no limit.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    /**
+     * @return Returns the collapseDescendants.
+     */
+    public boolean isCollapseDescendants() {
+        return collapseDescendants;
+    }
+    /**
+     * @param collapseDescendants Whether batches skip the events below the
+     *            path of a node event of the same batch.
+     */
+    public void setCollapseDescendants(boolean collapseDescendants) {
+        this.collapseDescendants = collapseDescendants;
+    }
+
+    /**
+     * Return the listener to register with the observation manager: the
+     * listener itself, wrapped (on first use) into an
+     * {@link AsyncEventListener} for asynchronous definitions and into a
+     * {@link BatchingEventListener} if a batch window is set.
+     * 
+     * @return the listener to register
+     */
+    public synchronized EventListener getObservationListener() {
+        EventListener observationListener = listener;
+        if (asynchronous) {
+            if (asyncListener == null) {
+                asyncListener = new AsyncEventListener(listener, queueCapacity, dispatchThreads, backpressurePolicy);
+                asyncListener.setMaxCoalescedBatchSize(maxCoalescedBatchSize);
+            }
+            observationListener = asyncListener;
+        }
+        if (batchWindow > 0) {
+            if (batchingListener == null)
+                batchingListener = new BatchingEventListener(observationListener, batchWindow, batchSize,
+                        collapseDescendants);
+            observationListener = batchingListener;
+        }
+        return observationListener;
+    }
+
 	/* (non-Javadoc)
 	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
 	 */
@@ -130,4 +288,21 @@ public class EventListenerDefinition implements InitializingBean {
 			throw new IllegalArgumentException("listener is required");
 	}
 
+	/**
+	 * Stop the batching and asynchronous listeners, if they have been created.
+	 * 
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public synchronized void destroy() {
+		// deliver the pending batch before stopping the dispatchers
+		if (batchingListener != null) {
+			batchingListener.destroy();
+			batchingListener = null;
+		}
+		if (asyncListener != null) {
+			asyncListener.destroy();
+			asyncListener = null;
+		}
+	}
+
 }
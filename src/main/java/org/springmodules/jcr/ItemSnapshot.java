@@ -0,0 +1,29 @@
+package org.springmodules.jcr;
+
+/**
+ * Detached, immutable copy of a JCR item. Unlike {@link javax.jcr.Item}
+ * objects, snapshots are not bound to the session they have been read with so
+ * they can be cached, shared between threads and used after the session has
+ * been released. They are not updated when the repository content changes.
+ *
+ * @see NodeSnapshot
+ * @see PropertySnapshot
+ */
+public interface ItemSnapshot {
+
+	/**
+	 * @return the absolute path of the item at the time of the copy
+	 */
+	String getPath();
+
+	/**
+	 * @return the name of the item (the empty string for the root node)
+	 */
+	String getName();
+
+	/**
+	 * @return true if this is a node snapshot, false if it is a property
+	 *         snapshot
+	 */
+	boolean isNode();
+}
@@ -31,6 +31,7 @@ import org.springframework.dao.DataAccessException;
 public abstract class JcrAccessor implements InitializingBean {
 	protected final Log logger = LogFactory.getLog(getClass());
 	private SessionFactory sessionFactory;
+	private JcrMetrics metrics;
 	
 	/**
 	 * @return Returns the sessionFactory.
@@ -46,6 +47,24 @@ public abstract class JcrAccessor implements InitializingBean {
 		this.sessionFactory = sessionFactory;
 	}
 
+	/**
+	 * @return Returns the metrics set on this accessor or, if there are none,
+	 *         the ones of the session factory (may be null).
+	 */
+	public JcrMetrics getMetrics() {
+		return (metrics != null ? metrics : SessionFactoryUtils.getMetrics(sessionFactory));
+	}
+
+	/**
+	 * Set the metrics to report to. By default, the metrics of the
+	 * {@link JcrSessionFactory} (if any) are used.
+	 * 
+	 * @param metrics The metrics to set.
+	 */
+	public void setMetrics(JcrMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Eagerly initialize the session holder provider, creating a default one
 	 * if one is not set.
@@ -0,0 +1,70 @@
+package org.springmodules.jcr;
+
+import org.springframework.dao.DataAccessException;
+
+/**
+ * Instrumentation SPI, notified about template operations, the session life
+ * cycle and exception translation. Set on a {@link JcrSessionFactory}, it is
+ * used by {@link SessionFactoryUtils} and by the {@link JcrTemplate}s of the
+ * factory; adapters to metrics libraries only need to implement this
+ * interface.
+ *
+ * <p/> The methods are called on the data access path and have to be cheap
+ * and thread safe; they must not throw exceptions.
+ *
+ * @see org.springmodules.jcr.support.SimpleJcrMetrics
+ * @see JcrSessionFactory#setMetrics(JcrMetrics)
+ */
+public interface JcrMetrics {
+
+	/**
+	 * Called after a template operation.
+	 *
+	 * @param operation the operation name (the template method, like
+	 *            "getItem", "query" or "execute" for plain callbacks)
+	 * @param durationNanos the duration of the operation
+	 * @param success false if the operation threw an exception
+	 */
+	void operationCompleted(String operation, long durationNanos, boolean success);
+
+	/**
+	 * Called when a new session has been obtained from the session factory.
+	 */
+	void sessionOpened();
+
+	/**
+	 * Called when a session bound to the thread has been used instead of
+	 * opening a new one.
+	 */
+	void sessionReused();
+
+	/**
+	 * Called when a session has been handed back to the session factory.
+	 */
+	void sessionReleased();
+
+	/**
+	 * Called when a session has been detected that was never released.
+	 */
+	void sessionLeaked();
+
+	/**
+	 * Called after a template operation which took longer than the slow
+	 * operation threshold of the template, in addition to
+	 * {@link #operationCompleted(String, long, boolean)}.
+	 *
+	 * @param operation the operation name
+	 * @param durationNanos the duration of the operation
+	 * @param details the workspace and, for queries, the statement, its
+	 *            language and the number of rows read
+	 * @see JcrTemplate#setSlowOperationThreshold(long)
+	 */
+	void slowOperation(String operation, long durationNanos, String details);
+
+	/**
+	 * Called when a JCR exception has been translated.
+	 *
+	 * @param exception the translated exception
+	 */
+	void exceptionTranslated(DataAccessException exception);
+}
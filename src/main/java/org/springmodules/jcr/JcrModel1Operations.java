@@ -1,5 +1,6 @@
 package org.springmodules.jcr;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -40,6 +41,16 @@ public interface JcrModel1Operations {
 	 */
 	public Item getItem(String absPath);
 
+	/**
+	 * Retrieve several items at once, with a single session lookup.
+	 * 
+	 * @param absPaths the item paths
+	 * @return map of the paths (in iteration order of the given collection) to
+	 *         the items; paths without item are mapped to null
+	 * @see javax.jcr.Session#getItem(java.lang.String)
+	 */
+	public Map getItems(Collection absPaths);
+
 	/**
 	 * @see javax.jcr.Session#getNamespacePrefix(java.lang.String)
 	 */
@@ -60,6 +71,18 @@ public interface JcrModel1Operations {
 	 */
 	public Node getNodeByUUID(String uuid);
 
+	/**
+	 * Retrieve several nodes by identifier at once, with a single session
+	 * lookup.
+	 * 
+	 * @param identifiers the node identifiers
+	 * @return map of the identifiers (in iteration order of the given
+	 *         collection) to the nodes; identifiers without node are mapped to
+	 *         null
+	 * @see javax.jcr.Session#getNodeByIdentifier(java.lang.String)
+	 */
+	public Map getNodesByIdentifier(Collection identifiers);
+
 	/**
 	 * @see javax.jcr.Session#getRootNode(); 
 	 */
@@ -132,6 +155,9 @@ public interface JcrModel1Operations {
 	 * LinkedHashSet from Commons collections 3.1 if the package is found. If
 	 * the above fails a HashMap will be returned.
 	 * 
+	 * <p/> If the implementation has been given an executor, the queries are
+	 * executed in parallel, each on its own session.
+	 * 
 	 * @see org.springframework.core.CollectionFactory
 	 * 
 	 * @param list list of queries
@@ -141,4 +167,79 @@ public interface JcrModel1Operations {
 	 */
 	public Map query(final List list, final String language, final boolean ignoreErrors);
 
+	/**
+	 * Execute a JCR-SQL2 query binding the given values to its variables and
+	 * return the matching nodes. It's the same as
+	 * #queryForList(java.lang.String, java.lang.String, java.util.Map)
+	 * 
+	 * @param statement query statement
+	 * @param bindings values of the bind variables, by variable name
+	 * @return list of nodes
+	 */
+	public List queryForList(String statement, Map bindings);
+
+	/**
+	 * Execute a query binding the given values to its variables and return
+	 * the matching nodes. Values are converted to JCR values based on their
+	 * type (Value, String, Boolean, Number, Calendar, Date, Node or Binary);
+	 * every bind variable of the query has to be given a value.
+	 * 
+	 * @see javax.jcr.query.Query#bindValue(java.lang.String, javax.jcr.Value)
+	 * @param statement query statement
+	 * @param language language of the query. If null JCR-SQL2 is assumed.
+	 * @param bindings values of the bind variables, by variable name
+	 * @return list of nodes
+	 */
+	public List queryForList(String statement, String language, Map bindings);
+
+	/**
+	 * Execute a JCR-SQL2 query and map one page of its rows. It's the same as
+	 * #queryForPage(java.lang.String, java.lang.String, long, long, RowMapper)
+	 * 
+	 * @param statement query statement
+	 * @param offset number of rows to skip
+	 * @param limit maximum number of rows to return (negative for no limit)
+	 * @param rowMapper callback mapping each row
+	 * @return list of mapped rows
+	 */
+	public List queryForPage(String statement, long offset, long limit, RowMapper rowMapper);
+
+	/**
+	 * Execute a query and map one page of its rows. The offset and limit are
+	 * passed to the repository so only the requested rows are fetched.
+	 * 
+	 * @see javax.jcr.query.Query#setOffset(long)
+	 * @see javax.jcr.query.Query#setLimit(long)
+	 * @param statement query statement
+	 * @param language language of the query. If null JCR-SQL2 is assumed.
+	 * @param offset number of rows to skip
+	 * @param limit maximum number of rows to return (negative for no limit)
+	 * @param rowMapper callback mapping each row
+	 * @return list of mapped rows
+	 */
+	public List queryForPage(String statement, String language, long offset, long limit, RowMapper rowMapper);
+
+	/**
+	 * Execute a JCR-SQL2 query and return a stream over its mapped rows. It's
+	 * the same as #queryForStream(java.lang.String, java.lang.String,
+	 * RowMapper)
+	 * 
+	 * @param statement query statement
+	 * @param rowMapper callback mapping each row
+	 * @return stream of mapped rows; has to be closed by the caller
+	 */
+	public RowStream queryForStream(String statement, RowMapper rowMapper);
+
+	/**
+	 * Execute a query and return a stream over its rows. Rows are mapped one
+	 * by one while iterating; the session used by the query is kept until
+	 * the stream is closed or exhausted.
+	 * 
+	 * @param statement query statement
+	 * @param language language of the query. If null JCR-SQL2 is assumed.
+	 * @param rowMapper callback mapping each row
+	 * @return stream of mapped rows; has to be closed by the caller
+	 */
+	public RowStream queryForStream(String statement, String language, RowMapper rowMapper);
+
 }
\ No newline at end of file
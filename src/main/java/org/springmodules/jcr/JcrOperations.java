@@ -63,6 +63,51 @@ public interface JcrOperations extends JcrOptionalOperations {
      *             
      */
     public String dump(Node node);
+
+    /**
+     * Dump the contents of the given node to the given output. The tree is
+     * walked iteratively and written as it is traversed so that the memory
+     * consumption does not depend on the size of the tree.
+     * 
+     * @param node
+     *            node to be dumped (null is equivalent to the root node)
+     * @param out
+     *            output to write the node tree to
+     */
+    public void dump(Node node, Appendable out);
+
+    /**
+     * Dump the contents of the given node to the given output, stopping at the
+     * given depth or after the given number of nodes has been written.
+     * 
+     * @param node
+     *            node to be dumped (null is equivalent to the root node)
+     * @param out
+     *            output to write the node tree to
+     * @param maxDepth
+     *            depth (relative to the given node) after which the children
+     *            are not dumped anymore; a negative value means no limit
+     * @param maxNodes
+     *            maximum number of nodes to dump; a negative value means no
+     *            limit
+     */
+    public void dump(Node node, Appendable out, int maxDepth, long maxNodes);
+
+    /**
+     * Copy the node at the given path and its subtree into a detached,
+     * immutable {@link NodeSnapshot} which can be used after the session has
+     * been released and shared between threads.
+     * 
+     * @param absPath
+     *            path of the node to copy
+     * @param depth
+     *            number of levels of child nodes to copy (0 for the node only);
+     *            a negative value copies the whole subtree
+     * @param propertyFilter
+     *            decides which properties are copied (null for all of them)
+     * @return the snapshot
+     */
+    public NodeSnapshot snapshot(String absPath, int depth, PropertyFilter propertyFilter);
     
     /**
      * Renames a node (with the given name) 
@@ -1,10 +1,13 @@
 package org.springmodules.jcr;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.jcr.Credentials;
 import javax.jcr.NamespaceRegistry;
@@ -46,6 +49,11 @@ import org.springmodules.jcr.support.GenericSessionHolderProvider;
  * If 'forceNamespacesRegistration' is true and 'keepNewNamespaces' false, the
  * overwritten namespaces are registered back when the factory is destroyed.
  * 
+ * <p/> By default the event listeners are registered with every session
+ * returned by the factory. With {@link #setSharedObservationSession(boolean)}
+ * they are registered only once, with a dedicated session which is opened on
+ * {@link #afterPropertiesSet()} and closed on {@link #destroy()}.
+ * 
  * @author Costin Leau
  * @author Brian Moseley <bcm@osafoundation.org>
  * 
@@ -73,6 +81,29 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 */
 	private SessionHolderProvider sessionHolderProvider;
 
+	private boolean sharedObservationSession = false;
+
+	private JcrMetrics metrics;
+
+	private SessionLeakDetector leakDetector;
+
+	/**
+	 * query caches of the templates using this factory, weakly referenced
+	 */
+	private final Set<QueryCache> queryCaches = Collections.synchronizedSet(Collections
+			.newSetFromMap(new WeakHashMap<QueryCache, Boolean>()));
+
+	/**
+	 * Session the listeners are registered with in shared observation mode.
+	 */
+	private Session observationSession;
+
+	/**
+	 * Cached hash code (0 if not computed yet). The factory is used as key for
+	 * the thread-bound session resources and thus hashed on every lookup.
+	 */
+	private volatile int hashCode;
+
 	/**
 	 * Empty constructor.
 	 */
@@ -119,6 +150,7 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 */
 	public void setRepository(Repository repository) {
 		this.repository = repository;
+		this.hashCode = 0;
 	}
 
 	/**
@@ -126,6 +158,7 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 */
 	public void setWorkspaceName(String workspaceName) {
 		this.workspaceName = workspaceName;
+		this.hashCode = 0;
 	}
 
 	/**
@@ -133,6 +166,7 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 */
 	public void setCredentials(Credentials credentials) {
 		this.credentials = credentials;
+		this.hashCode = 0;
 	}
 
 	public void afterPropertiesSet() throws Exception {
@@ -153,6 +187,15 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 		}
 		else
 			sessionHolderProvider = sessionHolderProviderManager.getSessionProvider(getRepository());
+
+		if (leakDetector != null && leakDetector.getMetrics() == null)
+			leakDetector.setMetrics(metrics);
+
+		if (sharedObservationSession && eventListeners != null && eventListeners.length > 0) {
+			if (log.isDebugEnabled())
+				log.debug("registering listeners with a dedicated observation session");
+			observationSession = addListeners(repository.login(credentials, workspaceName));
+		}
 	}
 
 	/**
@@ -245,6 +288,12 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 * @see org.springframework.beans.factory.DisposableBean#destroy()
 	 */
 	public void destroy() throws Exception {
+		if (observationSession != null) {
+			// logging out removes the listeners
+			if (observationSession.isLive())
+				observationSession.logout();
+			observationSession = null;
+		}
 		unregisterNamespaces();
 		unregisterNodeTypes();
 	}
@@ -284,7 +333,47 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 * @see org.springmodules.jcr.SessionFactory#getSession()
 	 */
 	public Session getSession() throws RepositoryException {
-		return addListeners(repository.login(credentials, workspaceName));
+		Session session = repository.login(credentials, workspaceName);
+		// the listeners are registered once in shared observation mode
+		return (sharedObservationSession ? session : addListeners(session));
+	}
+
+	/**
+	 * Release the given session, previously obtained through
+	 * {@link #getSession()}. Called by
+	 * {@link SessionFactoryUtils#releaseSession(Session, SessionFactory)} for
+	 * sessions which are not bound to the current thread.
+	 *
+	 * <p/> By default, the session is simply logged out; subclasses can
+	 * override this method to recycle the session instead.
+	 *
+	 * @param session JCR session
+	 */
+	public void releaseSession(Session session) {
+		evictQueries(session);
+		session.logout();
+	}
+
+	/**
+	 * Register the query cache of a template, so that the queries of a
+	 * session are evicted when it is logged out.
+	 */
+	void addQueryCache(QueryCache queryCache) {
+		queryCaches.add(queryCache);
+	}
+
+	/**
+	 * Evict the cached queries of the given session, which is about to be
+	 * logged out.
+	 */
+	void evictQueries(Session session) {
+		if (queryCaches.isEmpty())
+			return;
+		synchronized (queryCaches) {
+			for (QueryCache queryCache : queryCaches) {
+				queryCache.evict(session);
+			}
+		}
 	}
 
 	/**
@@ -309,7 +398,7 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 				log.debug("adding listeners " + Arrays.asList(eventListeners).toString() + " for session " + session);
 
 			for (int i = 0; i < eventListeners.length; i++) {
-				manager.addEventListener(eventListeners[i].getListener(), eventListeners[i].getEventTypes(),
+				manager.addEventListener(eventListeners[i].getObservationListener(), eventListeners[i].getEventTypes(),
 						eventListeners[i].getAbsPath(), eventListeners[i].isDeep(), eventListeners[i].getUuid(),
 						eventListeners[i].getNodeTypeName(), eventListeners[i].isNoLocal());
 			}
@@ -333,6 +422,15 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 	 * @see java.lang.Object#hashCode()
 	 */
 	public int hashCode() {
+		int result = hashCode;
+		if (result == 0) {
+			result = computeHashCode();
+			hashCode = result;
+		}
+		return result;
+	}
+
+	private int computeHashCode() {
 		int result = 17;
 		result = 37 * result + repository.hashCode();
 		// add the optional params (can be null)
@@ -370,6 +468,74 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
 		this.eventListeners = eventListenerDefinitions;
 	}
 
+	/**
+	 * @return Returns the sharedObservationSession.
+	 */
+	public boolean isSharedObservationSession() {
+		return sharedObservationSession;
+	}
+
+	/**
+	 * Indicate whether the event listeners should be registered once, with a
+	 * long-lived session owned by the factory, instead of with every session
+	 * returned by {@link #getSession()}. This keeps the per-request sessions
+	 * light (no listener registration on login, no observation bookkeeping on
+	 * logout) and delivers each event once instead of once per open session.
+	 * 
+	 * <p/> Note that the 'noLocal' flag of the listener definitions then
+	 * refers to the observation session, i.e. the listeners also receive the
+	 * events caused by the sessions of this factory. Default is false.
+	 * 
+	 * @param sharedObservationSession The sharedObservationSession to set.
+	 */
+	public void setSharedObservationSession(boolean sharedObservationSession) {
+		this.sharedObservationSession = sharedObservationSession;
+	}
+
+	/**
+	 * @return Returns the metrics.
+	 */
+	public JcrMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics notified about the sessions of this factory (opened,
+	 * reused, released) and, unless configured otherwise, about the operations
+	 * of the templates using it. Default is none.
+	 * 
+	 * @param metrics The metrics to set.
+	 */
+	public void setMetrics(JcrMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return Returns the leakDetector.
+	 */
+	public SessionLeakDetector getLeakDetector() {
+		return leakDetector;
+	}
+
+	/**
+	 * Set the detector tracking the sessions obtained through
+	 * {@link SessionFactoryUtils} and reporting the ones which are not
+	 * released. Default is none (no tracking).
+	 * 
+	 * @param leakDetector The leakDetector to set.
+	 */
+	public void setLeakDetector(SessionLeakDetector leakDetector) {
+		this.leakDetector = leakDetector;
+	}
+
+	/**
+	 * @return the session the event listeners are registered with in shared
+	 *         observation mode or null if there is none
+	 */
+	protected Session getObservationSession() {
+		return observationSession;
+	}
+
 	/**
 	 * A toString representation of the Repository.
 	 * 
@@ -4,17 +4,28 @@ import static org.springframework.util.Assert.notNull;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import javax.jcr.Binary;
 import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
@@ -24,9 +35,13 @@ import javax.jcr.ValueFactory;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 
 import org.springframework.core.CollectionFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.xml.sax.ContentHandler;
 
 /**
@@ -42,8 +57,24 @@ import org.xml.sax.ContentHandler;
  * @author Costin Leau
  */
 public class JcrTemplate extends JcrAccessor implements JcrOperations {
+
+	/**
+	 * Statements run by the current operation, recorded for the slow operation log.
+	 */
+	private static class StatementTrace {
+		String statement;
+		String language;
+		long rows = -1;
+	}
+
+	private static final ThreadLocal<StatementTrace> statementTrace = new ThreadLocal<StatementTrace>();
+
 	private boolean allowCreate = false;
 	private boolean exposeNativeSession = false;
+	private QueryCache queryCache;
+	private Executor queryExecutor;
+	private boolean bulkFetchByQuery = false;
+	private long slowOperationThreshold = 0;
 
 	/**
 	 */
@@ -77,42 +108,257 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	public void setExposeNativeSession(boolean exposeNativeSession) { this.exposeNativeSession = exposeNativeSession; }
 
+	/**
+	 * @return Returns the maximum number of parsed queries cached by this template (0 if caching is disabled).
+	 */
+	public int getQueryCacheSize() { return (queryCache == null ? 0 : queryCache.getMaxSize()); }
+
+	/**
+	 * Set the maximum number of parsed queries cached by this template. Queries are bound to the session
+	 * that created them so only the queries of thread-bound or pooled sessions are cached; they are
+	 * evicted when the session factory logs the session out. Cached queries are
+	 * reused as they are, so all bind variables have to be supplied on every execution.
+	 * Default is 0 (no caching).
+	 * 
+	 * @param queryCacheSize The queryCacheSize to set.
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCache = (queryCacheSize > 0 ? new QueryCache(queryCacheSize) : null);
+		registerQueryCache();
+	}
+
+	/**
+	 * @see org.springmodules.jcr.JcrAccessor#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		super.afterPropertiesSet();
+		registerQueryCache();
+	}
+
+	/**
+	 * Let the session factory evict the cached queries of the sessions it logs out.
+	 */
+	private void registerQueryCache() {
+		if (queryCache != null && getSessionFactory() instanceof JcrSessionFactory) {
+			((JcrSessionFactory) getSessionFactory()).addQueryCache(queryCache);
+		}
+	}
+
+	/**
+	 * @return Returns the executor used for running multiple queries in parallel.
+	 */
+	public Executor getQueryExecutor() { return queryExecutor; }
+
+	/**
+	 * Set the executor used by {@link #query(List, String, boolean)} to run the statements in
+	 * parallel, each on its own session obtained from the session factory. The worker sessions are
+	 * released when the surrounding transaction completes or, if there is none, as soon as all the
+	 * queries have been executed. Within a transaction (a session bound to the thread), the statements
+	 * are executed one after another on the bound session, which sees the saved changes of the
+	 * transaction. Default is null (statements are executed one after another on the template
+	 * session).
+	 * 
+	 * @param queryExecutor The queryExecutor to set.
+	 */
+	public void setQueryExecutor(Executor queryExecutor) { this.queryExecutor = queryExecutor; }
+
+	/**
+	 * @return Returns whether the bulk fetch methods use a query.
+	 */
+	public boolean isBulkFetchByQuery() { return bulkFetchByQuery; }
+
+	/**
+	 * Set whether {@link #getItems(Collection)} and {@link #getNodesByIdentifier(Collection)}
+	 * look up the nodes with a single JCR-SQL2 query instead of one call per item. This pays off
+	 * for remote repositories, where every call is a round trip. Paths and identifiers the query
+	 * does not find (properties, non-referenceable nodes, same-name sibling indexes) are still
+	 * looked up one by one. Default is false.
+	 * 
+	 * @param bulkFetchByQuery The bulkFetchByQuery to set.
+	 */
+	public void setBulkFetchByQuery(boolean bulkFetchByQuery) { this.bulkFetchByQuery = bulkFetchByQuery; }
+
+	/**
+	 * @return Returns the slow operation threshold in milliseconds (0 if disabled).
+	 */
+	public long getSlowOperationThreshold() { return slowOperationThreshold; }
+
+	/**
+	 * Set the duration (in milliseconds) above which an operation of this template - a callback,
+	 * a query, a save - is logged as a warning, together with the workspace and, for queries, the
+	 * statement, its language and the number of rows read. Slow operations are also reported to
+	 * the {@link JcrMetrics}, if any. Default is 0 (disabled).
+	 * 
+	 * @param slowOperationThreshold The slowOperationThreshold to set.
+	 */
+	public void setSlowOperationThreshold(long slowOperationThreshold) {
+		this.slowOperationThreshold = slowOperationThreshold;
+	}
+
+	/**
+	 * @return Returns the number of queries found in the query cache.
+	 */
+	public long getQueryCacheHits() { return (queryCache == null ? 0 : queryCache.getHits()); }
+
+	/**
+	 * @return Returns the number of queries which had to be parsed while the query cache was enabled.
+	 */
+	public long getQueryCacheMisses() { return (queryCache == null ? 0 : queryCache.getMisses()); }
+
 	/* (non-Javadoc)
 	 * @see org.springmodules.jcr.JcrOperations#execute(org.springmodules.jcr.JcrCallback, boolean)
 	 */
 	@Override
 	public Object execute(JcrCallback action, boolean exposeNativeSession) throws DataAccessException {
-		Session session = getSession();
-		
-		boolean existingTransaction = SessionFactoryUtils.isSessionThreadBound(session, getSessionFactory());
-		if (existingTransaction) {
+		return execute("execute", action, exposeNativeSession);
+	}
+
+	/**
+	 * Execute the action specified by the given action object within a
+	 * Session, reporting it to the {@link JcrMetrics} (if any) under the given
+	 * operation name.
+	 * 
+	 * @param operation the name of the operation
+	 * @param action callback object that specifies the Jcr action
+	 * @param exposeNativeSession whether to expose the native Jcr Session to
+	 *            callback code; the session of a read-only transaction is
+	 *            still wrapped to refuse save calls
+	 * @return a result object returned by the action, or null
+	 * @throws DataAccessException in case of Jcr errors
+	 */
+	protected Object execute(String operation, JcrCallback action, boolean exposeNativeSession)
+			throws DataAccessException {
+		JcrMetrics metrics = getMetrics();
+		boolean traced = (slowOperationThreshold > 0);
+		long start = (metrics != null || traced ? System.nanoTime() : 0);
+		boolean success = false;
+		StatementTrace outerTrace = null;
+		if (traced) {
+			outerTrace = statementTrace.get();
+			statementTrace.set(new StatementTrace());
+		}
+
+		// look up the thread-bound resources once - the holder provides the
+		// session, its bound state and the cached session proxy
+		SessionFactory sessionFactory = getSessionFactory();
+		SessionHolder sessionHolder = SessionFactoryUtils.getBoundSessionHolder(sessionFactory);
+		Session session;
+		if (sessionHolder != null) {
+			session = sessionHolder.getSession();
 			logger.debug("Found thread-bound Session for JcrTemplate");
+			if (metrics != null)
+				metrics.sessionReused();
+		} else {
+			session = getSession();
+			// a new session is bound if transaction synchronization is active
+			sessionHolder = SessionFactoryUtils.getBoundSessionHolder(sessionFactory);
+			if (sessionHolder != null && sessionHolder.getSession() != session)
+				sessionHolder = null;
 		}
+		boolean existingTransaction = (sessionHolder != null);
 
 		try {
-			Session sessionToExpose = (exposeNativeSession ? session : createSessionProxy(session));
+			if (existingTransaction && sessionHolder.hasTimeout()) {
+				// throws TransactionTimedOutException once the transaction deadline has passed
+				sessionHolder.getTimeToLiveInMillis();
+			}
+			Session sessionToExpose;
+			if (!exposeNativeSession)
+				sessionToExpose = getSessionProxy(session, sessionHolder);
+			else if (sessionHolder != null && sessionHolder.isReadOnly())
+				sessionToExpose = new ReadOnlySession(session, sessionHolder);
+			else
+				sessionToExpose = session;
 			Object result = action.doInJcr(sessionToExpose);
 			// TODO: does flushing (session.refresh) should work here?
 			// flushIfNecessary(session, existingTransaction);
+			success = true;
 			return result;
 		} catch (RepositoryException ex) {
-			throw convertJcrAccessException(ex);
+			throw translated(convertJcrAccessException(ex), metrics);
 			// IOException are not converted here
 		} catch (IOException ex) {
 			// use method to decouple the static call
-			throw convertJcrAccessException(ex);
+			throw translated(convertJcrAccessException(ex), metrics);
 		} catch (RuntimeException ex) {
 			// Callback code threw application exception...
-			throw convertJcrAccessException(ex);
+			throw translated(convertJcrAccessException(ex), metrics);
 		} finally {
 			if (existingTransaction) {
 				logger.debug("Not closing pre-bound Jcr Session after JcrTemplate");
 			} else {
-				SessionFactoryUtils.releaseSession(session, getSessionFactory());
+				SessionFactoryUtils.closeSession(session, sessionFactory);
+			}
+			long duration = (start != 0 ? System.nanoTime() - start : 0);
+			if (metrics != null)
+				metrics.operationCompleted(operation, duration, success);
+			if (traced) {
+				StatementTrace trace = statementTrace.get();
+				if (outerTrace != null)
+					statementTrace.set(outerTrace);
+				else
+					statementTrace.remove();
+				if (duration > slowOperationThreshold * 1000000)
+					slowOperation(operation, duration, trace, metrics);
 			}
 		}
 	}
 
+	private void slowOperation(String operation, long durationNanos, StatementTrace trace, JcrMetrics metrics) {
+		StringBuilder details = new StringBuilder();
+		String workspace = null;
+		if (getSessionFactory() instanceof JcrSessionFactory)
+			workspace = ((JcrSessionFactory) getSessionFactory()).getWorkspaceName();
+		details.append("workspace=").append(workspace == null ? "<default>" : workspace);
+		if (trace.statement != null) {
+			details.append(", language=").append(trace.language);
+			details.append(", statement=").append(trace.statement);
+			details.append(", rows=").append(trace.rows < 0 ? "unknown" : String.valueOf(trace.rows));
+		}
+		logger.warn("slow JCR operation '" + operation + "' took " + (durationNanos / 1000000) + " ms [" + details
+				+ "]");
+		if (metrics != null)
+			metrics.slowOperation(operation, durationNanos, details.toString());
+	}
+
+	/**
+	 * Record the given statement for the slow operation log of the current operation.
+	 */
+	private void traceStatement(String statement, String language) {
+		if (slowOperationThreshold <= 0)
+			return;
+		StatementTrace trace = statementTrace.get();
+		if (trace == null)
+			return;
+		if (trace.statement == null) {
+			trace.statement = statement;
+			trace.language = language;
+		} else {
+			// several statements run by the same operation
+			trace.statement = trace.statement + "; " + statement;
+			if (!trace.language.equals(language))
+				trace.language = trace.language + "; " + language;
+		}
+	}
+
+	/**
+	 * Record the number of rows read by the current operation for the slow operation log.
+	 */
+	private void traceRows(long rows) {
+		if (slowOperationThreshold <= 0)
+			return;
+		StatementTrace trace = statementTrace.get();
+		if (trace != null)
+			trace.rows = (trace.rows < 0 ? rows : trace.rows + rows);
+	}
+
+	private static RuntimeException translated(RuntimeException ex, JcrMetrics metrics) {
+		if (metrics != null && ex instanceof DataAccessException)
+			metrics.exceptionTranslated((DataAccessException) ex);
+		return ex;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.springmodules.jcr.JcrOperations#execute(org.springmodules.jcr.JcrCallback)
 	 */
@@ -144,7 +390,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void addLockToken(final String lock) {
-		execute(new JcrCallback() {
+		execute("addLockToken", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -162,7 +408,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public Object getAttribute(final String name) {
-		return execute(new JcrCallback() {
+		return execute("getAttribute", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -179,7 +425,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String[] getAttributeNames() {
-		return (String[]) execute(new JcrCallback() {
+		return (String[]) execute("getAttributeNames", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -196,7 +442,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public ContentHandler getImportContentHandler(final String parentAbsPath, final int uuidBehavior) {
-		return (ContentHandler) execute(new JcrCallback() {
+		return (ContentHandler) execute("getImportContentHandler", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -213,7 +459,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public Item getItem(final String absPath) {
-		return (Item) execute(new JcrCallback() {
+		return (Item) execute("getItem", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -225,12 +471,43 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 		}, true);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#getItems(java.util.Collection)
+	 */
+	@Override
+	public Map getItems(final Collection absPaths) {
+		notNull(absPaths, "absPaths must not be null");
+		return (Map) execute("getItems", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				Map<String, Item> items = createResultMap(absPaths);
+				if (bulkFetchByQuery && items.size() > 1)
+					fetchByQuery(session, items, true);
+
+				for (Map.Entry<String, Item> entry : items.entrySet()) {
+					if (entry.getValue() == null) {
+						try {
+							entry.setValue(session.getItem(entry.getKey()));
+						} catch (PathNotFoundException ex) {
+							// leave the entry empty
+						}
+					}
+				}
+				return items;
+			}
+		}, true);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.springmodules.jcr.JcrOptionalOperations#getLockTokens()
 	 */
 	@Override
 	public String[] getLockTokens() {
-		return (String[]) execute(new JcrCallback() {
+		return (String[]) execute("getLockTokens", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -247,7 +524,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String getNamespacePrefix(final String uri) {
-		return (String) execute(new JcrCallback() {
+		return (String) execute("getNamespacePrefix", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -264,7 +541,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String[] getNamespacePrefixes() {
-		return (String[]) execute(new JcrCallback() {
+		return (String[]) execute("getNamespacePrefixes", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -281,7 +558,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String getNamespaceURI(final String prefix) {
-		return (String) execute(new JcrCallback() {
+		return (String) execute("getNamespaceURI", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -298,7 +575,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public Node getNodeByUUID(final String uuid) {
-		return (Node) execute(new JcrCallback() {
+		return (Node) execute("getNodeByUUID", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -310,12 +587,86 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 		}, true);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#getNodesByIdentifier(java.util.Collection)
+	 */
+	@Override
+	public Map getNodesByIdentifier(final Collection identifiers) {
+		notNull(identifiers, "identifiers must not be null");
+		return (Map) execute("getNodesByIdentifier", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				Map<String, Item> nodes = createResultMap(identifiers);
+				if (bulkFetchByQuery && nodes.size() > 1)
+					fetchByQuery(session, nodes, false);
+
+				for (Map.Entry<String, Item> entry : nodes.entrySet()) {
+					if (entry.getValue() == null) {
+						try {
+							entry.setValue(session.getNodeByIdentifier(entry.getKey()));
+						} catch (ItemNotFoundException ex) {
+							// leave the entry empty
+						}
+					}
+				}
+				return nodes;
+			}
+		}, true);
+	}
+
+	private static Map<String, Item> createResultMap(Collection keys) {
+		Map<String, Item> map = new LinkedHashMap<String, Item>(keys.size() * 4 / 3 + 1);
+		for (Iterator iter = keys.iterator(); iter.hasNext();) {
+			map.put((String) iter.next(), null);
+		}
+		return map;
+	}
+
+	/**
+	 * Look up the nodes for the keys of the given map with a single JCR-SQL2
+	 * query and put them into the map. Keys the query does not find (like
+	 * property paths or non-referenceable nodes) are left empty.
+	 * 
+	 * @param byPath whether the keys are paths or identifiers
+	 */
+	private void fetchByQuery(Session session, Map<String, Item> items, boolean byPath) throws RepositoryException {
+		StringBuilder statement = new StringBuilder("SELECT * FROM [nt:base] AS n WHERE ");
+		boolean first = true;
+		for (String key : items.keySet()) {
+			if (!first)
+				statement.append(" OR ");
+			first = false;
+			String literal = "'" + key.replace("'", "''") + "'";
+			if (byPath)
+				statement.append("ISSAMENODE(n, [").append(literal).append("])");
+			else
+				statement.append("n.[jcr:uuid] = ").append(literal);
+		}
+
+		QueryManager manager = session.getWorkspace().getQueryManager();
+		traceStatement(statement.toString(), Query.JCR_SQL2);
+		long rows = 0;
+		for (NodeIterator iter = manager.createQuery(statement.toString(), Query.JCR_SQL2).execute().getNodes(); iter
+				.hasNext();) {
+			Node node = iter.nextNode();
+			String key = (byPath ? node.getPath() : node.getIdentifier());
+			if (items.containsKey(key))
+				items.put(key, node);
+			rows++;
+		}
+		traceRows(rows);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.springmodules.jcr.JcrModel1Operations#getRootNode()
 	 */
 	@Override
 	public Node getRootNode() {
-		return (Node) execute(new JcrCallback() {
+		return (Node) execute("getRootNode", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -332,7 +683,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String getUserID() {
-		return (String) execute(new JcrCallback() {
+		return (String) execute("getUserID", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -349,7 +700,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public ValueFactory getValueFactory() {
-		return (ValueFactory) execute(new JcrCallback() {
+		return (ValueFactory) execute("getValueFactory", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -366,7 +717,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public boolean hasPendingChanges() {
-		return ((Boolean) execute(new JcrCallback() {
+		return ((Boolean) execute("hasPendingChanges", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -383,7 +734,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void importXML(final String parentAbsPath, final InputStream in, final int uuidBehavior) {
-		execute(new JcrCallback() {
+		execute("importXML", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -405,7 +756,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void refresh(final boolean keepChanges) {
-		execute(new JcrCallback() {
+		execute("refresh", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -423,7 +774,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void removeLockToken(final String lt) {
-		execute(new JcrCallback() {
+		execute("removeLockToken", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -441,7 +792,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void rename(final Node node, final String newName) {
-		execute(new JcrCallback() {
+		execute("rename", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -458,7 +809,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 * @see org.springmodules.jcr.JcrModel2Operations#setNamespacePrefix(java.lang.String, java.lang.String)
 	 */
 	public void setNamespacePrefix(final String prefix, final String uri) {
-		execute(new JcrCallback() {
+		execute("setNamespacePrefix", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -476,7 +827,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public boolean isLive() {
-		return ((Boolean) execute(new JcrCallback() {
+		return ((Boolean) execute("isLive", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -493,7 +844,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public boolean itemExists(final String absPath) {
-		return ((Boolean) execute(new JcrCallback() {
+		return ((Boolean) execute("itemExists", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -510,7 +861,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void move(final String srcAbsPath, final String destAbsPath) {
-		execute(new JcrCallback() {
+		execute("move", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -528,7 +879,8 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public void save() {
-		execute(new JcrCallback() {
+		checkWritable(SessionFactoryUtils.getBoundSessionHolder(getSessionFactory()));
+		execute("save", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -546,7 +898,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	@Override
 	public String dump(final Node node) {
-		return (String) execute(new JcrCallback() {
+		return (String) execute("dump", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -560,8 +912,54 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 		}, true);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrOperations#dump(javax.jcr.Node, java.lang.Appendable)
+	 */
+	@Override
+	public void dump(Node node, Appendable out) {
+		dump(node, out, -1, -1);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrOperations#dump(javax.jcr.Node, java.lang.Appendable, int, long)
+	 */
+	@Override
+	public void dump(final Node node, final Appendable out, final int maxDepth, final long maxNodes) {
+		notNull(out, "out must not be null");
+		execute("dump", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException, IOException {
+				Node nd = node;
+				if (nd == null) { nd = session.getRootNode(); }
+				dumpNode(nd, out, maxDepth, maxNodes);
+				return null;
+			}
+		}, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrOperations#snapshot(java.lang.String, int, org.springmodules.jcr.PropertyFilter)
+	 */
+	@Override
+	public NodeSnapshot snapshot(final String absPath, final int depth, final PropertyFilter propertyFilter) {
+		return (NodeSnapshot) execute("snapshot", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				return new NodeSnapshot(session.getNode(absPath), depth, propertyFilter);
+			}
+		}, true);
+	}
+
 	/**
-	 * Recursive method for dumping a node. This method is separate to avoid the
+	 * Method for dumping a node. This method is separate to avoid the
 	 * overhead of searching and opening/closing JCR sessions.
 	 * 
 	 * @param node
@@ -570,31 +968,75 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 */
 	protected String dumpNode(Node node) throws RepositoryException {
 		StringBuilder builder = new StringBuilder();
-		builder.append(node.getPath());
+		try {
+			dumpNode(node, builder, -1, -1);
+		} catch (IOException ex) {
+			// cannot happen with a StringBuilder
+			throw new IllegalStateException(ex);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes the given node tree to the given output. The tree is walked
+	 * depth-first with an explicit stack of child iterators (one per level)
+	 * instead of recursion, so deep trees cannot overflow the call stack and
+	 * nothing is buffered besides the output itself.
+	 * 
+	 * @param node root of the tree to dump
+	 * @param out output
+	 * @param maxDepth maximum depth relative to node (negative for no limit)
+	 * @param maxNodes maximum number of nodes to write (negative for no limit)
+	 * @throws RepositoryException
+	 * @throws IOException
+	 */
+	protected void dumpNode(Node node, Appendable out, int maxDepth, long maxNodes) throws RepositoryException,
+			IOException {
+		if (maxNodes == 0) { return; }
+
+		writeNode(node, out);
+		long count = 1;
+		if (count == maxNodes || maxDepth == 0) { return; }
+
+		LinkedList<NodeIterator> stack = new LinkedList<NodeIterator>();
+		stack.addFirst(node.getNodes());
+
+		while (!stack.isEmpty()) {
+			NodeIterator nodes = stack.getFirst();
+			if (!nodes.hasNext()) {
+				stack.removeFirst();
+				continue;
+			}
+
+			Node child = nodes.nextNode();
+			writeNode(child, out);
+			if (++count == maxNodes) { return; }
+
+			// the depth of the child is the number of iterators on the stack
+			if (maxDepth < 0 || stack.size() < maxDepth) {
+				stack.addFirst(child.getNodes());
+			}
+		}
+	}
+
+	private void writeNode(Node node, Appendable out) throws RepositoryException, IOException {
+		out.append(node.getPath());
 
 		PropertyIterator properties = node.getProperties();
 		while (properties.hasNext()) {
 			Property property = properties.nextProperty();
-			builder.append(property.getPath() + "=");
+			out.append(property.getPath()).append('=');
 			if (property.getDefinition().isMultiple()) {
 				Value[] values = property.getValues();
 				for (int i = 0; i < values.length; i++) {
-					if (i > 0) { builder.append(","); }
-					builder.append(values[i].getString());
+					if (i > 0) { out.append(','); }
+					out.append(values[i].getString());
 				}
 			} else {
-				builder.append(property.getString());
+				out.append(property.getString());
 			}
-			builder.append("\n");
-		}
-
-		NodeIterator nodes = node.getNodes();
-		while (nodes.hasNext()) {
-			Node child = nodes.nextNode();
-			builder.append(dumpNode(child));
+			out.append('\n');
 		}
-		return builder.toString();
-
 	}
 
 	/* (non-Javadoc)
@@ -606,7 +1048,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 			throw new IllegalArgumentException("node can't be null");
 		}
 		
-		return (QueryResult) execute(new JcrCallback() {
+		return (QueryResult) execute("query", new JcrCallback() {
 			/**
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
 			 */
@@ -618,6 +1060,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 				if (debug) { logger.debug("retrieved manager " + manager); }
 				Query query = manager.getQuery(node);
 				if (debug) { logger.debug("created query " + query); }
+				if (slowOperationThreshold > 0) { traceStatement(query.getStatement(), query.getLanguage()); }
 				return query.execute();
 			}
 		}, true);
@@ -637,7 +1080,7 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	@Override
 	public QueryResult query(final String statement, final String language) {
 		notNull(statement, "statement can't be null");
-		return (QueryResult) execute(new JcrCallback() {
+		return (QueryResult) execute("query", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -650,11 +1093,9 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 				if (lang == null) { lang = Query.XPATH; }
 				boolean debug = logger.isDebugEnabled();
 
-				// get query manager
-				QueryManager manager = session.getWorkspace().getQueryManager();
-				if (debug) { logger.debug("retrieved manager " + manager); }
-				Query query = manager.createQuery(statement, lang);
+				Query query = createQuery(session, statement, lang);
 				if (debug) { logger.debug("created query " + query); }
+				traceStatement(statement, lang);
 				return query.execute();
 			}
 		}, true);
@@ -676,7 +1117,13 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 		if (list == null)
 			throw new IllegalArgumentException("list can't be null");
 
-		return (Map) execute(new JcrCallback() {
+		// the worker sessions can't see the saved changes of a surrounding transaction
+		if (queryExecutor != null && list.size() > 1
+				&& SessionFactoryUtils.getBoundSessionHolder(getSessionFactory()) == null) {
+			return queryInParallel(list, language, ignoreErrors);
+		}
+
+		return (Map) execute("query", new JcrCallback() {
 			
 			/* (non-Javadoc)
 			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
@@ -697,8 +1144,9 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 				for (Iterator iter = list.iterator(); iter.hasNext();) {
 					String statement = (String) iter.next();
 
-					Query query = manager.createQuery(statement, lang);
+					Query query = createQuery(session, manager, statement, lang);
 					if (debug) { logger.debug("created query " + query); }
+					traceStatement(statement, lang);
 
 					QueryResult result;
 					try {
@@ -717,6 +1165,385 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 		}, true);
 	}
 
+	/**
+	 * Runs the given statements in parallel using the query executor. Each statement is executed on
+	 * its own session; the results are returned in the order of the statements.
+	 * 
+	 * @see #query(List, String, boolean)
+	 */
+	private Map queryInParallel(List list, String language, boolean ignoreErrors) {
+		final String lang = (language == null ? Query.XPATH : language);
+		final WorkerSessions sessions = new WorkerSessions(list.size());
+		List<FutureTask<QueryResult>> tasks = new ArrayList<FutureTask<QueryResult>>(list.size());
+
+		boolean completed = false;
+		try {
+			for (Iterator iter = list.iterator(); iter.hasNext();) {
+				final String statement = (String) iter.next();
+				FutureTask<QueryResult> task = new FutureTask<QueryResult>(new Callable<QueryResult>() {
+					public QueryResult call() throws Exception {
+						Session session = SessionFactoryUtils.openSession(getSessionFactory());
+						if (!sessions.add(session)) {
+							// the query has already failed: nobody else will release the session
+							SessionFactoryUtils.releaseSession(session, getSessionFactory());
+							throw new CancellationException("parallel query already completed");
+						}
+						Query query = createQuery(session, statement, lang);
+						try {
+							return query.execute();
+						} catch (RepositoryException ex) {
+							throw new QueryExecutionException(ex);
+						}
+					}
+				});
+				tasks.add(task);
+				queryExecutor.execute(task);
+			}
+
+			Map map = CollectionFactory.createLinkedMapIfPossible(list.size());
+			for (int i = 0; i < tasks.size(); i++) {
+				map.put(list.get(i), getQueryResult(tasks.get(i), ignoreErrors));
+			}
+			completed = true;
+			return map;
+		} finally {
+			if (completed && TransactionSynchronizationManager.isSynchronizationActive()) {
+				// keep the sessions (and thus the results) alive until the transaction ends
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					public void afterCompletion(int status) {
+						sessions.release();
+					}
+				});
+			} else {
+				if (!completed) {
+					// skip the tasks not started yet; the running ones release their own session
+					for (FutureTask<QueryResult> task : tasks) {
+						task.cancel(false);
+					}
+				}
+				sessions.release();
+			}
+		}
+	}
+
+	private QueryResult getQueryResult(FutureTask<QueryResult> task, boolean ignoreErrors) {
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new JcrSystemException("interrupted while waiting for query results", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof QueryExecutionException) {
+				if (ignoreErrors) { return null; }
+				throw convertJcrAccessException((RepositoryException) cause.getCause());
+			}
+			if (cause instanceof RepositoryException) { throw convertJcrAccessException((RepositoryException) cause); }
+			if (cause instanceof RuntimeException) { throw convertJcrAccessException((RuntimeException) cause); }
+			if (cause instanceof Error) { throw (Error) cause; }
+			throw new JcrSystemException(cause);
+		}
+	}
+
+	/**
+	 * Sessions opened by the workers of a parallel query. Once released, no
+	 * session can be added anymore: a worker still running at that point
+	 * releases its own session.
+	 */
+	private class WorkerSessions {
+
+		private final List<Session> sessions;
+
+		private boolean released;
+
+		WorkerSessions(int size) {
+			sessions = new ArrayList<Session>(size);
+		}
+
+		/**
+		 * @return false if the sessions have already been released
+		 */
+		synchronized boolean add(Session session) {
+			if (released)
+				return false;
+			sessions.add(session);
+			return true;
+		}
+
+		synchronized void release() {
+			released = true;
+			for (Session session : sessions) {
+				SessionFactoryUtils.releaseSession(session, getSessionFactory());
+			}
+			sessions.clear();
+		}
+	}
+
+	/**
+	 * Marks a failure of Query#execute (as opposed to a failure while creating the query) which
+	 * can be ignored.
+	 */
+	private static class QueryExecutionException extends Exception {
+		private QueryExecutionException(RepositoryException cause) {
+			super(cause);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForList(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public List queryForList(String statement, Map bindings) {
+		return queryForList(statement, Query.JCR_SQL2, bindings);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForList(java.lang.String, java.lang.String, java.util.Map)
+	 */
+	@Override
+	public List queryForList(final String statement, final String language, final Map bindings) {
+		notNull(statement, "statement can't be null");
+		return (List) execute("queryForList", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				String lang = language;
+				if (lang == null) { lang = Query.JCR_SQL2; }
+
+				Query query = createQuery(session, statement, lang);
+				if (logger.isDebugEnabled()) { logger.debug("created query " + query); }
+				bindValues(session, query, bindings);
+				traceStatement(statement, lang);
+
+				NodeIterator nodes = query.execute().getNodes();
+				List list = new ArrayList();
+				while (nodes.hasNext()) {
+					list.add(nodes.nextNode());
+				}
+				traceRows(list.size());
+				return list;
+			}
+		}, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForPage(java.lang.String, long, long, org.springmodules.jcr.RowMapper)
+	 */
+	@Override
+	public List queryForPage(String statement, long offset, long limit, RowMapper rowMapper) {
+		return queryForPage(statement, Query.JCR_SQL2, offset, limit, rowMapper);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForPage(java.lang.String, java.lang.String, long, long, org.springmodules.jcr.RowMapper)
+	 */
+	@Override
+	public List queryForPage(final String statement, final String language, final long offset, final long limit,
+			final RowMapper rowMapper) {
+		notNull(statement, "statement can't be null");
+		notNull(rowMapper, "rowMapper can't be null");
+		return (List) execute("queryForPage", new JcrCallback() {
+			
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				String lang = language;
+				if (lang == null) { lang = Query.JCR_SQL2; }
+
+				// limit and offset cannot be reset so the query is never taken from the cache
+				Query query = session.getWorkspace().getQueryManager().createQuery(statement, lang);
+				if (offset > 0) { query.setOffset(offset); }
+				if (limit >= 0) { query.setLimit(limit); }
+				if (logger.isDebugEnabled()) { logger.debug("created query " + query); }
+				traceStatement(statement, lang);
+
+				RowIterator rows = query.execute().getRows();
+				List list = (limit >= 0 && limit < 1024 ? new ArrayList((int) limit) : new ArrayList());
+				int rowNum = 0;
+				// don't rely on the repository for enforcing the limit
+				while ((limit < 0 || rowNum < limit) && rows.hasNext()) {
+					list.add(rowMapper.mapRow(rows.nextRow(), rowNum++));
+				}
+				traceRows(list.size());
+				return list;
+			}
+		}, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForStream(java.lang.String, org.springmodules.jcr.RowMapper)
+	 */
+	@Override
+	public RowStream queryForStream(String statement, RowMapper rowMapper) {
+		return queryForStream(statement, Query.JCR_SQL2, rowMapper);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springmodules.jcr.JcrModel1Operations#queryForStream(java.lang.String, java.lang.String, org.springmodules.jcr.RowMapper)
+	 */
+	@Override
+	public RowStream queryForStream(String statement, String language, RowMapper rowMapper) {
+		notNull(statement, "statement can't be null");
+		notNull(rowMapper, "rowMapper can't be null");
+		String lang = (language == null ? Query.JCR_SQL2 : language);
+
+		Session session = getSession();
+		try {
+			Query query = createQuery(session, statement, lang);
+			if (logger.isDebugEnabled()) { logger.debug("created query " + query); }
+			return new RowStream(query.execute().getRows(), rowMapper, session, this);
+		} catch (RepositoryException ex) {
+			SessionFactoryUtils.releaseSession(session, getSessionFactory());
+			throw convertJcrAccessException(ex);
+		} catch (RuntimeException ex) {
+			SessionFactoryUtils.releaseSession(session, getSessionFactory());
+			throw convertJcrAccessException(ex);
+		}
+	}
+
+	/**
+	 * Create the query for the given statement. If the query cache is enabled, the parsed query
+	 * is reused for further calls with the same session, statement and language.
+	 * 
+	 * @param session session used for the query
+	 * @param statement query statement
+	 * @param language query language
+	 * @return the query
+	 * @throws RepositoryException
+	 */
+	protected Query createQuery(Session session, String statement, String language) throws RepositoryException {
+		return createQuery(session, null, statement, language);
+	}
+
+	/**
+	 * Create the query for the given statement using the given query manager (retrieved from the
+	 * session if null and the query is not cached).
+	 */
+	private Query createQuery(Session session, QueryManager manager, String statement, String language)
+			throws RepositoryException {
+		QueryCache cache = (queryCache != null && isReusedSession(session) ? queryCache : null);
+		if (cache != null) {
+			Query query = cache.get(session, language, statement);
+			if (query != null) { return query; }
+		}
+
+		QueryManager mgr = manager;
+		if (mgr == null) {
+			mgr = session.getWorkspace().getQueryManager();
+			if (logger.isDebugEnabled()) { logger.debug("retrieved manager " + mgr); }
+		}
+		Query query = mgr.createQuery(statement, language);
+
+		if (cache != null) { cache.put(session, language, statement, query); }
+		return query;
+	}
+
+	/**
+	 * Queries are cached only for sessions which outlive the current operation: sessions bound to
+	 * the thread or pooled ones.
+	 */
+	private boolean isReusedSession(Session session) {
+		if (getSessionFactory() instanceof PooledJcrSessionFactory) { return true; }
+		SessionHolder sessionHolder = SessionFactoryUtils.getBoundSessionHolder(getSessionFactory());
+		return (sessionHolder != null && sessionHolder.getSession() == session);
+	}
+
+	/**
+	 * Binds the given values to the query variables. Since cached queries keep their previous
+	 * bindings, every variable declared by the query has to be given a value.
+	 * 
+	 * @param session
+	 * @param query
+	 * @param bindings variable name to value map (can be null)
+	 * @throws RepositoryException
+	 */
+	private void bindValues(Session session, Query query, Map bindings) throws RepositoryException {
+		String[] names = query.getBindVariableNames();
+		if (names.length == 0 && (bindings == null || bindings.isEmpty())) { return; }
+
+		ValueFactory factory = session.getValueFactory();
+		for (int i = 0; i < names.length; i++) {
+			if (bindings == null || !bindings.containsKey(names[i])) {
+				throw new IllegalArgumentException("no value given for bind variable [" + names[i] + "]");
+			}
+		}
+		if (bindings != null) {
+			for (Iterator iter = bindings.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				query.bindValue((String) entry.getKey(), createValue(factory, entry.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Converts the given object into a JCR value.
+	 */
+	private Value createValue(ValueFactory factory, Object value) throws RepositoryException {
+		if (value instanceof Value) { return (Value) value; }
+		if (value instanceof String) { return factory.createValue((String) value); }
+		if (value instanceof Boolean) { return factory.createValue(((Boolean) value).booleanValue()); }
+		if (value instanceof Double || value instanceof Float) {
+			return factory.createValue(((Number) value).doubleValue());
+		}
+		if (value instanceof BigDecimal) { return factory.createValue((BigDecimal) value); }
+		if (value instanceof Number) { return factory.createValue(((Number) value).longValue()); }
+		if (value instanceof Calendar) { return factory.createValue((Calendar) value); }
+		if (value instanceof Date) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTime((Date) value);
+			return factory.createValue(calendar);
+		}
+		if (value instanceof Node) { return factory.createValue((Node) value); }
+		if (value instanceof Binary) { return factory.createValue((Binary) value); }
+		throw new IllegalArgumentException("cannot bind value of type " + (value == null ? null : value.getClass()));
+	}
+
+	/**
+	 * Return the logout-suppressing proxy to expose for the given session. The
+	 * proxy of a thread-bound session is created once and kept on the session
+	 * holder so callback-heavy code does not allocate a new one on each call.
+	 * 
+	 * @param session the Jcr Session to create a proxy for
+	 * @param sessionHolder the holder of the thread-bound session or null if the
+	 *            session is not thread-bound
+	 * @return the Session proxy
+	 */
+	private Session getSessionProxy(Session session, SessionHolder sessionHolder) {
+		if (sessionHolder == null)
+			return createSessionProxy(session);
+
+		Session proxy = sessionHolder.getSessionProxy();
+		if (proxy == null) {
+			proxy = createSessionProxy(session);
+			if (proxy instanceof LogoutSuppressingSession)
+				((LogoutSuppressingSession) proxy).sessionHolder = sessionHolder;
+			sessionHolder.setSessionProxy(proxy);
+		}
+		return proxy;
+	}
+
+	/**
+	 * Refuse to save the session of a read-only, expired or rollback-only
+	 * transaction.
+	 */
+	private static void checkWritable(SessionHolder sessionHolder) {
+		if (sessionHolder == null)
+			return;
+		if (sessionHolder.isReadOnly())
+			throw new InvalidDataAccessApiUsageException("session of a read-only transaction can't be saved");
+		if (sessionHolder.hasTimeout()) {
+			// throws TransactionTimedOutException once the transaction deadline has passed
+			sessionHolder.getTimeToLiveInMillis();
+		}
+		if (sessionHolder.isRollbackOnly())
+			throw new InvalidDataAccessApiUsageException("session of a rollback-only transaction can't be saved");
+	}
+
 	/**
 	 * Create a logout-suppressing proxy for the given JCR Session. 
 	 * 
@@ -725,52 +1552,51 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 	 * @see javax.jcr.Session#logout()
 	 */
 	protected Session createSessionProxy(Session session) {
-		return (Session) Proxy.newProxyInstance(
-				getClass().getClassLoader(),
-				new Class[] { Session.class },
-				new LogoutSuppressingInvocationHandler(session));
+		return new LogoutSuppressingSession(session);
 	}
 
 	/**
-	 * Invocation handler that suppresses logout calls on JCR Session.
+	 * Session wrapper that suppresses logout calls on JCR Session and save
+	 * calls on the session of a read-only transaction.
 	 * 
-	 * @see javax.jcr.Sesion#logout
+	 * @see javax.jcr.Session#logout
 	 */
-	private class LogoutSuppressingInvocationHandler implements InvocationHandler {
-		private final Session target;
+	private static class LogoutSuppressingSession extends DelegatingSession {
+
+		/** holder of the thread-bound session, null otherwise */
+		private SessionHolder sessionHolder;
 
-		public LogoutSuppressingInvocationHandler(Session target) {
-			this.target = target;
+		public LogoutSuppressingSession(Session target) {
+			super(target);
 		}
 
-		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-			
-			// Invocation on Session interface (or vendor-specific extension) coming in...
-			String methodName = method.getName();
-			if ("equals".equals(methodName)) {
-				// Only consider equal when proxies are identical.
-				return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
-			} else if ("hashCode".equals(methodName)) {
-				// Use hashCode of session proxy.
-				return new Integer(hashCode());
-			} else if ("logout".equals(methodName)) {
-				// Handle close method: suppress, not valid.
-				return null;
-			}
+		public void logout() {
+			// Handle close method: suppress, not valid.
+		}
 
-			// Invoke method on target Session.
-			try {
-				Object retVal = method.invoke(this.target, args);
+		public void save() throws RepositoryException {
+			checkWritable(sessionHolder);
+			super.save();
+		}
+	}
 
-				// TODO: watch out for Query returned
-				/*
-				 * if (retVal instanceof Query) { prepareQuery(((Query)
-				 * retVal)); }
-				 */
-				return retVal;
-			} catch (InvocationTargetException ex) {
-				throw ex.getTargetException();
-			}
+	/**
+	 * Session wrapper exposed instead of the native session of a read-only
+	 * transaction: no XA branch holds its changes, so a save would be
+	 * persisted right away.
+	 */
+	private static class ReadOnlySession extends DelegatingSession {
+
+		private final SessionHolder sessionHolder;
+
+		public ReadOnlySession(Session target, SessionHolder sessionHolder) {
+			super(target);
+			this.sessionHolder = sessionHolder;
+		}
+
+		public void save() throws RepositoryException {
+			checkWritable(sessionHolder);
+			super.save();
 		}
 	}
 
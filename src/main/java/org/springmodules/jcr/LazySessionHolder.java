@@ -0,0 +1,23 @@
+package org.springmodules.jcr;
+
+/**
+ * Placeholder bound to the thread instead of a session holder by code which
+ * defines the session scope (like
+ * {@link org.springmodules.jcr.support.OpenSessionInViewFilter}) but does
+ * not need the session itself. The first call to
+ * {@link SessionFactoryUtils#doGetSession(SessionFactory, boolean)} opens the
+ * session and binds the holder returned by
+ * {@link SessionFactory#getSessionHolder(javax.jcr.Session)} in place of the
+ * placeholder; if no code asks for a session, none is ever opened.
+ * 
+ * <p/> The code which bound the placeholder is responsible for unbinding the
+ * resource at the end of the scope and for releasing its session, if the
+ * unbound holder {@link SessionHolder#hasSession() has one}.
+ * 
+ */
+public class LazySessionHolder extends SessionHolder {
+
+    public LazySessionHolder() {
+        super(null);
+    }
+}
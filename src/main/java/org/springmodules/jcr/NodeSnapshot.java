@@ -0,0 +1,201 @@
+package org.springmodules.jcr;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Detached, immutable copy of a JCR node, its properties and, optionally, its
+ * subtree down to a given depth. Snapshots can be read after the session has
+ * been released and shared between threads.
+ *
+ * <p/> Names are interned, so the many copies of the same property and child
+ * names share one string. Child nodes are only copied within the requested
+ * depth; {@link #isChildrenLoaded()} tells whether the children of a node are
+ * part of the snapshot.
+ *
+ * @see PropertySnapshot
+ * @see JcrTemplate#snapshot(String, int, PropertyFilter)
+ */
+public final class NodeSnapshot implements ItemSnapshot, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String path;
+
+	private final String name;
+
+	private final String identifier;
+
+	private final String primaryNodeType;
+
+	private final String[] mixinNodeTypes;
+
+	private final Map<String, PropertySnapshot> properties;
+
+	/** child nodes by name (with index for same-name siblings) or null if not loaded */
+	private final Map<String, NodeSnapshot> children;
+
+	/**
+	 * Copy the given node and all its properties, without its children.
+	 *
+	 * @param node the node to copy
+	 * @throws RepositoryException if the node can't be read
+	 */
+	public NodeSnapshot(Node node) throws RepositoryException {
+		this(node, 0, null);
+	}
+
+	/**
+	 * Copy the given node and its subtree.
+	 *
+	 * @param node the node to copy
+	 * @param depth the number of levels of child nodes to copy (0 for the node
+	 *            only); a negative depth copies the whole subtree
+	 * @param filter decides which properties are copied; null copies all of
+	 *            them
+	 * @throws RepositoryException if the nodes can't be read
+	 */
+	public NodeSnapshot(Node node, int depth, PropertyFilter filter) throws RepositoryException {
+		this.path = node.getPath();
+		this.name = node.getName().intern();
+		this.identifier = node.getIdentifier();
+		this.primaryNodeType = node.getPrimaryNodeType().getName().intern();
+
+		NodeType[] mixins = node.getMixinNodeTypes();
+		this.mixinNodeTypes = new String[mixins.length];
+		for (int i = 0; i < mixins.length; i++) {
+			mixinNodeTypes[i] = mixins[i].getName().intern();
+		}
+
+		Map<String, PropertySnapshot> props = new LinkedHashMap<String, PropertySnapshot>();
+		for (PropertyIterator iter = node.getProperties(); iter.hasNext();) {
+			Property property = iter.nextProperty();
+			if (filter == null || filter.accept(property)) {
+				PropertySnapshot snapshot = new PropertySnapshot(property);
+				props.put(snapshot.getName(), snapshot);
+			}
+		}
+		this.properties = (props.isEmpty() ? Collections.<String, PropertySnapshot> emptyMap() : Collections
+				.unmodifiableMap(props));
+
+		if (depth != 0) {
+			Map<String, NodeSnapshot> nodes = new LinkedHashMap<String, NodeSnapshot>();
+			for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+				Node child = iter.nextNode();
+				NodeSnapshot snapshot = new NodeSnapshot(child, depth - 1, filter);
+				int index = child.getIndex();
+				nodes.put(index > 1 ? snapshot.getName() + "[" + index + "]" : snapshot.getName(), snapshot);
+			}
+			this.children = (nodes.isEmpty() ? Collections.<String, NodeSnapshot> emptyMap() : Collections
+					.unmodifiableMap(nodes));
+		} else {
+			this.children = null;
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isNode() {
+		return true;
+	}
+
+	/**
+	 * @return the identifier of the node
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * @return the name of the primary node type
+	 */
+	public String getPrimaryNodeType() {
+		return primaryNodeType;
+	}
+
+	/**
+	 * @return the names of the mixin node types
+	 */
+	public String[] getMixinNodeTypes() {
+		return mixinNodeTypes.clone();
+	}
+
+	/**
+	 * @param name the property name
+	 * @return true if the node has the given property
+	 */
+	public boolean hasProperty(String name) {
+		return properties.containsKey(name);
+	}
+
+	/**
+	 * @param name the property name
+	 * @return the given property or null if the node does not have it
+	 */
+	public PropertySnapshot getProperty(String name) {
+		return properties.get(name);
+	}
+
+	/**
+	 * @return the properties of the node, by name
+	 */
+	public Map<String, PropertySnapshot> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return true if the child nodes are part of this snapshot
+	 */
+	public boolean isChildrenLoaded() {
+		return children != null;
+	}
+
+	/**
+	 * @return the child nodes, by name (with the index appended for same-name
+	 *         siblings); empty if the children are not part of the snapshot
+	 */
+	public Map<String, NodeSnapshot> getNodes() {
+		return (children == null ? Collections.<String, NodeSnapshot> emptyMap() : children);
+	}
+
+	/**
+	 * Return a descendant node of the snapshot.
+	 *
+	 * @param relPath path relative to this node, like "a/b"
+	 * @return the node or null if it is not part of the snapshot
+	 */
+	public NodeSnapshot getNode(String relPath) {
+		NodeSnapshot node = this;
+		int start = 0;
+		while (node != null && start < relPath.length()) {
+			int end = relPath.indexOf('/', start);
+			if (end < 0)
+				end = relPath.length();
+			String segment = relPath.substring(start, end);
+			if (segment.endsWith("[1]"))
+				segment = segment.substring(0, segment.length() - 3);
+			node = (node.children == null ? null : node.children.get(segment));
+			start = end + 1;
+		}
+		return node;
+	}
+
+	public String toString() {
+		return "NodeSnapshot[" + path + "]";
+	}
+}
@@ -0,0 +1,425 @@
+package org.springmodules.jcr;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Jcr Session Factory which keeps a pool of warm, already authenticated
+ * sessions instead of logging in and out for each unit of work. Since a
+ * session factory is bound to one workspace and one set of credentials, each
+ * pool serves exactly one workspace/credentials pair.
+ *
+ * <p/> Sessions are created through the regular {@link JcrSessionFactory}
+ * mechanism (so event listeners are added only once, when the physical session
+ * is created) and are returned to the pool by
+ * {@link SessionFactoryUtils#releaseSession(Session, SessionFactory)} instead
+ * of being logged out. Returned sessions are reset through
+ * <code>refresh(false)</code> which discards any pending changes; sessions
+ * which cannot be reset or are no longer live are discarded.
+ *
+ * <p/> The pool can be tuned through the following properties:
+ * <ol>
+ * <li> maxActive - maximum number of sessions handed out at the same time
+ * (8 by default; a value less or equal to zero means no limit) </li>
+ * <li> maxIdle - maximum number of idle sessions kept in the pool (8 by
+ * default) </li>
+ * <li> minIdle - minimum number of idle sessions kept in the pool (0 by
+ * default) </li>
+ * <li> borrowTimeout - milliseconds to wait for a session when maxActive is
+ * reached (-1, i.e. wait indefinitely, by default) </li>
+ * <li> timeBetweenEvictionRunsMillis - interval for the idle session evictor
+ * (-1, i.e. no eviction, by default) </li>
+ * <li> minEvictableIdleTimeMillis - time a session has to be idle before being
+ * evicted (30 minutes by default) </li>
+ * </ol>
+ *
+ * <p/> Note that sessions obtained while the pool is not running (for example
+ * during namespace registration) are not pooled.
+ *
+ */
+public class PooledJcrSessionFactory extends JcrSessionFactory {
+	private static final Log log = LogFactory.getLog(PooledJcrSessionFactory.class);
+
+	private int maxActive = 8;
+	private int maxIdle = 8;
+	private int minIdle = 0;
+	private long borrowTimeout = -1;
+	private long timeBetweenEvictionRunsMillis = -1;
+	private long minEvictableIdleTimeMillis = 1000L * 60L * 30L;
+
+	/**
+	 * idle sessions - most recently returned first.
+	 */
+	private final LinkedBlockingDeque<IdleSession> idleSessions = new LinkedBlockingDeque<IdleSession>();
+
+	/**
+	 * sessions currently handed out by the pool.
+	 */
+	private final Map<Session, Boolean> activeSessions = new ConcurrentHashMap<Session, Boolean>();
+
+	private Semaphore permits;
+	private Timer evictor;
+	private volatile boolean running = false;
+
+	/**
+	 * Empty constructor.
+	 */
+	public PooledJcrSessionFactory() {
+	}
+
+	/**
+	 * Constructor with all the required fields.
+	 *
+	 * @param repository
+	 * @param workspaceName
+	 * @param credentials
+	 */
+	public PooledJcrSessionFactory(Repository repository, String workspaceName, Credentials credentials) {
+		super(repository, workspaceName, credentials);
+	}
+
+	/**
+	 * Constructor containing all the fields available.
+	 *
+	 * @param repository
+	 * @param workspaceName
+	 * @param credentials
+	 * @param sessionHolderProviderManager
+	 */
+	public PooledJcrSessionFactory(Repository repository, String workspaceName, Credentials credentials,
+			SessionHolderProviderManager sessionHolderProviderManager) {
+		super(repository, workspaceName, credentials, sessionHolderProviderManager);
+	}
+
+	/**
+	 * @see org.springmodules.jcr.JcrSessionFactory#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws Exception {
+		super.afterPropertiesSet();
+
+		Assert.isTrue(maxIdle >= 0, "maxIdle cannot be negative");
+		Assert.isTrue(minIdle >= 0 && minIdle <= maxIdle, "minIdle has to be between 0 and maxIdle");
+
+		permits = (maxActive > 0 ? new Semaphore(maxActive, true) : null);
+		running = true;
+
+		ensureMinIdle();
+
+		if (timeBetweenEvictionRunsMillis > 0) {
+			evictor = new Timer("JcrSessionPoolEvictor", true);
+			evictor.schedule(new TimerTask() {
+				public void run() {
+					evict();
+				}
+			}, timeBetweenEvictionRunsMillis, timeBetweenEvictionRunsMillis);
+		}
+	}
+
+	/**
+	 * @see org.springmodules.jcr.JcrSessionFactory#destroy()
+	 */
+	public void destroy() throws Exception {
+		running = false;
+		if (evictor != null) {
+			evictor.cancel();
+			evictor = null;
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("closing " + idleSessions.size() + " idle pooled sessions");
+
+		IdleSession idle;
+		while ((idle = idleSessions.pollFirst()) != null) {
+			discard(idle.session);
+		}
+
+		super.destroy();
+	}
+
+	/**
+	 * Borrow a session from the pool, creating a new one if there is no idle
+	 * session available.
+	 *
+	 * @see org.springmodules.jcr.JcrSessionFactory#getSession()
+	 */
+	public Session getSession() throws RepositoryException {
+		if (!running)
+			return super.getSession();
+
+		acquirePermit();
+
+		try {
+			Session session = pollIdleSession();
+			if (session == null) {
+				session = super.getSession();
+				if (log.isDebugEnabled())
+					log.debug("created new pooled session " + session);
+			}
+			activeSessions.put(session, Boolean.TRUE);
+			return session;
+		}
+		catch (RepositoryException ex) {
+			releasePermit();
+			throw ex;
+		}
+		catch (RuntimeException ex) {
+			releasePermit();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Return the given session to the pool. Sessions which were not handed
+	 * out by the pool are simply logged out.
+	 *
+	 * @see org.springmodules.jcr.JcrSessionFactory#releaseSession(javax.jcr.Session)
+	 */
+	public void releaseSession(Session session) {
+		if (activeSessions.remove(session) == null) {
+			super.releaseSession(session);
+			return;
+		}
+
+		try {
+			if (running && idleSessions.size() < maxIdle && session.isLive() && resetSession(session)) {
+				idleSessions.offerFirst(new IdleSession(session));
+			}
+			else {
+				discard(session);
+			}
+		}
+		finally {
+			releasePermit();
+		}
+	}
+
+	/**
+	 * Reset the given session before returning it to the pool. By default,
+	 * all pending changes are discarded.
+	 *
+	 * @param session pooled session
+	 * @return true if the session can be reused, false otherwise
+	 */
+	protected boolean resetSession(Session session) {
+		try {
+			session.refresh(false);
+			return true;
+		}
+		catch (RepositoryException ex) {
+			log.warn("could not reset pooled session " + session + "; discarding it", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Evict the sessions that have been idle for too long and replenish the
+	 * pool up to minIdle. Called periodically if
+	 * timeBetweenEvictionRunsMillis is positive.
+	 */
+	protected void evict() {
+		try {
+			long now = System.currentTimeMillis();
+			// the least recently used sessions are at the end of the deque
+			for (Iterator<IdleSession> iter = idleSessions.descendingIterator(); iter.hasNext()
+					&& idleSessions.size() > minIdle;) {
+				IdleSession idle = iter.next();
+				if (now - idle.returned >= minEvictableIdleTimeMillis || !idle.session.isLive()) {
+					// the session might have been borrowed in the meantime
+					if (idleSessions.remove(idle)) {
+						if (log.isDebugEnabled())
+							log.debug("evicting idle session " + idle.session);
+						discard(idle.session);
+					}
+				}
+			}
+			ensureMinIdle();
+		}
+		catch (RuntimeException ex) {
+			// don't let the exception kill the evictor thread
+			log.warn("idle session eviction failed", ex);
+		}
+	}
+
+	private void ensureMinIdle() {
+		while (running && idleSessions.size() < minIdle) {
+			try {
+				idleSessions.offerLast(new IdleSession(super.getSession()));
+			}
+			catch (RepositoryException ex) {
+				log.warn("could not create idle pooled session", ex);
+				return;
+			}
+		}
+	}
+
+	private Session pollIdleSession() {
+		IdleSession idle;
+		while ((idle = idleSessions.pollFirst()) != null) {
+			if (idle.session.isLive())
+				return idle.session;
+			if (log.isDebugEnabled())
+				log.debug("discarding dead pooled session " + idle.session);
+		}
+		return null;
+	}
+
+	private void acquirePermit() throws RepositoryException {
+		if (permits == null)
+			return;
+		try {
+			if (borrowTimeout < 0) {
+				permits.acquire();
+			}
+			else if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new RepositoryException("timeout (" + borrowTimeout + "ms) waiting for a pooled session; "
+						+ maxActive + " sessions are already in use");
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("interrupted while waiting for a pooled session", ex);
+		}
+	}
+
+	private void releasePermit() {
+		if (permits != null)
+			permits.release();
+	}
+
+	private void discard(Session session) {
+		evictQueries(session);
+		try {
+			session.logout();
+		}
+		catch (RuntimeException ex) {
+			log.debug("could not logout pooled session " + session, ex);
+		}
+	}
+
+	/**
+	 * @return the number of sessions currently handed out by the pool.
+	 */
+	public int getNumActive() {
+		return activeSessions.size();
+	}
+
+	/**
+	 * @return the number of idle sessions in the pool.
+	 */
+	public int getNumIdle() {
+		return idleSessions.size();
+	}
+
+	/**
+	 * @return Returns the maxActive.
+	 */
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	/**
+	 * @param maxActive The maxActive to set.
+	 */
+	public void setMaxActive(int maxActive) {
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * @return Returns the maxIdle.
+	 */
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/**
+	 * @param maxIdle The maxIdle to set.
+	 */
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return Returns the minIdle.
+	 */
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	/**
+	 * @param minIdle The minIdle to set.
+	 */
+	public void setMinIdle(int minIdle) {
+		this.minIdle = minIdle;
+	}
+
+	/**
+	 * @return Returns the borrowTimeout.
+	 */
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+
+	/**
+	 * @param borrowTimeout The borrowTimeout (in milliseconds) to set. A
+	 * negative value means waiting indefinitely.
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * @return Returns the timeBetweenEvictionRunsMillis.
+	 */
+	public long getTimeBetweenEvictionRunsMillis() {
+		return timeBetweenEvictionRunsMillis;
+	}
+
+	/**
+	 * @param timeBetweenEvictionRunsMillis The timeBetweenEvictionRunsMillis
+	 * to set. A value less or equal to zero disables eviction.
+	 */
+	public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+		this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+	}
+
+	/**
+	 * @return Returns the minEvictableIdleTimeMillis.
+	 */
+	public long getMinEvictableIdleTimeMillis() {
+		return minEvictableIdleTimeMillis;
+	}
+
+	/**
+	 * @param minEvictableIdleTimeMillis The minEvictableIdleTimeMillis to set.
+	 */
+	public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+		this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+	}
+
+	/**
+	 * Idle session entry.
+	 */
+	private static class IdleSession {
+		private final Session session;
+		private final long returned = System.currentTimeMillis();
+
+		private IdleSession(Session session) {
+			this.session = session;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.springmodules.jcr;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Decides which properties are copied into a {@link NodeSnapshot}. Leaving out
+ * large or unneeded properties (binaries in particular) keeps the snapshots
+ * small.
+ *
+ * @see JcrTemplate#snapshot(String, int, PropertyFilter)
+ */
+public interface PropertyFilter {
+
+	/**
+	 * @param property the property to check
+	 * @return true if the property should be copied
+	 * @throws RepositoryException if the property can't be read
+	 */
+	boolean accept(Property property) throws RepositoryException;
+}
@@ -0,0 +1,383 @@
+package org.springmodules.jcr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import javax.jcr.Binary;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
+
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Detached, immutable copy of a JCR property.
+ *
+ * <p/> The values are kept in an array of the natural type of the property:
+ * <code>long[]</code> for long properties, <code>double[]</code>,
+ * <code>boolean[]</code>, <code>BigDecimal[]</code>, <code>long[]</code>
+ * milliseconds (plus the time zones) for dates, <code>byte[][]</code> for
+ * binaries (which are read completely) and <code>String[]</code> for all the
+ * other types. Values are boxed, decoded or converted only when they are
+ * asked for; names are interned.
+ *
+ * @see NodeSnapshot
+ */
+public final class PropertySnapshot implements ItemSnapshot, Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	private final String path;
+
+	private final String name;
+
+	private final int type;
+
+	private final boolean multiple;
+
+	/** typed array holding the values */
+	private final Object values;
+
+	/** time zone ids of date values */
+	private final String[] zones;
+
+	/**
+	 * Copy the given property.
+	 *
+	 * @param property the property to copy
+	 * @throws RepositoryException if the property can't be read
+	 */
+	public PropertySnapshot(Property property) throws RepositoryException {
+		this.path = property.getPath();
+		this.name = property.getName().intern();
+		this.type = property.getType();
+		this.multiple = property.isMultiple();
+
+		Value[] jcrValues = (multiple ? property.getValues() : new Value[] { property.getValue() });
+		int size = jcrValues.length;
+		String[] dateZones = null;
+
+		switch (type) {
+		case PropertyType.LONG:
+			long[] longs = new long[size];
+			for (int i = 0; i < size; i++) {
+				longs[i] = jcrValues[i].getLong();
+			}
+			this.values = longs;
+			break;
+		case PropertyType.DOUBLE:
+			double[] doubles = new double[size];
+			for (int i = 0; i < size; i++) {
+				doubles[i] = jcrValues[i].getDouble();
+			}
+			this.values = doubles;
+			break;
+		case PropertyType.BOOLEAN:
+			boolean[] booleans = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				booleans[i] = jcrValues[i].getBoolean();
+			}
+			this.values = booleans;
+			break;
+		case PropertyType.DECIMAL:
+			BigDecimal[] decimals = new BigDecimal[size];
+			for (int i = 0; i < size; i++) {
+				decimals[i] = jcrValues[i].getDecimal();
+			}
+			this.values = decimals;
+			break;
+		case PropertyType.DATE:
+			long[] times = new long[size];
+			dateZones = new String[size];
+			for (int i = 0; i < size; i++) {
+				Calendar date = jcrValues[i].getDate();
+				times[i] = date.getTimeInMillis();
+				dateZones[i] = date.getTimeZone().getID().intern();
+			}
+			this.values = times;
+			break;
+		case PropertyType.BINARY:
+			byte[][] binaries = new byte[size][];
+			for (int i = 0; i < size; i++) {
+				binaries[i] = read(jcrValues[i]);
+			}
+			this.values = binaries;
+			break;
+		default:
+			String[] strings = new String[size];
+			for (int i = 0; i < size; i++) {
+				strings[i] = jcrValues[i].getString();
+				// names and node type references are highly repetitive
+				if (type == PropertyType.NAME)
+					strings[i] = strings[i].intern();
+			}
+			this.values = strings;
+		}
+		this.zones = dateZones;
+	}
+
+	private static byte[] read(Value value) throws RepositoryException {
+		Binary binary = value.getBinary();
+		try {
+			InputStream stream = binary.getStream();
+			return FileCopyUtils.copyToByteArray(stream);
+		} catch (IOException ex) {
+			throw new RepositoryException("could not read binary value", ex);
+		} finally {
+			binary.dispose();
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isNode() {
+		return false;
+	}
+
+	/**
+	 * @return the property type
+	 * @see PropertyType
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return true if the property is multi-valued
+	 */
+	public boolean isMultiple() {
+		return multiple;
+	}
+
+	/**
+	 * @return the number of values
+	 */
+	public int size() {
+		return Array.getLength(values);
+	}
+
+	/**
+	 * @return the value of a single-valued property as <code>Long</code>,
+	 *         <code>Double</code>, <code>Boolean</code>, <code>BigDecimal</code>,
+	 *         <code>Calendar</code>, <code>byte[]</code> or <code>String</code>,
+	 *         depending on the property type
+	 * @throws ValueFormatException if the property is multi-valued
+	 */
+	public Object getValue() throws ValueFormatException {
+		checkSingle();
+		return valueAt(0);
+	}
+
+	/**
+	 * @return the values of the property (a single-valued property has one
+	 *         value)
+	 * @see #getValue()
+	 */
+	public Object[] getValues() {
+		Object[] copy = new Object[size()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = valueAt(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the value of a single-valued property as string; binaries are
+	 *         decoded as UTF-8, dates are formatted as ISO 8601
+	 * @throws ValueFormatException if the property is multi-valued
+	 */
+	public String getString() throws ValueFormatException {
+		checkSingle();
+		return stringAt(0);
+	}
+
+	/**
+	 * @return the values of the property as strings
+	 * @see #getString()
+	 */
+	public String[] getStrings() {
+		String[] strings = new String[size()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = stringAt(i);
+		}
+		return strings;
+	}
+
+	/**
+	 * @return the value of a single-valued long, double or decimal property
+	 * @throws ValueFormatException if the property is multi-valued or not
+	 *             numeric
+	 */
+	public long getLong() throws ValueFormatException {
+		checkSingle();
+		if (values instanceof long[] && type == PropertyType.LONG)
+			return ((long[]) values)[0];
+		if (values instanceof double[])
+			return (long) ((double[]) values)[0];
+		if (values instanceof BigDecimal[])
+			return ((BigDecimal[]) values)[0].longValue();
+		throw new ValueFormatException("property " + path + " is not numeric");
+	}
+
+	/**
+	 * @return the value of a single-valued long, double or decimal property
+	 * @throws ValueFormatException if the property is multi-valued or not
+	 *             numeric
+	 */
+	public double getDouble() throws ValueFormatException {
+		checkSingle();
+		if (values instanceof double[])
+			return ((double[]) values)[0];
+		if (values instanceof long[] && type == PropertyType.LONG)
+			return ((long[]) values)[0];
+		if (values instanceof BigDecimal[])
+			return ((BigDecimal[]) values)[0].doubleValue();
+		throw new ValueFormatException("property " + path + " is not numeric");
+	}
+
+	/**
+	 * @return the value of a single-valued boolean property
+	 * @throws ValueFormatException if the property is multi-valued or not a
+	 *             boolean
+	 */
+	public boolean getBoolean() throws ValueFormatException {
+		checkSingle();
+		if (values instanceof boolean[])
+			return ((boolean[]) values)[0];
+		throw new ValueFormatException("property " + path + " is not a boolean");
+	}
+
+	/**
+	 * @return the value of a single-valued date property
+	 * @throws ValueFormatException if the property is multi-valued or not a
+	 *             date
+	 */
+	public Calendar getDate() throws ValueFormatException {
+		checkSingle();
+		if (type != PropertyType.DATE)
+			throw new ValueFormatException("property " + path + " is not a date");
+		return dateAt(0);
+	}
+
+	/**
+	 * @return a stream over the value of a single-valued property; binaries
+	 *         are returned as they are, other types UTF-8 encoded
+	 * @throws ValueFormatException if the property is multi-valued
+	 */
+	public InputStream getStream() throws ValueFormatException {
+		checkSingle();
+		if (values instanceof byte[][])
+			return new ByteArrayInputStream(((byte[][]) values)[0]);
+		return new ByteArrayInputStream(encode(stringAt(0)));
+	}
+
+	private void checkSingle() throws ValueFormatException {
+		if (multiple)
+			throw new ValueFormatException("property " + path + " is multi-valued");
+	}
+
+	private Object valueAt(int index) {
+		switch (type) {
+		case PropertyType.LONG:
+			return new Long(((long[]) values)[index]);
+		case PropertyType.DOUBLE:
+			return new Double(((double[]) values)[index]);
+		case PropertyType.BOOLEAN:
+			return Boolean.valueOf(((boolean[]) values)[index]);
+		case PropertyType.DECIMAL:
+			return ((BigDecimal[]) values)[index];
+		case PropertyType.DATE:
+			return dateAt(index);
+		case PropertyType.BINARY:
+			return ((byte[][]) values)[index].clone();
+		default:
+			return ((String[]) values)[index];
+		}
+	}
+
+	private String stringAt(int index) {
+		switch (type) {
+		case PropertyType.DATE:
+			return format(dateAt(index));
+		case PropertyType.DECIMAL:
+			return ((BigDecimal[]) values)[index].toPlainString();
+		case PropertyType.BINARY:
+			return decode(((byte[][]) values)[index]);
+		default:
+			return String.valueOf(valueAt(index));
+		}
+	}
+
+	private Calendar dateAt(int index) {
+		Calendar date = Calendar.getInstance(TimeZone.getTimeZone(zones[index]));
+		date.setTimeInMillis(((long[]) values)[index]);
+		return date;
+	}
+
+	/**
+	 * Format the date as ISO 8601 (the JCR string form of dates).
+	 */
+	private static String format(Calendar date) {
+		int offset = date.get(Calendar.ZONE_OFFSET) + date.get(Calendar.DST_OFFSET);
+		StringBuilder buffer = new StringBuilder(29);
+		appendInt(buffer, date.get(Calendar.YEAR), 4).append('-');
+		appendInt(buffer, date.get(Calendar.MONTH) + 1, 2).append('-');
+		appendInt(buffer, date.get(Calendar.DAY_OF_MONTH), 2).append('T');
+		appendInt(buffer, date.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		appendInt(buffer, date.get(Calendar.MINUTE), 2).append(':');
+		appendInt(buffer, date.get(Calendar.SECOND), 2).append('.');
+		appendInt(buffer, date.get(Calendar.MILLISECOND), 3);
+		if (offset == 0) {
+			buffer.append('Z');
+		} else {
+			int minutes = Math.abs(offset) / 60000;
+			buffer.append(offset < 0 ? '-' : '+');
+			appendInt(buffer, minutes / 60, 2).append(':');
+			appendInt(buffer, minutes % 60, 2);
+		}
+		return buffer.toString();
+	}
+
+	private static StringBuilder appendInt(StringBuilder buffer, int value, int digits) {
+		String string = Integer.toString(value);
+		for (int i = string.length(); i < digits; i++) {
+			buffer.append('0');
+		}
+		return buffer.append(string);
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static byte[] encode(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public String toString() {
+		return "PropertySnapshot[" + path + "]";
+	}
+}
@@ -0,0 +1,156 @@
+package org.springmodules.jcr;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.springframework.util.Assert;
+
+/**
+ * Bounded LRU cache of parsed {@link Query} objects used by {@link JcrTemplate}.
+ *
+ * <p/> JCR queries are created through the query manager of a session and
+ * stay bound to it, so the cache is keyed by the session (and thus implicitly
+ * its workspace) besides the statement and language. Since a cached query
+ * keeps its session reachable, {@link JcrTemplate} only caches the queries of
+ * sessions which are reused, i.e. thread-bound sessions or sessions obtained
+ * from a {@link PooledJcrSessionFactory}, and the {@link JcrSessionFactory}
+ * evicts the entries of a session when logging it out. Entries of sessions
+ * logged out by other means are left to the LRU policy.
+ *
+ */
+class QueryCache {
+
+	private final int maxSize;
+
+	private final Map<Key, Query> queries;
+
+	/** number of cached queries per session, guarded by queries */
+	private final Map<Session, Integer> sessions = new IdentityHashMap<Session, Integer>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize maximum number of cached queries
+	 */
+	QueryCache(final int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize has to be positive");
+		this.maxSize = maxSize;
+		this.queries = new LinkedHashMap<Key, Query>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Query> eldest) {
+				if (size() <= maxSize)
+					return false;
+				removed(eldest.getKey().session);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached query or null if there is none.
+	 */
+	Query get(Session session, String language, String statement) {
+		Query query;
+		synchronized (queries) {
+			query = queries.get(new Key(session, language, statement));
+		}
+		if (query == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return query;
+	}
+
+	void put(Session session, String language, String statement, Query query) {
+		synchronized (queries) {
+			if (queries.put(new Key(session, language, statement), query) == null) {
+				Integer count = sessions.get(session);
+				sessions.put(session, (count == null ? 1 : count.intValue() + 1));
+			}
+		}
+	}
+
+	/**
+	 * Drop the queries of the given session.
+	 */
+	void evict(Session session) {
+		synchronized (queries) {
+			if (sessions.remove(session) == null)
+				return;
+			for (Iterator<Key> iter = queries.keySet().iterator(); iter.hasNext();) {
+				if (iter.next().session == session)
+					iter.remove();
+			}
+		}
+	}
+
+	void clear() {
+		synchronized (queries) {
+			queries.clear();
+			sessions.clear();
+		}
+	}
+
+	private void removed(Session session) {
+		Integer count = sessions.get(session);
+		if (count == null || count.intValue() <= 1)
+			sessions.remove(session);
+		else
+			sessions.put(session, count.intValue() - 1);
+	}
+
+	int size() {
+		synchronized (queries) {
+			return queries.size();
+		}
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Cache key - sessions are compared by identity.
+	 */
+	private static class Key {
+		private final Session session;
+		private final String language;
+		private final String statement;
+		private final int hashCode;
+
+		private Key(Session session, String language, String statement) {
+			this.session = session;
+			this.language = language;
+			this.statement = statement;
+			this.hashCode = 31 * (31 * System.identityHashCode(session) + language.hashCode()) + statement.hashCode();
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return session == other.session && language.equals(other.language) && statement.equals(other.statement);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package org.springmodules.jcr;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Row;
+
+/**
+ * Callback interface used by JcrTemplate's paged and streaming query methods
+ * for mapping the rows of a query result, one row at a time. Use
+ * {@link Row#getNode()} for mapping the matching nodes.
+ * 
+ * @see JcrTemplate#queryForPage(String, String, long, long, RowMapper)
+ * @see JcrTemplate#queryForStream(String, String, RowMapper)
+ */
+public interface RowMapper {
+
+    /**
+     * Map the given row to a result object.
+     * 
+     * @param row the current row
+     * @param rowNum the number of the current row (starting at 0, relative
+     *            to the returned rows)
+     * @return the result object for the row
+     */
+    public Object mapRow(Row row, int rowNum) throws RepositoryException;
+}
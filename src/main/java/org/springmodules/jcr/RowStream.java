@@ -0,0 +1,104 @@
+package org.springmodules.jcr;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Iterator over the rows of a query result, mapped one by one through a
+ * {@link RowMapper} as the iteration advances, so the result set is never
+ * materialized. The stream keeps the session used for the query until it is
+ * closed; it closes itself once the last row has been read, otherwise
+ * {@link #close()} has to be called (typically in a finally block).
+ * Thread-bound sessions are left open.
+ * 
+ * @see JcrTemplate#queryForStream(String, String, RowMapper)
+ */
+public class RowStream implements Iterator, Closeable {
+
+	private final RowIterator rows;
+	private final RowMapper rowMapper;
+	private final Session session;
+	private final JcrTemplate template;
+	private int rowNum = 0;
+	private boolean closed = false;
+
+	RowStream(RowIterator rows, RowMapper rowMapper, Session session, JcrTemplate template) {
+		this.rows = rows;
+		this.rowMapper = rowMapper;
+		this.session = session;
+		this.template = template;
+	}
+
+	/**
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		if (closed) { return false; }
+		try {
+			if (rows.hasNext()) { return true; }
+		} catch (RuntimeException ex) {
+			close();
+			throw template.convertJcrAccessException(ex);
+		}
+		close();
+		return false;
+	}
+
+	/**
+	 * @see java.util.Iterator#next()
+	 */
+	public Object next() {
+		if (!hasNext()) { throw new NoSuchElementException(); }
+		try {
+			Row row = rows.nextRow();
+			return rowMapper.mapRow(row, rowNum++);
+		} catch (RepositoryException ex) {
+			close();
+			throw template.convertJcrAccessException(ex);
+		} catch (RuntimeException ex) {
+			close();
+			throw template.convertJcrAccessException(ex);
+		}
+	}
+
+	/**
+	 * Not supported.
+	 * 
+	 * @see java.util.Iterator#remove()
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException("query results are read-only");
+	}
+
+	/**
+	 * @return the total number of rows of the result or -1 if it is unknown.
+	 * @see RowIterator#getSize()
+	 */
+	public long getSize() {
+		return rows.getSize();
+	}
+
+	/**
+	 * Release the session used by the query. Calling this method more than
+	 * once has no effect.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			SessionFactoryUtils.releaseSession(session, template.getSessionFactory());
+		}
+	}
+
+	/**
+	 * @return whether the stream has been closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+}
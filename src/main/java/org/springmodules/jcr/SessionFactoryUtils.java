@@ -53,6 +53,9 @@ public abstract class SessionFactoryUtils {
 	 * example when using JcrTransactionManager. Same as <code>getSession</code>
 	 * but throws the original Repository.
 	 * 
+	 * <p/> If a {@link LazySessionHolder} is bound to the thread, the session is
+	 * opened and bound in its place, regardless of <code>allowCreate</code>.
+	 * 
 	 * @param sessionFactory Jcr Repository to create session with
 	 * @param allowCreate
 	 *            if a non-transactional Session should be created when no
@@ -67,8 +70,16 @@ public abstract class SessionFactoryUtils {
 
 		// check if there is any transaction going on
 		SessionHolder sessionHolder = (SessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
-		if (sessionHolder != null && sessionHolder.getSession() != null)
+		JcrMetrics metrics = getMetrics(sessionFactory);
+		if (sessionHolder != null && sessionHolder.getSession() != null) {
+			if (metrics != null)
+				metrics.sessionReused();
 			return sessionHolder.getSession();
+		}
+
+		if (sessionHolder instanceof LazySessionHolder) {
+			return openLazySession(sessionFactory, metrics);
+		}
 
 		if (!allowCreate && !TransactionSynchronizationManager.isSynchronizationActive()) {
 			throw new IllegalStateException("No session bound to thread, "
@@ -76,7 +87,7 @@ public abstract class SessionFactoryUtils {
 		}
 
 		logger.debug("Opening JCR Session");
-		Session session = sessionFactory.getSession();
+		Session session = openSession(sessionFactory, metrics);
 
 		if (TransactionSynchronizationManager.isSynchronizationActive()) {
 			logger.debug("Registering transaction synchronization for JCR session");
@@ -93,6 +104,52 @@ public abstract class SessionFactoryUtils {
 		return session;
 	}
 
+	/**
+	 * Open a new Session which is not bound to the thread, for example a
+	 * session owned by a transaction or by a worker thread. The session is
+	 * reported to the metrics and leak detector of the factory like the
+	 * sessions opened by {@link #getSession(SessionFactory, boolean)} and has
+	 * to be released through {@link #releaseSession(Session, SessionFactory)}.
+	 * 
+	 * @param sessionFactory JCR Repository to create session with
+	 * @return the new Session
+	 * @throws RepositoryException if the session couldn't be opened
+	 */
+	public static Session openSession(SessionFactory sessionFactory) throws RepositoryException {
+		return openSession(sessionFactory, getMetrics(sessionFactory));
+	}
+
+	private static Session openSession(SessionFactory sessionFactory, JcrMetrics metrics) throws RepositoryException {
+		Session session = sessionFactory.getSession();
+		if (metrics != null)
+			metrics.sessionOpened();
+		SessionLeakDetector leakDetector = getLeakDetector(sessionFactory);
+		if (leakDetector != null)
+			leakDetector.sessionOpened(session);
+		return session;
+	}
+
+	/**
+	 * Open the session of a {@link LazySessionHolder} and bind its holder in
+	 * place of the placeholder. The session lives as long as the placeholder
+	 * scope would have, so no transaction synchronization is registered.
+	 */
+	private static Session openLazySession(SessionFactory sessionFactory, JcrMetrics metrics)
+			throws RepositoryException {
+		logger.debug("Opening JCR Session for lazily bound session holder");
+		Session session = openSession(sessionFactory, metrics);
+		SessionHolder sessionHolder;
+		try {
+			sessionHolder = sessionFactory.getSessionHolder(session);
+		} catch (RuntimeException ex) {
+			closeSession(session, sessionFactory);
+			throw ex;
+		}
+		TransactionSynchronizationManager.unbindResource(sessionFactory);
+		TransactionSynchronizationManager.bindResource(sessionFactory, sessionHolder);
+		return session;
+	}
+
 	/**
 	 * Get a JCR Session for the given Repository. Is aware of and will return
 	 * any existing corresponding Session bound to the current thread, for
@@ -143,9 +200,30 @@ public abstract class SessionFactoryUtils {
 		return (sessionHolder != null && session == sessionHolder.getSession());
 	}
 
+	/**
+	 * Return the SessionHolder bound to the current thread for the given
+	 * factory, if it holds a Session. Callers which need the session, its
+	 * bound state and the holder itself (like {@link JcrTemplate}) can use the
+	 * returned holder instead of looking up the thread-bound resources
+	 * several times.
+	 * 
+	 * @param sessionFactory
+	 *            the JCR SessionFactory (can be null)
+	 * @return the bound SessionHolder or null if there is no Session bound to
+	 *         the thread
+	 */
+	public static SessionHolder getBoundSessionHolder(SessionFactory sessionFactory) {
+		if (sessionFactory == null) {
+			return null;
+		}
+		SessionHolder sessionHolder = (SessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
+		return (sessionHolder != null && sessionHolder.getSession() != null ? sessionHolder : null);
+	}
+
 	/**
 	 * Close the given Session (i.e., log out), created via the given repository, if it is not managed externally
-	 * (i.e. not bound to the thread).
+	 * (i.e. not bound to the thread). Sessions created by a {@link JcrSessionFactory} are handed back to the factory
+	 * which can recycle them instead of logging them out.
 	 * 
 	 * @param session
 	 *            the Jcr Session to close
@@ -158,9 +236,57 @@ public abstract class SessionFactoryUtils {
 		
 		// Only close non thread bound Sessions.
 		if (!isSessionThreadBound(session, sessionFactory)) {
-			logger.debug("Closing JCR Session");
+			closeSession(session, sessionFactory);
+		}
+	}
+
+	/**
+	 * Close the given Session without checking whether it is bound to the
+	 * thread; used by callers which already know it is not.
+	 * 
+	 * @param session
+	 *            the Jcr Session to close
+	 * @param sessionFactory
+	 *            JcrSessionFactory that the Session was created with (can be
+	 *            null)
+	 */
+	static void closeSession(Session session, SessionFactory sessionFactory) {
+		logger.debug("Closing JCR Session");
+		SessionLeakDetector leakDetector = getLeakDetector(sessionFactory);
+		if (leakDetector != null)
+			leakDetector.sessionReleased(session);
+		// give the factory the chance to recycle the session
+		if (sessionFactory instanceof JcrSessionFactory) {
+			((JcrSessionFactory) sessionFactory).releaseSession(session);
+		} else {
 			session.logout();
 		}
+		JcrMetrics metrics = getMetrics(sessionFactory);
+		if (metrics != null)
+			metrics.sessionReleased();
+	}
+
+	/**
+	 * Return the metrics of the given session factory.
+	 * 
+	 * @param sessionFactory
+	 *            the JCR SessionFactory (can be null)
+	 * @return the metrics set on the factory or null if there are none
+	 */
+	static JcrMetrics getMetrics(SessionFactory sessionFactory) {
+		return (sessionFactory instanceof JcrSessionFactory ? ((JcrSessionFactory) sessionFactory).getMetrics() : null);
+	}
+
+	/**
+	 * Return the leak detector of the given session factory.
+	 * 
+	 * @param sessionFactory
+	 *            the JCR SessionFactory (can be null)
+	 * @return the leak detector set on the factory or null if there is none
+	 */
+	static SessionLeakDetector getLeakDetector(SessionFactory sessionFactory) {
+		return (sessionFactory instanceof JcrSessionFactory ? ((JcrSessionFactory) sessionFactory).getLeakDetector()
+				: null);
 	}
 
 	/**
@@ -15,23 +15,92 @@ public class SessionHolder extends ResourceHolderSupport {
 
     private Session session;
 
+    /**
+     * logout-suppressing proxy of the session, created lazily by JcrTemplate.
+     */
+    private Session sessionProxy;
+
+    private boolean readOnly;
+
+    /**
+     * may be set by another thread when the transaction times out
+     */
+    private volatile boolean rollbackOnly;
+
     public SessionHolder(Session session) {
         setSession(session);
     }
 
     protected void setSession(Session session) {
         this.session = session;
+        this.sessionProxy = null;
     }
 
     public Session getSession() {
         return session;
     }
 
+    /**
+     * Return whether the holder contains a session. A holder bound in
+     * place of a session which is opened on demand (see
+     * {@link LazySessionHolder}) contains none until then.
+     * 
+     * @return true if there is a session, false otherwise
+     */
+    public boolean hasSession() {
+        return (session != null);
+    }
+
+    /**
+     * Return whether the session is used by a read-only transaction, in
+     * which case {@link JcrTemplate} refuses to save it.
+     * 
+     * @return true if the session must not be saved
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @param readOnly whether the session is used by a read-only transaction
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Mark the transaction of the session as rollback-only. Unlike the
+     * other holder state, the flag can be set from another thread.
+     * 
+     * @see org.springframework.transaction.support.ResourceHolderSupport#setRollbackOnly()
+     */
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    /**
+     * @see org.springframework.transaction.support.ResourceHolderSupport#isRollbackOnly()
+     */
+    public boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    Session getSessionProxy() {
+        return sessionProxy;
+    }
+
+    void setSessionProxy(Session sessionProxy) {
+        this.sessionProxy = sessionProxy;
+    }
+
     /**
      * @see org.springframework.transaction.support.ResourceHolderSupport#clear()
      */
     public void clear() {
         super.clear();
         session = null;
+        sessionProxy = null;
+        readOnly = false;
+        rollbackOnly = false;
     }
 }
@@ -0,0 +1,320 @@
+package org.springmodules.jcr;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Tracks the sessions opened through {@link SessionFactoryUtils} and reports
+ * the ones which are never released. Enable it by setting it on the
+ * {@link JcrSessionFactory}:
+ *
+ * <pre>
+ * &lt;bean id=&quot;sessionFactory&quot; class=&quot;org.springmodules.jcr.JcrSessionFactory&quot;&gt;
+ *   ...
+ *   &lt;property name=&quot;leakDetector&quot;&gt;
+ *     &lt;bean class=&quot;org.springmodules.jcr.SessionLeakDetector&quot;&gt;
+ *       &lt;property name=&quot;leakThreshold&quot; value=&quot;60000&quot;/&gt;
+ *     &lt;/bean&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * A session is reported (once) when it is still live after being held longer
+ * than the leak threshold or when it is reclaimed by the garbage collector
+ * without having been released; sessions logged out directly are silently
+ * dropped. The live sessions are kept in a concurrent map through weak
+ * references and watched through phantom references, so the detector never
+ * keeps a session alive.
+ *
+ * <p/> Recording where a session was opened means capturing a stack trace,
+ * which is expensive; only one session out of {@link #setSampleRate(int)}
+ * gets its allocation site recorded. The checks are done by a daemon thread
+ * started on {@link #afterPropertiesSet()} and stopped on {@link #destroy()}.
+ *
+ * @see JcrSessionFactory#setLeakDetector(SessionLeakDetector)
+ */
+public class SessionLeakDetector implements InitializingBean, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(SessionLeakDetector.class);
+
+	/**
+	 * Lookup key of a tracked session, comparing sessions by identity without
+	 * holding them.
+	 */
+	private static class SessionKey extends WeakReference<Session> {
+
+		private final int hash;
+
+		SessionKey(Session session) {
+			super(session);
+			this.hash = System.identityHashCode(session);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof SessionKey))
+				return false;
+			Object session = get();
+			return (session != null && session == ((SessionKey) obj).get());
+		}
+	}
+
+	/**
+	 * A tracked session: when it was opened, by which thread and, if sampled,
+	 * from where.
+	 */
+	private static class TrackedSession extends PhantomReference<Session> {
+
+		final SessionKey key;
+
+		final long openedAt;
+
+		final String thread;
+
+		final Throwable allocationSite;
+
+		volatile boolean reported;
+
+		TrackedSession(Session session, SessionKey key, ReferenceQueue<Session> queue, Throwable allocationSite) {
+			super(session, queue);
+			this.key = key;
+			this.openedAt = System.currentTimeMillis();
+			this.thread = Thread.currentThread().getName();
+			this.allocationSite = allocationSite;
+		}
+	}
+
+	private final ConcurrentMap<SessionKey, TrackedSession> sessions = new ConcurrentHashMap<SessionKey, TrackedSession>();
+
+	private final ReferenceQueue<Session> queue = new ReferenceQueue<Session>();
+
+	private final AtomicLong opened = new AtomicLong();
+
+	private final AtomicLong leaked = new AtomicLong();
+
+	private long leakThreshold = 5 * 60 * 1000;
+
+	private long checkInterval = 30 * 1000;
+
+	private int sampleRate = 10;
+
+	private JcrMetrics metrics;
+
+	private Thread checker;
+
+	/**
+	 * Start tracking the given session.
+	 *
+	 * @param session the session just opened
+	 */
+	public void sessionOpened(Session session) {
+		Throwable allocationSite = null;
+		if (sampleRate > 0 && opened.incrementAndGet() % sampleRate == 0)
+			allocationSite = new Throwable("JCR session opened here");
+		SessionKey key = new SessionKey(session);
+		sessions.put(key, new TrackedSession(session, key, queue, allocationSite));
+	}
+
+	/**
+	 * Stop tracking the given session.
+	 *
+	 * @param session the session just released
+	 */
+	public void sessionReleased(Session session) {
+		TrackedSession tracked = sessions.remove(new SessionKey(session));
+		if (tracked != null)
+			tracked.clear();
+	}
+
+	/**
+	 * Report the sessions reclaimed by the garbage collector without being
+	 * released and the ones held past the leak threshold. Called periodically
+	 * by the checker thread.
+	 */
+	public void check() {
+		Reference<? extends Session> ref;
+		while ((ref = queue.poll()) != null) {
+			TrackedSession tracked = (TrackedSession) ref;
+			// the session was released in the meantime otherwise
+			if (sessions.remove(tracked.key) != null && !tracked.reported)
+				reportLeak(tracked, "has been garbage collected without being released");
+		}
+
+		long now = System.currentTimeMillis();
+		for (Iterator<TrackedSession> iter = sessions.values().iterator(); iter.hasNext();) {
+			TrackedSession tracked = iter.next();
+			Session session = tracked.key.get();
+			if (session == null)
+				continue;
+			if (!session.isLive()) {
+				// logged out without going through SessionFactoryUtils
+				iter.remove();
+				tracked.clear();
+			}
+			else if (!tracked.reported && now - tracked.openedAt > leakThreshold) {
+				reportLeak(tracked, "has been held for " + (now - tracked.openedAt) + " ms without being released");
+			}
+		}
+	}
+
+	private void reportLeak(TrackedSession tracked, String reason) {
+		tracked.reported = true;
+		leaked.incrementAndGet();
+		if (metrics != null)
+			metrics.sessionLeaked();
+		String message = "JCR session opened by thread '" + tracked.thread + "' " + reason;
+		if (tracked.allocationSite != null)
+			log.warn(message, tracked.allocationSite);
+		else
+			log.warn(message + " (allocation site not sampled)");
+	}
+
+	public void afterPropertiesSet() {
+		if (checkInterval <= 0)
+			return;
+		checker = new Thread("JCR session leak detector") {
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(checkInterval);
+					}
+					catch (InterruptedException ex) {
+						return;
+					}
+					try {
+						check();
+					}
+					catch (RuntimeException ex) {
+						log.warn("session leak check failed", ex);
+					}
+				}
+			}
+		};
+		checker.setDaemon(true);
+		checker.start();
+	}
+
+	public void destroy() {
+		if (checker != null) {
+			checker.interrupt();
+			checker = null;
+		}
+		sessions.clear();
+	}
+
+	/**
+	 * @return the number of sessions currently tracked
+	 */
+	public int getTrackedSessions() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the number of sessions reported as leaked
+	 */
+	public long getLeakedSessions() {
+		return leaked.get();
+	}
+
+	/**
+	 * @return the allocation sites of the tracked sessions which have been
+	 *         sampled
+	 */
+	public List<Throwable> getAllocationSites() {
+		List<Throwable> sites = new ArrayList<Throwable>();
+		for (TrackedSession tracked : sessions.values()) {
+			if (tracked.allocationSite != null)
+				sites.add(tracked.allocationSite);
+		}
+		return sites;
+	}
+
+	/**
+	 * @return Returns the leakThreshold.
+	 */
+	public long getLeakThreshold() {
+		return leakThreshold;
+	}
+
+	/**
+	 * Set the time (in milliseconds) after which a session not released yet
+	 * is reported as leaked. Default is 5 minutes.
+	 *
+	 * @param leakThreshold The leakThreshold to set.
+	 */
+	public void setLeakThreshold(long leakThreshold) {
+		this.leakThreshold = leakThreshold;
+	}
+
+	/**
+	 * @return Returns the checkInterval.
+	 */
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * Set the time (in milliseconds) between two checks. A value of 0 or less
+	 * disables the checker thread; {@link #check()} then has to be called
+	 * explicitly. Default is 30 seconds.
+	 *
+	 * @param checkInterval The checkInterval to set.
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * @return Returns the sampleRate.
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Record the allocation site of one session out of the given number; 1
+	 * records all of them, 0 none. Default is 10.
+	 *
+	 * @param sampleRate The sampleRate to set.
+	 */
+	public void setSampleRate(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return Returns the metrics.
+	 */
+	public JcrMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics notified about leaked sessions. Defaults to the metrics
+	 * of the session factory the detector is set on.
+	 *
+	 * @param metrics The metrics to set.
+	 */
+	public void setMetrics(JcrMetrics metrics) {
+		this.metrics = metrics;
+	}
+}
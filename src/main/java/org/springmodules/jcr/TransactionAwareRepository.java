@@ -214,6 +214,9 @@ public class TransactionAwareRepository implements InitializingBean, FactoryBean
 				if (matched) {
 					Session session = SessionFactoryUtils.getSession(sessionFactory, isAllowCreate());
 					Class[] ifcs = ClassUtils.getAllInterfaces(session);
+					// plain sessions get a static wrapper; vendor extensions are kept through a proxy
+					if (ifcs.length == 1 && ifcs[0] == Session.class)
+						return new TransactionAwareSession(session, sessionFactory);
 					return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), ifcs,
 							new TransactionAwareInvocationHandler(session, sessionFactory));
 				}
@@ -240,9 +243,32 @@ public class TransactionAwareRepository implements InitializingBean, FactoryBean
 	}
 
 	/**
-	 * Invocation handler that delegates close calls on Sessions to
+	 * Session wrapper that delegates close calls on Sessions to
 	 * SessionFactoryUtils for being aware of thread-bound transactions.
 	 */
+	private static class TransactionAwareSession extends DelegatingSession {
+
+		private final SessionFactory sessionFactory;
+
+		public TransactionAwareSession(Session target, SessionFactory sessionFactory) {
+			super(target);
+			this.sessionFactory = sessionFactory;
+		}
+
+		public void logout() {
+			// Handle close method: only close if not within a transaction.
+			if (this.sessionFactory != null) {
+				SessionFactoryUtils.releaseSession(getTargetSession(), this.sessionFactory);
+			}
+		}
+	}
+
+	/**
+	 * Invocation handler that delegates close calls on Sessions to
+	 * SessionFactoryUtils for being aware of thread-bound transactions. Used
+	 * for sessions implementing vendor specific interfaces besides
+	 * {@link Session}.
+	 */
 	private static class TransactionAwareInvocationHandler implements InvocationHandler {
 
 		private final Session target;
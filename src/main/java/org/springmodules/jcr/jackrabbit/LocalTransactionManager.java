@@ -1,23 +1,36 @@
 package org.springmodules.jcr.jackrabbit;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
 import javax.transaction.xa.XAResource;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.InvalidIsolationLevelException;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.TransactionTimedOutException;
 import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 import org.springframework.transaction.support.DefaultTransactionStatus;
 import org.springframework.transaction.support.SmartTransactionObject;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.LazySessionHolder;
 import org.springmodules.jcr.SessionFactory;
 import org.springmodules.jcr.SessionFactoryUtils;
 import org.springmodules.jcr.SessionHolder;
+import org.springmodules.jcr.jackrabbit.support.JackRabbitUserTransaction;
 import org.springmodules.jcr.jackrabbit.support.UserTxSessionHolder;
+import org.springmodules.jcr.jackrabbit.support.XidGenerator;
 
 /**
  * PlatformTransactionManager implementation for a single JCR SessionFactory.
@@ -41,7 +54,25 @@ import org.springmodules.jcr.jackrabbit.support.UserTxSessionHolder;
  * This transaction strategy will typically be used in combination with a single
  * JCR Repository for all JCR access to save resources, typically in a
  * standalone application. 
-
+ * 
+ * <p>
+ * Read-only transactions simply bind a session to the thread: no XA branch is
+ * started, so commit and rollback are free. The session holder is marked
+ * read-only and JcrTemplate refuses to save the session, including the native
+ * session exposed to callbacks, which is wrapped for this purpose. Workspace
+ * operations (like <code>Workspace.copy</code>, <code>move</code> or
+ * <code>importXML</code>) are not checked: they are persisted right away and
+ * must not be used within read-only transactions.
+ * 
+ * <p>
+ * Transaction timeouts are applied to the XA resource of the session and
+ * enforced by the manager: JcrTemplate and the commit fail once the deadline
+ * has passed. A transaction still running at its deadline is marked
+ * rollback-only by a background thread, unless
+ * {@link #setRollbackExpiredTransactions(boolean)} is turned off; the session
+ * is not thread safe, so the rollback itself (releasing the locks) is always
+ * done by the thread owning the transaction.
+ * 
  * 
  * @see javax.jcr.RepositoryException
  * @see org.springframework.transaction.support.AbstractPlatformTransactionManager
@@ -50,9 +81,18 @@ import org.springmodules.jcr.jackrabbit.support.UserTxSessionHolder;
  * @author Guillaume Bort <guillaume.bort@zenexity.fr>
  * 
  */
-public class LocalTransactionManager extends AbstractPlatformTransactionManager implements InitializingBean {
+public class LocalTransactionManager extends AbstractPlatformTransactionManager implements InitializingBean,
+        DisposableBean {
     private SessionFactory sessionFactory;
 
+    private boolean onePhaseCommit = true;
+
+    private XidGenerator xidGenerator;
+
+    private boolean rollbackExpiredTransactions = true;
+
+    private ScheduledThreadPoolExecutor timeoutScheduler;
+
     /**
      * Create a new JcrTransactionManager instance.
      * 
@@ -85,15 +125,91 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         this.sessionFactory = sessionFactory;
     }
 
+    /**
+     * @return Returns whether transactions are committed in one phase.
+     */
+    public boolean isOnePhaseCommit() {
+        return onePhaseCommit;
+    }
+
+    /**
+     * Set whether transactions are committed with the one-phase optimization
+     * of the XA protocol, skipping the prepare round trip. The session is the
+     * only resource of a local transaction, so this is safe. Default is true.
+     * 
+     * @param onePhaseCommit The onePhaseCommit to set.
+     * @see JackRabbitUserTransaction#setOnePhaseCommit(boolean)
+     */
+    public void setOnePhaseCommit(boolean onePhaseCommit) {
+        this.onePhaseCommit = onePhaseCommit;
+    }
+
+    /**
+     * @return Returns the xidGenerator.
+     */
+    public XidGenerator getXidGenerator() {
+        return xidGenerator;
+    }
+
+    /**
+     * Set the generator of the transaction ids. Default is the shared
+     * {@link XidGenerator#getDefault() default generator}.
+     * 
+     * @param xidGenerator The xidGenerator to set.
+     */
+    public void setXidGenerator(XidGenerator xidGenerator) {
+        this.xidGenerator = xidGenerator;
+    }
+
+    /**
+     * @return Returns whether expired transactions are rolled back.
+     */
+    public boolean isRollbackExpiredTransactions() {
+        return rollbackExpiredTransactions;
+    }
+
+    /**
+     * Set whether a transaction still running when its timeout expires is
+     * marked rollback-only by a background thread, so that it can't be
+     * saved or committed anymore, even by code which doesn't check the
+     * deadline. The owning thread rolls it back on completion. Default is
+     * true.
+     * 
+     * @param rollbackExpiredTransactions The rollbackExpiredTransactions to
+     *            set.
+     */
+    public void setRollbackExpiredTransactions(boolean rollbackExpiredTransactions) {
+        this.rollbackExpiredTransactions = rollbackExpiredTransactions;
+    }
+
     public void afterPropertiesSet() throws Exception {
         if (getSessionFactory() == null)
             throw new IllegalArgumentException("repository is required");
     }
 
+    /**
+     * Stop the thread rolling back the expired transactions.
+     */
+    public synchronized void destroy() {
+        if (timeoutScheduler != null) {
+            timeoutScheduler.shutdownNow();
+            timeoutScheduler = null;
+        }
+    }
+
     protected Object doGetTransaction() throws TransactionException {
         JcrTransactionObject txObject = new JcrTransactionObject();
 
         if (TransactionSynchronizationManager.hasResource(getSessionFactory())) {
+            if (TransactionSynchronizationManager.getResource(getSessionFactory()) instanceof LazySessionHolder) {
+                // open the session of the placeholder, binding its real holder
+                try {
+                    SessionFactoryUtils.doGetSession(getSessionFactory(), true);
+                }
+                catch (RepositoryException ex) {
+                    throw new CannotCreateTransactionException("Could not open JCR session for transaction", ex);
+                }
+            }
             UserTxSessionHolder sessionHolder = (UserTxSessionHolder) TransactionSynchronizationManager.getResource(getSessionFactory());
             if (logger.isDebugEnabled()) {
                 logger.debug("Found thread-bound session [" + sessionHolder.getSession() + "] for JCR transaction");
@@ -119,11 +235,13 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             JcrTransactionObject txObject = (JcrTransactionObject) transaction;
             if (txObject.getSessionHolder() == null) {
                 // get the new session
-                Session newSession = sessionFactory.getSession();
+                Session newSession = SessionFactoryUtils.openSession(sessionFactory);
 
                 // make sure we have an XAResource
-                if (!(newSession instanceof XAResource))
+                if (!(newSession instanceof XAResource)) {
+                    SessionFactoryUtils.releaseSession(newSession, getSessionFactory());
                     throw new IllegalArgumentException("transactions are not supported by your Jcr Repository");
+                }
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Opened new session [" + newSession + "] for JCR transaction");
@@ -136,32 +254,44 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             sessionHolder.setSynchronizedWithTransaction(true);
             session = sessionHolder.getSession();
 
-            /*
-             * We have no notion of flushing inside a JCR session
-             * 
-            if (transactionDefinition.isReadOnly() && txObject.isNewSessionHolder()) {
+            if (transactionDefinition.isReadOnly()) {
+                // nothing to commit: bind the session without starting an XA branch
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Using session [" + session + "] for read-only JCR transaction");
+                }
+                txObject.setReadOnly(true);
                 sessionHolder.setReadOnly(true);
             }
-
-            if (!transactionDefinition.isReadOnly() && !txObject.isNewSessionHolder()) {
-                if (sessionHolder.isReadOnly()) {
-                    sessionHolder.setReadOnly(false);
+            else {
+                if (sessionHolder.getTransaction() instanceof JackRabbitUserTransaction) {
+                    JackRabbitUserTransaction userTransaction = (JackRabbitUserTransaction) sessionHolder.getTransaction();
+                    userTransaction.setOnePhaseCommit(onePhaseCommit);
+                    if (xidGenerator != null) {
+                        userTransaction.setXidGenerator(xidGenerator);
+                    }
                 }
-            }
-            */
 
-            // start the transaction
-            sessionHolder.getTransaction().begin();
+                int timeout = determineTimeout(transactionDefinition);
+                sessionHolder.getTransaction().setTransactionTimeout(
+                        timeout != TransactionDefinition.TIMEOUT_DEFAULT ? timeout : 0);
+
+                // start the transaction
+                sessionHolder.getTransaction().begin();
 
-            // Register transaction timeout.
-            if (transactionDefinition.getTimeout() != TransactionDefinition.TIMEOUT_DEFAULT) {
-                txObject.getSessionHolder().setTimeoutInSeconds(transactionDefinition.getTimeout());
+                // Register transaction timeout.
+                if (timeout != TransactionDefinition.TIMEOUT_DEFAULT) {
+                    sessionHolder.setTimeoutInSeconds(timeout);
+                }
             }
 
             // Bind the session holder to the thread.
             if (txObject.isNewSessionHolder()) {
                 TransactionSynchronizationManager.bindResource(getSessionFactory(), sessionHolder);
             }
+
+            if (rollbackExpiredTransactions && sessionHolder.hasTimeout()) {
+                txObject.setTimeoutTask(scheduleRollback(sessionHolder));
+            }
         }
 
         catch (Exception ex) {
@@ -194,8 +324,24 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         if (status.isDebug()) {
             logger.debug("Committing JCR transaction on session [" + txObject.getSessionHolder().getSession() + "]");
         }
+        if (txObject.isReadOnly()) {
+            // no XA branch has been started
+            return;
+        }
+        UserTxSessionHolder sessionHolder = txObject.getSessionHolder();
         try {
-            txObject.getSessionHolder().getTransaction().commit();
+            if (sessionHolder.hasTimeout()) {
+                // throws TransactionTimedOutException once the deadline has passed
+                sessionHolder.getTimeToLiveInMillis();
+            }
+            sessionHolder.getTransaction().commit();
+        } catch (TransactionTimedOutException ex) {
+            try {
+                rollbackIfActive(sessionHolder.getTransaction());
+            } catch (SystemException rollbackEx) {
+                logger.error("Could not roll back expired JCR transaction", rollbackEx);
+            }
+            throw ex;
         } catch (Exception ex) {
             // assumably from commit call to the underlying JCR repository
             throw new TransactionSystemException("Could not commit JCR transaction", ex);
@@ -208,7 +354,10 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             logger.debug("Rolling back JCR transaction on session [" + txObject.getSessionHolder().getSession() + "]");
         }
         try {
-            txObject.getSessionHolder().getTransaction().rollback();
+            if (!txObject.isReadOnly()) {
+                // an expired transaction may already have been rolled back
+                rollbackIfActive(txObject.getSessionHolder().getTransaction());
+            }
         } catch (Exception ex) {
             throw new TransactionSystemException("Could not roll back JCR transaction", ex);
         } finally {
@@ -236,23 +385,85 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
     protected void doCleanupAfterCompletion(Object transaction) {
         JcrTransactionObject txObject = (JcrTransactionObject) transaction;
 
+        ScheduledFuture<?> timeoutTask = txObject.getTimeoutTask();
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+            removeTimeoutTask(timeoutTask);
+        }
+
         // Remove the session holder from the thread.
         if (txObject.isNewSessionHolder()) {
             TransactionSynchronizationManager.unbindResource(getSessionFactory());
         }
 
-        Session session = txObject.getSessionHolder().getSession();
+        UserTxSessionHolder sessionHolder = txObject.getSessionHolder();
+        Session session = sessionHolder.getSession();
         if (txObject.isNewSessionHolder()) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Closing JCR session [" + session + "] after transaction");
             }
             SessionFactoryUtils.releaseSession(session, sessionFactory);
+            sessionHolder.clear();
         } else {
             if (logger.isDebugEnabled()) {
                 logger.debug("Not closing pre-bound JCR session [" + session + "] after transaction");
             }
+            // reset the transaction state but keep the session for its owner
+            sessionHolder.clear();
+            sessionHolder.setSession(session);
+        }
+    }
+
+    /**
+     * Mark the transaction of the given holder rollback-only at its deadline.
+     */
+    private synchronized ScheduledFuture<?> scheduleRollback(final UserTxSessionHolder sessionHolder) {
+        if (timeoutScheduler == null) {
+            timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "JCR transaction timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final UserTransaction userTransaction = sessionHolder.getTransaction();
+        final Session session = sessionHolder.getSession();
+        return timeoutScheduler.schedule(new Runnable() {
+            public void run() {
+                try {
+                    // fails if the transaction has completed in the meantime
+                    userTransaction.setRollbackOnly();
+                } catch (Exception ex) {
+                    return;
+                }
+                sessionHolder.setRollbackOnly();
+                logger.warn("JCR transaction on session [" + session + "] timed out: marked rollback-only");
+            }
+        }, sessionHolder.getTimeToLiveInMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void removeTimeoutTask(ScheduledFuture<?> timeoutTask) {
+        if (timeoutScheduler != null) {
+            // cancelled tasks would stay queued until their deadline otherwise
+            timeoutScheduler.remove((Runnable) timeoutTask);
+        }
+    }
+
+    /**
+     * Roll back the given transaction unless it has already been completed.
+     * 
+     * @return true if the transaction has been rolled back
+     */
+    private static boolean rollbackIfActive(UserTransaction userTransaction) throws SystemException {
+        synchronized (userTransaction) {
+            int status = userTransaction.getStatus();
+            if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+                return false;
+            }
+            userTransaction.rollback();
+            return true;
         }
-        txObject.getSessionHolder().clear();
     }
 
     /**
@@ -264,6 +475,8 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
     private static class JcrTransactionObject implements SmartTransactionObject {
         private UserTxSessionHolder sessionHolder;
         private boolean newSessionHolder;
+        private boolean readOnly;
+        private ScheduledFuture<?> timeoutTask;
 
         public void setSessionHolder(UserTxSessionHolder sessionHolder, boolean newSessionHolder) {
             this.sessionHolder = sessionHolder;
@@ -278,6 +491,29 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             return newSessionHolder;
         }
 
+        public void setReadOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * @return true if the transaction runs without an XA branch
+         */
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        public void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+            this.timeoutTask = timeoutTask;
+        }
+
+        /**
+         * @return the pending rollback of the transaction at its deadline, if
+         *         any
+         */
+        public ScheduledFuture<?> getTimeoutTask() {
+            return timeoutTask;
+        }
+
         public boolean hasTransaction() {
             return (this.sessionHolder != null && this.sessionHolder.getTransaction() != null);
         }
@@ -21,17 +21,17 @@ import javax.transaction.xa.Xid;
  * <p/>
  * Inspired from JackRabbit test suite.
  * 
- * Internal {@link javax.transaction.UserTransaction} implementation.
+ * Internal {@link javax.transaction.UserTransaction} implementation. The
+ * methods are synchronized so that an expired transaction can be marked
+ * rollback-only by another thread.
+ * 
+ * <p/> Transaction ids are created by an {@link XidGenerator}. The former
+ * byte counter is gone: {@link #getCounter()} only reports the lowest byte of
+ * the generator sequence and {@link #setCounter(byte)} ignores its argument.
  * 
  */
 public class JackRabbitUserTransaction implements UserTransaction {
 
-    /**
-     * Global transaction id counter.
-     * TODO: remove the static attribute 
-     */
-    private static byte counter = 0;
-
     /**
      * XAResource
      */
@@ -48,6 +48,21 @@ public class JackRabbitUserTransaction implements UserTransaction {
      */
     private int status = Status.STATUS_NO_TRANSACTION;
 
+    /**
+     * Whether the single resource is committed in one phase
+     */
+    private boolean onePhaseCommit = true;
+
+    /**
+     * Xid generator
+     */
+    private XidGenerator xidGenerator = XidGenerator.getDefault();
+
+    /**
+     * Timeout (in seconds) applied to the XA resource, 0 for its default
+     */
+    private int timeout;
+
     /**
      * Create a new instance of this class. Takes a session as parameter.
      * 
@@ -66,13 +81,13 @@ public class JackRabbitUserTransaction implements UserTransaction {
     /**
      * @see javax.transaction.UserTransaction#begin
      */
-    public void begin() throws NotSupportedException, SystemException {
+    public synchronized void begin() throws NotSupportedException, SystemException {
         if (status != Status.STATUS_NO_TRANSACTION) {
             throw new IllegalStateException("Transaction already active");
         }
 
         try {
-            xid = new XidImpl(counter++);
+            xid = xidGenerator.nextXid();
             xares.start(xid, XAResource.TMNOFLAGS);
             status = Status.STATUS_ACTIVE;
 
@@ -85,7 +100,7 @@ public class JackRabbitUserTransaction implements UserTransaction {
     /**
      * @see javax.transaction.UserTransaction#commit
      */
-    public void commit() throws IllegalStateException, RollbackException, SecurityException, SystemException {
+    public synchronized void commit() throws IllegalStateException, RollbackException, SecurityException, SystemException {
 
         if (status != Status.STATUS_ACTIVE) {
             throw new IllegalStateException("Transaction not active");
@@ -94,13 +109,23 @@ public class JackRabbitUserTransaction implements UserTransaction {
         try {
             xares.end(xid, XAResource.TMSUCCESS);
 
-            status = Status.STATUS_PREPARING;
-            xares.prepare(xid);
-            status = Status.STATUS_PREPARED;
-
-            status = Status.STATUS_COMMITTING;
-            xares.commit(xid, false);
-            status = Status.STATUS_COMMITTED;
+            if (onePhaseCommit) {
+                // the session is the only resource: there is nobody to vote with
+                status = Status.STATUS_COMMITTING;
+                xares.commit(xid, true);
+                status = Status.STATUS_COMMITTED;
+            } else {
+                status = Status.STATUS_PREPARING;
+                int vote = xares.prepare(xid);
+                status = Status.STATUS_PREPARED;
+
+                // a read-only branch is already completed
+                if (vote != XAResource.XA_RDONLY) {
+                    status = Status.STATUS_COMMITTING;
+                    xares.commit(xid, false);
+                }
+                status = Status.STATUS_COMMITTED;
+            }
 
         } catch (XAException e) {
 
@@ -115,14 +140,14 @@ public class JackRabbitUserTransaction implements UserTransaction {
     /**
      * @see javax.transaction.UserTransaction#getStatus
      */
-    public int getStatus() throws SystemException {
+    public synchronized int getStatus() throws SystemException {
         return status;
     }
 
     /**
      * @see javax.transaction.UserTransaction#rollback
      */
-    public void rollback() throws IllegalStateException, SecurityException, SystemException {
+    public synchronized void rollback() throws IllegalStateException, SecurityException, SystemException {
 
         if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
 
@@ -145,7 +170,7 @@ public class JackRabbitUserTransaction implements UserTransaction {
     /**
      * @see javax.transaction.UserTransaction#setRollbackOnly()
      */
-    public void setRollbackOnly() throws IllegalStateException, SystemException {
+    public synchronized void setRollbackOnly() throws IllegalStateException, SystemException {
         if (status != Status.STATUS_ACTIVE) {
             throw new IllegalStateException("Transaction not active");
         }
@@ -153,63 +178,75 @@ public class JackRabbitUserTransaction implements UserTransaction {
     }
 
     /**
-     * @see javax.transaction.UserTransaction#setTransactionTimeout
+     * @return Returns whether the transaction is committed in one phase.
      */
-    public void setTransactionTimeout(int seconds) throws SystemException {
+    public boolean isOnePhaseCommit() {
+        return onePhaseCommit;
     }
 
     /**
-     * Internal {@link Xid} implementation.
+     * Set whether {@link #commit()} uses the one-phase optimization of the XA
+     * protocol (<code>commit(xid, true)</code> without <code>prepare</code>),
+     * which is safe as the session is the only resource of the transaction.
+     * Set it to false to run the full two-phase protocol. Default is true.
+     * 
+     * @param onePhaseCommit The onePhaseCommit to set.
      */
-    class XidImpl implements Xid {
-
-        /** Global transaction id */
-        private final byte[] globalTxId;
+    public void setOnePhaseCommit(boolean onePhaseCommit) {
+        this.onePhaseCommit = onePhaseCommit;
+    }
 
-        /**
-         * Create a new instance of this class. Takes a global transaction
-         * number as parameter
-         * 
-         * @param globalTxNumber
-         *            global transaction number
-         */
-        public XidImpl(byte globalTxNumber) {
-            this.globalTxId = new byte[] { globalTxNumber };
+    /**
+     * Set the timeout of the transactions begun afterwards on the XA resource;
+     * 0 restores the default timeout of the resource.
+     * 
+     * @see javax.transaction.UserTransaction#setTransactionTimeout
+     */
+    public synchronized void setTransactionTimeout(int seconds) throws SystemException {
+        if (seconds == timeout) {
+            return;
         }
+        try {
+            xares.setTransactionTimeout(seconds);
+            timeout = seconds;
+        } catch (XAException e) {
 
-        /**
-         * @see javax.transaction.xa.Xid#getFormatId()
-         */
-        public int getFormatId() {
-            return 0;
+            throw new SystemException("Unable to set transaction timeout: " + "XA_ERR=" + e.errorCode);
         }
+    }
 
-        /**
-         * @see javax.transaction.xa.Xid#getBranchQualifier()
-         */
-        public byte[] getBranchQualifier() {
-            return new byte[0];
-        }
+    /**
+     * @return Returns the xidGenerator.
+     */
+    public XidGenerator getXidGenerator() {
+        return xidGenerator;
+    }
 
-        /**
-         * @see javax.transaction.xa.Xid#getGlobalTransactionId()
-         */
-        public byte[] getGlobalTransactionId() {
-            return globalTxId;
-        }
+    /**
+     * Set the generator of the transaction ids. Default is the shared
+     * {@link XidGenerator#getDefault() default generator}.
+     * 
+     * @param xidGenerator The xidGenerator to set.
+     */
+    public void setXidGenerator(XidGenerator xidGenerator) {
+        this.xidGenerator = xidGenerator;
     }
 
     /**
-     * @return Returns the counter.
+     * @return the lowest byte of the number of transaction ids generated so far
+     * @deprecated transaction ids are created by an {@link XidGenerator}
      */
+    @Deprecated
     public byte getCounter() {
-        return counter;
+        return (byte) xidGenerator.getSequence();
     }
 
     /**
-     * @param counter The counter to set.
+     * @param counter ignored
+     * @deprecated transaction ids are created by an {@link XidGenerator}, whose
+     *             sequence can't be reset
      */
+    @Deprecated
     public void setCounter(byte counter) {
-    	JackRabbitUserTransaction.counter = counter;
     }
 }
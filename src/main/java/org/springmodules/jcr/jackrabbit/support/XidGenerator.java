@@ -0,0 +1,151 @@
+package org.springmodules.jcr.jackrabbit.support;
+
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.xa.Xid;
+
+import org.springframework.util.Assert;
+
+/**
+ * Thread safe generator of unique transaction ids. The global transaction id
+ * is made of a prefix identifying the generator followed by a 64 bit sequence
+ * number; all the ids share the same format id and branch qualifier.
+ *
+ * <p/> By default, the prefix is random, which makes the ids unique across the
+ * generators and JVMs sharing a repository. A node id can be put in front of
+ * the random part to recognize the transactions of a node (for example in the
+ * logs of a clustered repository); generators created with the same node id,
+ * even in the same JVM or after a restart, still produce distinct ids.
+ *
+ * @see JackRabbitUserTransaction#setXidGenerator(XidGenerator)
+ */
+public class XidGenerator {
+
+	/** format id of the generated Xids ("SMJC") */
+	public static final int FORMAT_ID = 0x534d4a43;
+
+	private static final XidGenerator DEFAULT = new XidGenerator();
+
+	private static final byte[] BRANCH_QUALIFIER = new byte[] { 1 };
+
+	/** size of the random part of the prefix */
+	private static final int RANDOM_SIZE = 8;
+
+	private final byte[] prefix;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Create a generator with a random prefix.
+	 */
+	public XidGenerator() {
+		prefix = new byte[RANDOM_SIZE];
+		new SecureRandom().nextBytes(prefix);
+	}
+
+	/**
+	 * Create a generator whose prefix starts with the given node id.
+	 *
+	 * @param nodeId node id (at most 48 bytes once UTF-8 encoded)
+	 */
+	public XidGenerator(String nodeId) {
+		Assert.hasLength(nodeId, "nodeId is required");
+		byte[] id;
+		try {
+			id = nodeId.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+		Assert.isTrue(id.length <= Xid.MAXGTRIDSIZE - RANDOM_SIZE - 8, "nodeId is too long");
+		prefix = new byte[id.length + RANDOM_SIZE];
+		System.arraycopy(id, 0, prefix, 0, id.length);
+		byte[] random = new byte[RANDOM_SIZE];
+		new SecureRandom().nextBytes(random);
+		System.arraycopy(random, 0, prefix, id.length, RANDOM_SIZE);
+	}
+
+	/**
+	 * @return the generator shared by the transactions which have no
+	 *         generator of their own
+	 */
+	public static XidGenerator getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a new, unique transaction id
+	 */
+	public Xid nextXid() {
+		long number = sequence.incrementAndGet();
+		byte[] globalTxId = new byte[prefix.length + 8];
+		System.arraycopy(prefix, 0, globalTxId, 0, prefix.length);
+		for (int i = globalTxId.length - 1; i >= prefix.length; i--) {
+			globalTxId[i] = (byte) number;
+			number >>>= 8;
+		}
+		return new XidImpl(globalTxId);
+	}
+
+	/**
+	 * @return the number of ids generated so far
+	 */
+	public long getSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * Immutable {@link Xid}; the getters return copies of the byte arrays.
+	 */
+	private static final class XidImpl implements Xid {
+
+		private final byte[] globalTxId;
+
+		private final int hash;
+
+		XidImpl(byte[] globalTxId) {
+			this.globalTxId = globalTxId;
+			this.hash = Arrays.hashCode(globalTxId);
+		}
+
+		public int getFormatId() {
+			return FORMAT_ID;
+		}
+
+		public byte[] getGlobalTransactionId() {
+			return globalTxId.clone();
+		}
+
+		public byte[] getBranchQualifier() {
+			return BRANCH_QUALIFIER.clone();
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Xid))
+				return false;
+			Xid other = (Xid) obj;
+			return (other.getFormatId() == FORMAT_ID && Arrays.equals(globalTxId, other.getGlobalTransactionId()) && Arrays
+					.equals(BRANCH_QUALIFIER, other.getBranchQualifier()));
+		}
+
+		public String toString() {
+			StringBuilder buffer = new StringBuilder("Xid[");
+			for (int i = 0; i < globalTxId.length; i++) {
+				int value = globalTxId[i] & 0xff;
+				if (value < 0x10)
+					buffer.append('0');
+				buffer.append(Integer.toHexString(value));
+			}
+			return buffer.append(']').toString();
+		}
+	}
+}
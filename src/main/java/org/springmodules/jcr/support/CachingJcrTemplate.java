@@ -0,0 +1,271 @@
+package org.springmodules.jcr.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.springmodules.jcr.ItemSnapshot;
+import org.springmodules.jcr.JcrCallback;
+import org.springmodules.jcr.JcrTemplate;
+import org.springmodules.jcr.NodeSnapshot;
+import org.springmodules.jcr.PropertySnapshot;
+import org.springmodules.jcr.SessionFactory;
+import org.springmodules.jcr.SessionFactoryUtils;
+import org.springmodules.jcr.SessionHolder;
+
+/**
+ * JcrTemplate with a read-through {@link NodeCache}. Repeated reads of the
+ * same paths or identifiers through {@link #getItemSnapshot(String)},
+ * {@link #getNodeSnapshotByIdentifier(String)} and {@link #itemExists(String)}
+ * are answered from the cache without touching the repository. Methods
+ * returning live JCR items (like {@link #getItem(String)}) are not cached since
+ * those items are bound to the session.
+ *
+ * <p/> The cache has to be registered as listener with the session factory:
+ *
+ * <pre>
+ * &lt;bean id="nodeCache" class="org.springmodules.jcr.support.NodeCache"/&gt;
+ *
+ * &lt;bean id="sessionFactory" class="org.springmodules.jcr.JcrSessionFactory"&gt;
+ *   ...
+ *   &lt;property name="eventListeners"&gt;
+ *     &lt;list&gt;
+ *       &lt;bean class="org.springmodules.jcr.EventListenerDefinition"&gt;
+ *         &lt;property name="listener" ref="nodeCache"/&gt;
+ *       &lt;/bean&gt;
+ *     &lt;/list&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * The cache holds the committed repository state: items are not cached while
+ * the session has pending changes or takes part in a transaction, whose saved
+ * changes may still be rolled back. Such sessions bypass the cache for reads
+ * as well, so that they see their own changes. All the sessions of the factory should see
+ * the same content, i.e. use the same workspace and credentials with the
+ * same read permissions.
+ *
+ */
+public class CachingJcrTemplate extends JcrTemplate {
+
+	private NodeCache nodeCache;
+
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	/**
+	 */
+	public CachingJcrTemplate() {
+	}
+
+	/**
+	 */
+	public CachingJcrTemplate(SessionFactory sessionFactory, NodeCache nodeCache) {
+		setSessionFactory(sessionFactory);
+		setNodeCache(nodeCache);
+		afterPropertiesSet();
+	}
+
+	/**
+	 * @return Returns the nodeCache.
+	 */
+	public NodeCache getNodeCache() {
+		return nodeCache;
+	}
+
+	/**
+	 * @param nodeCache The nodeCache to set.
+	 */
+	public void setNodeCache(NodeCache nodeCache) {
+		this.nodeCache = nodeCache;
+	}
+
+	/**
+	 * @see org.springmodules.jcr.JcrAccessor#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		super.afterPropertiesSet();
+		if (nodeCache == null)
+			throw new IllegalArgumentException("nodeCache is required");
+	}
+
+	/**
+	 * Return a snapshot of the item at the given path.
+	 *
+	 * @param absPath the item path
+	 * @return the snapshot or null if there is no item at the given path
+	 */
+	public ItemSnapshot getItemSnapshot(final String absPath) {
+		if (isCacheReadable()) {
+			Boolean exists = nodeCache.exists(absPath);
+			if (Boolean.FALSE.equals(exists)) {
+				cacheHits.incrementAndGet();
+				return null;
+			}
+			ItemSnapshot item = nodeCache.getItem(absPath);
+			if (item != null) {
+				cacheHits.incrementAndGet();
+				return item;
+			}
+			cacheMisses.incrementAndGet();
+		}
+
+		final long generation = nodeCache.getGeneration();
+		return (ItemSnapshot) execute(new JcrCallback() {
+
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				ItemSnapshot snapshot;
+				try {
+					Item item = session.getItem(absPath);
+					snapshot = (item.isNode() ? (ItemSnapshot) new NodeSnapshot((Node) item) : new PropertySnapshot(
+							(Property) item));
+				} catch (PathNotFoundException ex) {
+					snapshot = null;
+				}
+				if (isCommittedState(session)) {
+					if (snapshot == null)
+						nodeCache.putExists(absPath, false, generation);
+					else
+						nodeCache.put(snapshot, generation);
+				}
+				return snapshot;
+			}
+		}, true);
+	}
+
+	/**
+	 * Return a snapshot of the node at the given path.
+	 *
+	 * @param absPath the node path
+	 * @return the snapshot or null if there is no node at the given path
+	 */
+	public NodeSnapshot getNodeSnapshot(String absPath) {
+		ItemSnapshot item = getItemSnapshot(absPath);
+		return (item != null && item.isNode() ? (NodeSnapshot) item : null);
+	}
+
+	/**
+	 * Return a snapshot of the node with the given identifier.
+	 *
+	 * @param identifier the node identifier
+	 * @return the snapshot or null if there is no node with the given identifier
+	 */
+	public NodeSnapshot getNodeSnapshotByIdentifier(final String identifier) {
+		if (isCacheReadable()) {
+			NodeSnapshot node = nodeCache.getNodeByIdentifier(identifier);
+			if (node != null) {
+				cacheHits.incrementAndGet();
+				return node;
+			}
+			cacheMisses.incrementAndGet();
+		}
+
+		final long generation = nodeCache.getGeneration();
+		return (NodeSnapshot) execute(new JcrCallback() {
+
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				NodeSnapshot snapshot;
+				try {
+					snapshot = new NodeSnapshot(session.getNodeByIdentifier(identifier));
+				} catch (ItemNotFoundException ex) {
+					return null;
+				}
+				if (isCommittedState(session))
+					nodeCache.put(snapshot, generation);
+				return snapshot;
+			}
+		}, true);
+	}
+
+	/**
+	 * Check the cache before asking the repository.
+	 *
+	 * @see org.springmodules.jcr.JcrTemplate#itemExists(java.lang.String)
+	 */
+	@Override
+	public boolean itemExists(final String absPath) {
+		if (isCacheReadable()) {
+			Boolean exists = nodeCache.exists(absPath);
+			if (exists != null) {
+				cacheHits.incrementAndGet();
+				return exists.booleanValue();
+			}
+			cacheMisses.incrementAndGet();
+		}
+
+		final long generation = nodeCache.getGeneration();
+		return ((Boolean) execute(new JcrCallback() {
+
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws RepositoryException {
+				boolean exists = session.itemExists(absPath);
+				if (isCommittedState(session))
+					nodeCache.putExists(absPath, exists, generation);
+				return Boolean.valueOf(exists);
+			}
+		}, true)).booleanValue();
+	}
+
+	/**
+	 * @return Returns the number of reads answered by the cache.
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return Returns the number of reads which had to go to the repository.
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Return whether reads can be answered from the cache: the session bound
+	 * to the thread, if any, has no pending changes and is not used by a
+	 * transaction. Otherwise the cache could hide the changes of the session.
+	 */
+	private boolean isCacheReadable() {
+		SessionHolder sessionHolder = SessionFactoryUtils.getBoundSessionHolder(getSessionFactory());
+		if (sessionHolder == null)
+			return true;
+		if (sessionHolder.isSynchronizedWithTransaction())
+			return false;
+		try {
+			return !sessionHolder.getSession().hasPendingChanges();
+		} catch (RepositoryException ex) {
+			throw convertJcrAccessException(ex);
+		}
+	}
+
+	/**
+	 * Return whether the state seen by the given session is committed, and
+	 * can thus be shared with all the threads: the session has no pending
+	 * changes and is not used by a transaction.
+	 */
+	private boolean isCommittedState(Session session) throws RepositoryException {
+		SessionHolder sessionHolder = SessionFactoryUtils.getBoundSessionHolder(getSessionFactory());
+		if (sessionHolder != null && sessionHolder.isSynchronizedWithTransaction())
+			return false;
+		return !session.hasPendingChanges();
+	}
+}
@@ -0,0 +1,273 @@
+package org.springmodules.jcr.support;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import org.springmodules.jcr.ItemSnapshot;
+import org.springmodules.jcr.NodeSnapshot;
+
+/**
+ * Bounded LRU cache of {@link ItemSnapshot}s, keyed by path (and, for nodes,
+ * by identifier), which also remembers whether items exist. Used by
+ * {@link CachingJcrTemplate}.
+ *
+ * <p/> The cache is an {@link EventListener}: it has to be registered with the
+ * session factory (through an {@link org.springmodules.jcr.EventListenerDefinition}
+ * with the default settings, in particular <code>noLocal=false</code>) so
+ * it can drop the entries affected by changes. An event for a node drops the
+ * node, its descendants and its parent; an event for a property drops the
+ * property and its node. Since observation is asynchronous, a change becomes
+ * visible to the cache readers shortly after it has been saved.
+ *
+ * <p/> Every invalidation increments a generation counter. Readers take the
+ * generation before reading from the repository and hand it to
+ * {@link #put(ItemSnapshot, long)}, which ignores the snapshot if entries have
+ * been invalidated in the meantime, so a slow read can not resurrect stale
+ * content.
+ *
+ */
+public class NodeCache implements EventListener {
+
+	private static final Log log = LogFactory.getLog(NodeCache.class);
+
+	private static final int NODE_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED;
+
+	private final int maxSize;
+
+	/** snapshots or Boolean existence flags, by path */
+	private final Map<String, Object> entries;
+
+	/** sorted paths, for dropping subtrees */
+	private final TreeSet<String> paths = new TreeSet<String>();
+
+	/** paths of the cached nodes, by identifier */
+	private final Map<String, String> identifiers = new HashMap<String, String>();
+
+	private long generation;
+
+	private long invalidations;
+
+	/**
+	 * Create a cache holding up to 1000 entries.
+	 */
+	public NodeCache() {
+		this(1000);
+	}
+
+	/**
+	 * @param maxSize the maximum number of cached entries
+	 */
+	public NodeCache(final int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize has to be positive");
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				if (size() > maxSize) {
+					unindex(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param absPath the item path
+	 * @return the cached snapshot or null if there is none
+	 */
+	public synchronized ItemSnapshot getItem(String absPath) {
+		Object entry = entries.get(absPath);
+		return (entry instanceof ItemSnapshot ? (ItemSnapshot) entry : null);
+	}
+
+	/**
+	 * @param identifier the node identifier
+	 * @return the cached node snapshot or null if there is none
+	 */
+	public synchronized NodeSnapshot getNodeByIdentifier(String identifier) {
+		String path = identifiers.get(identifier);
+		return (path == null ? null : (NodeSnapshot) entries.get(path));
+	}
+
+	/**
+	 * @param absPath the item path
+	 * @return whether an item exists at the given path or null if that is not
+	 *         known
+	 */
+	public synchronized Boolean exists(String absPath) {
+		Object entry = entries.get(absPath);
+		if (entry == null)
+			return null;
+		return (entry instanceof Boolean ? (Boolean) entry : Boolean.TRUE);
+	}
+
+	/**
+	 * @return the current generation, to be passed to the put methods
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Cache the given snapshot, unless entries have been invalidated since the
+	 * given generation.
+	 *
+	 * @param item the snapshot
+	 * @param generation the generation taken before the item has been read
+	 * @return true if the snapshot has been cached
+	 */
+	public synchronized boolean put(ItemSnapshot item, long generation) {
+		if (generation != this.generation)
+			return false;
+		store(item.getPath(), item);
+		if (item instanceof NodeSnapshot)
+			identifiers.put(((NodeSnapshot) item).getIdentifier(), item.getPath());
+		return true;
+	}
+
+	/**
+	 * Remember whether an item exists, unless entries have been invalidated
+	 * since the given generation. A cached snapshot of the item is kept.
+	 *
+	 * @param absPath the item path
+	 * @param exists whether the item exists
+	 * @param generation the generation taken before the repository has been
+	 *            checked
+	 * @return true if the flag has been cached
+	 */
+	public synchronized boolean putExists(String absPath, boolean exists, long generation) {
+		if (generation != this.generation)
+			return false;
+		if (!exists || !(entries.get(absPath) instanceof ItemSnapshot))
+			store(absPath, Boolean.valueOf(exists));
+		return true;
+	}
+
+	private void store(String absPath, Object entry) {
+		Object previous = entries.put(absPath, entry);
+		if (previous == null)
+			paths.add(absPath);
+		else
+			unindexIdentifier(absPath, previous);
+	}
+
+	/**
+	 * Drop the entry for the given path and, if asked for, the entries below it.
+	 *
+	 * @param absPath the item path
+	 * @param descendants whether to drop the entries below the path as well
+	 */
+	public synchronized void invalidate(String absPath, boolean descendants) {
+		generation++;
+		invalidations++;
+		remove(absPath);
+		if (descendants) {
+			String prefix = ("/".equals(absPath) ? "/" : absPath + "/");
+			for (Iterator<String> iter = paths.tailSet(prefix).iterator(); iter.hasNext();) {
+				String path = iter.next();
+				if (!path.startsWith(prefix))
+					break;
+				iter.remove();
+				unindexIdentifier(path, entries.remove(path));
+			}
+		}
+	}
+
+	/**
+	 * Drop all the entries.
+	 */
+	public synchronized void clear() {
+		generation++;
+		invalidations++;
+		entries.clear();
+		paths.clear();
+		identifiers.clear();
+	}
+
+	private void remove(String absPath) {
+		Object entry = entries.remove(absPath);
+		if (entry != null)
+			unindex(absPath, entry);
+	}
+
+	private void unindex(String absPath, Object entry) {
+		paths.remove(absPath);
+		unindexIdentifier(absPath, entry);
+	}
+
+	private void unindexIdentifier(String absPath, Object entry) {
+		if (entry instanceof NodeSnapshot) {
+			String identifier = ((NodeSnapshot) entry).getIdentifier();
+			// the identifier might have been taken over by a node cached later
+			if (absPath.equals(identifiers.get(identifier)))
+				identifiers.remove(identifier);
+		}
+	}
+
+	/**
+	 * Drop the entries affected by the given events.
+	 *
+	 * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+	 */
+	public void onEvent(EventIterator events) {
+		while (events.hasNext()) {
+			Event event = events.nextEvent();
+			if (event.getType() == Event.PERSIST)
+				continue;
+			try {
+				String path = event.getPath();
+				boolean node = (event.getType() & NODE_EVENTS) != 0;
+				invalidate(path, node);
+				invalidate(parentOf(path), false);
+
+				if (event.getType() == Event.NODE_MOVED) {
+					Object source = event.getInfo().get("srcAbsPath");
+					if (source != null) {
+						invalidate(source.toString(), true);
+						invalidate(parentOf(source.toString()), false);
+					}
+				}
+			} catch (RepositoryException ex) {
+				log.warn("could not read event " + event + "; clearing the cache", ex);
+				clear();
+			}
+		}
+	}
+
+	private static String parentOf(String absPath) {
+		int index = absPath.lastIndexOf('/');
+		return (index <= 0 ? "/" : absPath.substring(0, index));
+	}
+
+	/**
+	 * @return the number of cached entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the maximum number of cached entries
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of invalidations so far
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+}
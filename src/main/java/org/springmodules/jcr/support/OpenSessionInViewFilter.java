@@ -20,8 +20,10 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
+import org.springmodules.jcr.LazySessionHolder;
 import org.springmodules.jcr.SessionFactory;
 import org.springmodules.jcr.SessionFactoryUtils;
+import org.springmodules.jcr.SessionHolder;
 
 /**
  * Servlet 2.3 Filter that binds a JCR Session to the thread for the
@@ -46,6 +48,12 @@ import org.springmodules.jcr.SessionFactoryUtils;
  * ContextLoaderServlet, the root application context will get initialized
  * <i>after</i> this filter).
  * 
+ * <p>
+ * With the "lazySessionAcquisition" init-param set to true, a
+ * {@link LazySessionHolder} is bound instead of a session: the session is
+ * opened on the first access and requests which never use JCR (static
+ * resources, cached pages) don't log in at all.
+ * 
  * @author Costin Leau
  */
 public class OpenSessionInViewFilter extends OncePerRequestFilter {
@@ -54,6 +62,8 @@ public class OpenSessionInViewFilter extends OncePerRequestFilter {
 	private static final Logger log = LoggerFactory.getLogger(OpenSessionInViewFilter.class);
 	
 	private String SessionFactoryBeanName = DEFAULT_JCR_SESSION_FACTORY_FACTORY_BEAN_NAME;
+
+	private boolean lazySessionAcquisition = false;
 	
 
 	/**
@@ -74,21 +84,38 @@ public class OpenSessionInViewFilter extends OncePerRequestFilter {
 		return SessionFactoryBeanName;
 	}
 
+	/**
+	 * Set whether the session is opened on the first access instead of at the
+	 * beginning of every request. Default is false.
+	 */
+	public void setLazySessionAcquisition(boolean lazySessionAcquisition) {
+		this.lazySessionAcquisition = lazySessionAcquisition;
+	}
+
+	/**
+	 * Return whether the session is opened on the first access.
+	 */
+	protected boolean isLazySessionAcquisition() {
+		return lazySessionAcquisition;
+	}
+
 
 	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
 			FilterChain filterChain) throws ServletException, IOException {
 
 		SessionFactory sf = lookupSessionFactory(request);
 		
-		Session session = null;
 		boolean participate = false;
 
 		if (TransactionSynchronizationManager.hasResource(sf)) {
 			// Do not modify the Session: just set the participate flag.
 			participate = true;
+		} else if (lazySessionAcquisition) {
+			log.debug("Binding lazy JCR session holder in OpenSessionInViewFilter");
+			TransactionSynchronizationManager.bindResource(sf, new LazySessionHolder());
 		} else {
 			log.debug("Opening JCR session in OpenSessionInViewFilter");
-			session = SessionFactoryUtils.getSession(sf, true);
+			Session session = SessionFactoryUtils.getSession(sf, true);
 			TransactionSynchronizationManager.bindResource(sf, sf.getSessionHolder(session));
 		}
 
@@ -98,9 +125,12 @@ public class OpenSessionInViewFilter extends OncePerRequestFilter {
 
 		finally {
 			if (!participate) {
-				TransactionSynchronizationManager.unbindResource(sf);
-				log.debug("Closing JCR session in OpenSessionInViewFilter");
-				SessionFactoryUtils.releaseSession(session, sf);
+				// the lazy holder is replaced by the real one once the session is opened
+				SessionHolder sessionHolder = (SessionHolder) TransactionSynchronizationManager.unbindResource(sf);
+				if (sessionHolder.hasSession()) {
+					log.debug("Closing JCR session in OpenSessionInViewFilter");
+					SessionFactoryUtils.releaseSession(sessionHolder.getSession(), sf);
+				}
 			}
 		}
 	}
@@ -16,6 +16,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataAccessException;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springmodules.jcr.LazySessionHolder;
 import org.springmodules.jcr.SessionFactory;
 import org.springmodules.jcr.SessionFactoryUtils;
 import org.springmodules.jcr.SessionHolder;
@@ -39,6 +40,12 @@ import org.springmodules.jcr.SessionHolder;
  * in a Spring application context and can thus take advantage of bean wiring.
  * It derives from JcrAccessor to inherit common JCR configuration properties.
  * 
+ * <p>
+ * With {@link #setLazySessionAcquisition(boolean)}, a
+ * {@link LazySessionHolder} is bound instead of a session: the session is
+ * opened on the first access and requests which never use JCR don't log in at
+ * all.
+ * 
  * @author Costin Leau
  */
 public class OpenSessionInViewInterceptor extends HandlerInterceptorAdapter implements InitializingBean {
@@ -56,6 +63,8 @@ public class OpenSessionInViewInterceptor extends HandlerInterceptorAdapter impl
 
 	private SessionFactory sessionFactory;
 
+	private boolean lazySessionAcquisition = false;
+
 	/**
 	 * Set the JCR JcrSessionFactory that should be used to create
 	 * Sessions.
@@ -72,6 +81,22 @@ public class OpenSessionInViewInterceptor extends HandlerInterceptorAdapter impl
 		return sessionFactory;
 	}
 
+	/**
+	 * Return whether the session is opened on the first access.
+	 */
+	public boolean isLazySessionAcquisition() {
+		return lazySessionAcquisition;
+	}
+
+	/**
+	 * Set whether the session is opened on the first access instead of in
+	 * {@link #preHandle(HttpServletRequest, HttpServletResponse, Object)}.
+	 * Default is false.
+	 */
+	public void setLazySessionAcquisition(boolean lazySessionAcquisition) {
+		this.lazySessionAcquisition = lazySessionAcquisition;
+	}
+
 	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
 			throws DataAccessException {
 
@@ -84,6 +109,11 @@ public class OpenSessionInViewInterceptor extends HandlerInterceptorAdapter impl
 			request.setAttribute(getParticipateAttributeName(), new Integer(newCount));
 		}
 
+		else if (lazySessionAcquisition) {
+			log.debug("Binding lazy JCR session holder in OpenSessionInViewInterceptor");
+			TransactionSynchronizationManager.bindResource(getSessionFactory(), new LazySessionHolder());
+		}
+
 		else {
 			log.debug("Opening JCR session in OpenSessionInViewInterceptor");
 			Session s = SessionFactoryUtils.getSession(getSessionFactory(), true);
@@ -111,8 +141,11 @@ public class OpenSessionInViewInterceptor extends HandlerInterceptorAdapter impl
 
 		else {
 			SessionHolder sesHolder = (SessionHolder) TransactionSynchronizationManager.unbindResource(getSessionFactory());
-			log.debug("Closing JCR session in OpenSessionInViewInterceptor");
-			SessionFactoryUtils.releaseSession(sesHolder.getSession(), getSessionFactory());
+			// no session has been opened if the lazy holder is still bound
+			if (sesHolder.hasSession()) {
+				log.debug("Closing JCR session in OpenSessionInViewInterceptor");
+				SessionFactoryUtils.releaseSession(sesHolder.getSession(), getSessionFactory());
+			}
 		}
 	}
 
@@ -0,0 +1,186 @@
+package org.springmodules.jcr.support;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataAccessException;
+import org.springmodules.jcr.JcrCallback;
+import org.springmodules.jcr.JcrTemplate;
+import org.springmodules.jcr.SessionFactory;
+import org.springmodules.jcr.SessionFactoryUtils;
+
+/**
+ * JcrTemplate which reruns the callbacks failing with a
+ * {@link ConcurrencyFailureException} (an <code>InvalidItemStateException</code>
+ * or a <code>LockException</code>, typically raised when several sessions
+ * modify the same parent node). The session of the failed attempt is
+ * refreshed, discarding its pending changes, and released; the next attempt
+ * runs with a fresh session after a jittered exponential backoff, up to
+ * {@link #setMaxAttempts(int)} attempts.
+ *
+ * <p/> Each attempt reruns the whole callback, which should therefore contain
+ * the complete unit of work (usually ending with <code>session.save()</code>).
+ * Operations running with a thread-bound session (inside a transaction or an
+ * open session in view) are not retried: the session holds changes made
+ * outside the callback, which a refresh would silently lose. The whole
+ * transaction has to be retried instead.
+ *
+ */
+public class RetryingJcrTemplate extends JcrTemplate {
+
+	private final Random random = new Random();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	private int maxAttempts = 3;
+
+	private long initialBackoff = 10;
+
+	private long maxBackoff = 1000;
+
+	/**
+	 */
+	public RetryingJcrTemplate() {
+	}
+
+	/**
+	 * @param sessionFactory
+	 */
+	public RetryingJcrTemplate(SessionFactory sessionFactory) {
+		super(sessionFactory);
+	}
+
+	/**
+	 * @see org.springmodules.jcr.JcrTemplate#execute(java.lang.String,
+	 *      org.springmodules.jcr.JcrCallback, boolean)
+	 */
+	@Override
+	protected Object execute(String operation, final JcrCallback action, boolean exposeNativeSession)
+			throws DataAccessException {
+		if (maxAttempts <= 1 || SessionFactoryUtils.getBoundSessionHolder(getSessionFactory()) != null)
+			return super.execute(operation, action, exposeNativeSession);
+
+		JcrCallback refreshingAction = new JcrCallback() {
+
+			/* (non-Javadoc)
+			 * @see org.springmodules.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+			 */
+			@Override
+			public Object doInJcr(Session session) throws IOException, RepositoryException {
+				try {
+					return action.doInJcr(session);
+				} catch (RepositoryException ex) {
+					if (convertJcrAccessException(ex) instanceof ConcurrencyFailureException)
+						session.refresh(false);
+					throw ex;
+				}
+			}
+		};
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				return super.execute(operation, refreshingAction, exposeNativeSession);
+			} catch (ConcurrencyFailureException ex) {
+				if (attempt >= maxAttempts)
+					throw ex;
+				long backoff = getBackoff(attempt);
+				if (logger.isDebugEnabled())
+					logger.debug("Retrying " + operation + " in " + backoff + " ms after attempt " + attempt
+							+ " failed: " + ex.getMessage());
+				retries.incrementAndGet();
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the time to wait before the next attempt: the initial backoff
+	 * doubled after each failed attempt, capped by the maximum backoff, and
+	 * randomized between half and all of it so that the competing sessions
+	 * don't retry in lockstep.
+	 *
+	 * @param attempt the number of the attempt which just failed, from 1
+	 * @return the backoff in milliseconds
+	 */
+	protected long getBackoff(int attempt) {
+		long backoff = initialBackoff;
+		for (int i = 1; i < attempt && backoff < maxBackoff; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, maxBackoff);
+		if (backoff <= 1)
+			return backoff;
+		long half = backoff / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (backoff - half));
+		}
+	}
+
+	/**
+	 * @return the number of times an operation has been retried
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * @return Returns the maxAttempts.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set the number of times an operation is attempted before its
+	 * concurrency failure is thrown; 1 disables the retries. Default is 3.
+	 *
+	 * @param maxAttempts The maxAttempts to set.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return Returns the initialBackoff.
+	 */
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Set the time (in milliseconds) to wait before the first retry. Default
+	 * is 10 ms.
+	 *
+	 * @param initialBackoff The initialBackoff to set.
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	/**
+	 * @return Returns the maxBackoff.
+	 */
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Set the maximum time (in milliseconds) to wait between two attempts.
+	 * Default is 1 second.
+	 *
+	 * @param maxBackoff The maxBackoff to set.
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+}
@@ -0,0 +1,314 @@
+package org.springmodules.jcr.support;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.DataAccessException;
+import org.springmodules.jcr.JcrMetrics;
+
+/**
+ * In-memory {@link JcrMetrics} implementation keeping counters and timers
+ * which can be read or reset. All the updates are lock-free, except the
+ * recording of slow operations.
+ *
+ * <p/> The class is a standard MBean: registered with an MBean server (for
+ * example by Spring's <code>MBeanExporter</code>), it exposes the session
+ * counters, a summary of the operation timers and the most recent slow
+ * operations.
+ *
+ */
+public class SimpleJcrMetrics implements JcrMetrics, SimpleJcrMetricsMBean {
+
+	/**
+	 * Timer of one operation.
+	 */
+	public static class OperationStats {
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong failures = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private final AtomicLong slow = new AtomicLong();
+
+		void record(long durationNanos, boolean success) {
+			count.incrementAndGet();
+			if (!success)
+				failures.incrementAndGet();
+			totalNanos.addAndGet(durationNanos);
+			long max;
+			while (durationNanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, durationNanos)) {
+				// retry
+			}
+		}
+
+		/**
+		 * @return the number of executions
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return the number of executions which threw an exception
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/**
+		 * @return the number of executions slower than the slow operation
+		 *         threshold of the template
+		 */
+		public long getSlow() {
+			return slow.get();
+		}
+
+		/**
+		 * @return the total execution time in nanoseconds
+		 */
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/**
+		 * @return the longest execution time in nanoseconds
+		 */
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		/**
+		 * @return the mean execution time in nanoseconds
+		 */
+		public long getMeanNanos() {
+			long executions = count.get();
+			return (executions == 0 ? 0 : totalNanos.get() / executions);
+		}
+
+		public String toString() {
+			return "count=" + getCount() + ", failures=" + getFailures() + ", slow=" + getSlow() + ", mean="
+					+ getMeanNanos() + "ns, max=" + getMaxNanos() + "ns";
+		}
+	}
+
+	private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	private final ConcurrentMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicLong sessionsOpened = new AtomicLong();
+
+	private final AtomicLong sessionsReused = new AtomicLong();
+
+	private final AtomicLong sessionsReleased = new AtomicLong();
+
+	private final AtomicLong sessionsLeaked = new AtomicLong();
+
+	private final AtomicLong slowOperations = new AtomicLong();
+
+	/** most recent slow operations, guarded by itself */
+	private final Deque<String> recentSlowOperations = new ArrayDeque<String>();
+
+	private int slowOperationSampleSize = 20;
+
+	public void operationCompleted(String operation, long durationNanos, boolean success) {
+		getStats(operation).record(durationNanos, success);
+	}
+
+	private OperationStats getStats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			OperationStats created = new OperationStats();
+			stats = operations.putIfAbsent(operation, created);
+			if (stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	public void slowOperation(String operation, long durationNanos, String details) {
+		getStats(operation).slow.incrementAndGet();
+		slowOperations.incrementAndGet();
+		String entry = operation + " took " + (durationNanos / 1000000) + " ms [" + details + "]";
+		synchronized (recentSlowOperations) {
+			if (slowOperationSampleSize <= 0)
+				return;
+			while (recentSlowOperations.size() >= slowOperationSampleSize) {
+				recentSlowOperations.removeFirst();
+			}
+			recentSlowOperations.addLast(entry);
+		}
+	}
+
+	public void sessionOpened() {
+		sessionsOpened.incrementAndGet();
+	}
+
+	public void sessionReused() {
+		sessionsReused.incrementAndGet();
+	}
+
+	public void sessionReleased() {
+		sessionsReleased.incrementAndGet();
+	}
+
+	public void sessionLeaked() {
+		sessionsLeaked.incrementAndGet();
+	}
+
+	public void exceptionTranslated(DataAccessException exception) {
+		String type = exception.getClass().getName();
+		AtomicLong counter = exceptions.get(type);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = exceptions.putIfAbsent(type, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * @param operation the operation name
+	 * @return the timer of the given operation or null if it has not been
+	 *         executed yet
+	 */
+	public OperationStats getOperation(String operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * @return the timers of all the operations executed so far, by name
+	 */
+	public Map<String, OperationStats> getOperations() {
+		return new TreeMap<String, OperationStats>(operations);
+	}
+
+	/**
+	 * @return one line per operation timer, sorted by operation name
+	 */
+	public String[] getOperationSummary() {
+		Map<String, OperationStats> stats = getOperations();
+		String[] summary = new String[stats.size()];
+		int i = 0;
+		for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+			summary[i++] = entry.getKey() + ": " + entry.getValue();
+		}
+		return summary;
+	}
+
+	/**
+	 * @return the number of translated exceptions, by exception class name
+	 */
+	public Map<String, Long> getTranslatedExceptions() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : exceptions.entrySet()) {
+			counts.put(entry.getKey(), new Long(entry.getValue().get()));
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of sessions opened
+	 */
+	public long getSessionsOpened() {
+		return sessionsOpened.get();
+	}
+
+	/**
+	 * @return the number of times a thread-bound session has been reused
+	 */
+	public long getSessionsReused() {
+		return sessionsReused.get();
+	}
+
+	/**
+	 * @return the number of sessions released
+	 */
+	public long getSessionsReleased() {
+		return sessionsReleased.get();
+	}
+
+	/**
+	 * @return the number of sessions detected as leaked
+	 */
+	public long getSessionsLeaked() {
+		return sessionsLeaked.get();
+	}
+
+	/**
+	 * @return the number of sessions opened but not released yet
+	 */
+	public long getOpenSessions() {
+		return sessionsOpened.get() - sessionsReleased.get();
+	}
+
+	/**
+	 * @return the number of operations slower than the slow operation
+	 *         threshold of their template
+	 */
+	public long getSlowOperations() {
+		return slowOperations.get();
+	}
+
+	/**
+	 * @return the most recent slow operations, oldest first
+	 */
+	public String[] getRecentSlowOperations() {
+		synchronized (recentSlowOperations) {
+			return recentSlowOperations.toArray(new String[recentSlowOperations.size()]);
+		}
+	}
+
+	/**
+	 * @return Returns the slowOperationSampleSize.
+	 */
+	public int getSlowOperationSampleSize() {
+		return slowOperationSampleSize;
+	}
+
+	/**
+	 * Set the number of recent slow operations kept for inspection. Default is
+	 * 20.
+	 *
+	 * @param slowOperationSampleSize The slowOperationSampleSize to set.
+	 */
+	public void setSlowOperationSampleSize(int slowOperationSampleSize) {
+		synchronized (recentSlowOperations) {
+			this.slowOperationSampleSize = slowOperationSampleSize;
+			while (recentSlowOperations.size() > Math.max(slowOperationSampleSize, 0)) {
+				recentSlowOperations.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * Reset all the counters and timers.
+	 */
+	public void reset() {
+		operations.clear();
+		exceptions.clear();
+		sessionsOpened.set(0);
+		sessionsReused.set(0);
+		sessionsReleased.set(0);
+		sessionsLeaked.set(0);
+		slowOperations.set(0);
+		synchronized (recentSlowOperations) {
+			recentSlowOperations.clear();
+		}
+	}
+
+	public String toString() {
+		return "SimpleJcrMetrics[opened=" + getSessionsOpened() + ", reused=" + getSessionsReused() + ", released="
+				+ getSessionsReleased() + ", leaked=" + getSessionsLeaked() + ", slow=" + getSlowOperations() + ", operations=" + getOperations()
+				+ ", exceptions=" + getTranslatedExceptions() + "]";
+	}
+}
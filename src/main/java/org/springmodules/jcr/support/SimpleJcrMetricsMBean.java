@@ -0,0 +1,53 @@
+package org.springmodules.jcr.support;
+
+/**
+ * Management interface of {@link SimpleJcrMetrics}.
+ *
+ */
+public interface SimpleJcrMetricsMBean {
+
+	/**
+	 * @return the number of sessions opened
+	 */
+	long getSessionsOpened();
+
+	/**
+	 * @return the number of times a thread-bound session has been reused
+	 */
+	long getSessionsReused();
+
+	/**
+	 * @return the number of sessions released
+	 */
+	long getSessionsReleased();
+
+	/**
+	 * @return the number of sessions detected as leaked
+	 */
+	long getSessionsLeaked();
+
+	/**
+	 * @return the number of sessions opened but not released yet
+	 */
+	long getOpenSessions();
+
+	/**
+	 * @return the number of slow operations
+	 */
+	long getSlowOperations();
+
+	/**
+	 * @return the most recent slow operations, oldest first
+	 */
+	String[] getRecentSlowOperations();
+
+	/**
+	 * @return one line per operation timer
+	 */
+	String[] getOperationSummary();
+
+	/**
+	 * Reset all the counters and timers.
+	 */
+	void reset();
+}
@@ -0,0 +1,238 @@
+package org.springmodules.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import junit.framework.TestCase;
+
+import org.springmodules.jcr.AsyncEventListener.BackpressurePolicy;
+
+public class AsyncEventListenerTests extends TestCase {
+
+    private CountDownLatch release;
+    private CountDownLatch started;
+    private List received;
+    private List receivedTypes;
+    private AsyncEventListener listener;
+
+    protected void setUp() {
+        release = new CountDownLatch(1);
+        started = new CountDownLatch(1);
+        received = Collections.synchronizedList(new ArrayList());
+        receivedTypes = Collections.synchronizedList(new ArrayList());
+    }
+
+    protected void tearDown() {
+        if (listener != null)
+            listener.destroy();
+    }
+
+    public void testDispatch() throws Exception {
+        release.countDown();
+        listener = new AsyncEventListener(new RecordingListener(), 10, 2, BackpressurePolicy.BLOCK);
+
+        listener.onEvent(events(new String[] { "/a", "/b" }));
+        listener.onEvent(events(new String[] { "/c" }));
+        waitFor(3);
+
+        assertEquals(3, listener.getDispatchedEvents());
+        assertEquals(0, listener.getDroppedEvents());
+        assertEquals(0, listener.getQueueDepth());
+        assertTrue(received.containsAll(Arrays.asList(new String[] { "/a", "/b", "/c" })));
+    }
+
+    public void testDropOldest() throws Exception {
+        listener = new AsyncEventListener(new RecordingListener(), 2, 1, BackpressurePolicy.DROP_OLDEST);
+
+        // the dispatcher blocks on the first batch
+        listener.onEvent(events(new String[] { "/first" }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        listener.onEvent(events(new String[] { "/a" }));
+        listener.onEvent(events(new String[] { "/b" }));
+        listener.onEvent(events(new String[] { "/c", "/d" }));
+        assertEquals(2, listener.getQueueDepth());
+        assertEquals(2, listener.getMaxQueueDepth());
+        assertEquals(1, listener.getDroppedEvents());
+
+        release.countDown();
+        waitFor(4);
+        assertEquals(Arrays.asList(new String[] { "/first", "/b", "/c", "/d" }), received);
+    }
+
+    public void testCoalesce() throws Exception {
+        listener = new AsyncEventListener(new RecordingListener(), 1, 1, BackpressurePolicy.COALESCE);
+
+        listener.onEvent(events(new String[] { "/first" }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        listener.onEvent(events(new String[] { "/a" }));
+        listener.onEvent(events(new String[] { "/a", "/b" }));
+        assertEquals(1, listener.getQueueDepth());
+        assertEquals(1, listener.getCoalescedEvents());
+        assertEquals(0, listener.getDroppedEvents());
+
+        release.countDown();
+        waitFor(3);
+        assertEquals(Arrays.asList(new String[] { "/first", "/a", "/b" }), received);
+    }
+
+    public void testCoalesceKeepsLatestOrder() throws Exception {
+        listener = new AsyncEventListener(new RecordingListener(), 1, 1, BackpressurePolicy.COALESCE);
+
+        listener.onEvent(events(new String[] { "/first" }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        listener.onEvent(new EventListIterator(Arrays.asList(new Object[] { new TestEvent(Event.NODE_ADDED, "/a"),
+                new TestEvent(Event.NODE_REMOVED, "/a") })));
+        listener.onEvent(events(new String[] { "/a" }));
+        assertEquals(1, listener.getCoalescedEvents());
+
+        release.countDown();
+        waitFor(3);
+        // the node exists in the end: the addition has to come last
+        assertEquals(Arrays.asList(new String[] { "/first", "/a", "/a" }), received);
+        assertEquals(Arrays.asList(new Integer[] { new Integer(Event.NODE_ADDED), new Integer(Event.NODE_REMOVED),
+                new Integer(Event.NODE_ADDED) }), receivedTypes);
+    }
+
+    public void testCoalesceLimit() throws Exception {
+        listener = new AsyncEventListener(new RecordingListener(), 1, 1, BackpressurePolicy.COALESCE);
+        listener.setMaxCoalescedBatchSize(2);
+
+        listener.onEvent(events(new String[] { "/first" }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        listener.onEvent(events(new String[] { "/a" }));
+        listener.onEvent(events(new String[] { "/b" }));
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                listener.onEvent(events(new String[] { "/c" }));
+                queued.countDown();
+            }
+        };
+        producer.start();
+        // the queued batch is full, the producer has to wait for the dispatcher
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, listener.getQueueDepth());
+
+        release.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        waitFor(4);
+        assertEquals(Arrays.asList(new String[] { "/first", "/a", "/b", "/c" }), received);
+        assertEquals(0, listener.getCoalescedEvents());
+        assertEquals(0, listener.getDroppedEvents());
+    }
+
+    public void testBlock() throws Exception {
+        listener = new AsyncEventListener(new RecordingListener(), 1, 1, BackpressurePolicy.BLOCK);
+
+        listener.onEvent(events(new String[] { "/first" }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        listener.onEvent(events(new String[] { "/a" }));
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                listener.onEvent(events(new String[] { "/b" }));
+                queued.countDown();
+            }
+        };
+        producer.start();
+        // the queue is full, the producer has to wait for the dispatcher
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        waitFor(3);
+        assertEquals(Arrays.asList(new String[] { "/first", "/a", "/b" }), received);
+        assertEquals(0, listener.getDroppedEvents());
+    }
+
+    public void testFailingListener() throws Exception {
+        listener = new AsyncEventListener(new EventListener() {
+            public void onEvent(EventIterator events) {
+                received.add(events.nextEvent());
+                throw new IllegalStateException();
+            }
+        }, 10, 1, BackpressurePolicy.BLOCK);
+
+        listener.onEvent(events(new String[] { "/a" }));
+        listener.onEvent(events(new String[] { "/b" }));
+        waitFor(2);
+        // give the dispatcher the time to count the failure
+        for (int i = 0; i < 50 && listener.getFailedDispatches() < 2; i++)
+            Thread.sleep(10);
+
+        assertEquals(2, listener.getFailedDispatches());
+        assertEquals(0, listener.getDispatchedEvents());
+    }
+
+    public void testEventListenerDefinition() throws Exception {
+        EventListenerDefinition definition = new EventListenerDefinition();
+        EventListener target = new RecordingListener();
+        definition.setListener(target);
+        assertSame(target, definition.getObservationListener());
+
+        definition.setAsynchronous(true);
+        definition.setQueueCapacity(5);
+        definition.setDispatchThreads(2);
+        definition.setBackpressurePolicy(BackpressurePolicy.COALESCE);
+
+        AsyncEventListener async = (AsyncEventListener) definition.getObservationListener();
+        assertSame(async, definition.getObservationListener());
+        assertSame(target, async.getTarget());
+        assertEquals(5, async.getQueueCapacity());
+        assertEquals(2, async.getDispatchThreads());
+        assertEquals(BackpressurePolicy.COALESCE, async.getBackpressurePolicy());
+        assertEquals(1000, async.getMaxCoalescedBatchSize());
+
+        definition.destroy();
+        async.onEvent(events(new String[] { "/a" }));
+        assertEquals(1, async.getDroppedEvents());
+    }
+
+    private void waitFor(int events) throws InterruptedException {
+        for (int i = 0; i < 500 && received.size() < events; i++)
+            Thread.sleep(10);
+        assertEquals(events, received.size());
+    }
+
+    private static EventIterator events(String[] paths) {
+        List events = new ArrayList();
+        for (int i = 0; i < paths.length; i++) {
+            events.add(new TestEvent(paths[i]));
+        }
+        return new EventListIterator(events);
+    }
+
+    private class RecordingListener implements EventListener {
+        public void onEvent(EventIterator events) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                while (events.hasNext()) {
+                    Event event = events.nextEvent();
+                    receivedTypes.add(new Integer(event.getType()));
+                    received.add(event.getPath());
+                }
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.springmodules.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.ConstraintViolationException;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+public class BatchWriterTests extends TestCase {
+
+    private MockControl sfControl;
+    private SessionFactory sf;
+    private MockControl sessionControl;
+    private Session session;
+    private BatchWriter writer;
+    private RecordingListener listener;
+
+    protected void setUp() throws Exception {
+        sfControl = MockControl.createControl(SessionFactory.class);
+        sf = (SessionFactory) sfControl.getMock();
+        sessionControl = MockControl.createControl(Session.class);
+        session = (Session) sessionControl.getMock();
+
+        writer = new BatchWriter(sf);
+        listener = new RecordingListener();
+        writer.setBatchListener(listener);
+    }
+
+    protected void tearDown() {
+        sfControl.verify();
+        sessionControl.verify();
+    }
+
+    public void testBatchSize() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session);
+        session.save();
+        sessionControl.setVoidCallable(3);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        final List written = new ArrayList();
+        writer.setBatchSize(2);
+        int count = writer.write(Arrays.asList(new Object[] { "a", "b", "c", "d", "e" }), new BatchCallback() {
+            public long doInBatch(Session sess, Object item) {
+                assertSame(session, sess);
+                written.add(item);
+                return 0;
+            }
+        });
+
+        assertEquals(5, count);
+        assertEquals(5, written.size());
+        assertEquals(Arrays.asList(new Object[] { new Integer(2), new Integer(2), new Integer(1) }), listener.saved);
+        assertTrue(listener.failed.isEmpty());
+    }
+
+    public void testMaxBatchBytes() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session);
+        session.save();
+        sessionControl.setVoidCallable(2);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        writer.setMaxBatchBytes(25);
+        int count = writer.write(Arrays.asList(new Object[] { "a", "b", "c", "d" }), new BatchCallback() {
+            public long doInBatch(Session sess, Object item) {
+                return 10;
+            }
+        });
+
+        assertEquals(4, count);
+        assertEquals(Arrays.asList(new Object[] { new Integer(3), new Integer(1) }), listener.saved);
+        assertEquals(40, listener.bytes);
+    }
+
+    public void testFailingBatch() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session);
+        session.save();
+        session.refresh(false);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        writer.setBatchSize(2);
+        try {
+            writer.write(Arrays.asList(new Object[] { "a", "b", "c", "d" }), new FailingCallback("c"));
+            fail("expected exception");
+        } catch (DataIntegrityViolationException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList(new Object[] { new Integer(2) }), listener.saved);
+        assertEquals(Arrays.asList(new Object[] { new Integer(2) }), listener.failed);
+    }
+
+    public void testContinueOnError() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session);
+        session.save();
+        sessionControl.setVoidCallable(2);
+        session.refresh(false);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        writer.setBatchSize(2);
+        writer.setContinueOnError(true);
+        int count = writer.write(Arrays.asList(new Object[] { "a", "b", "c", "d", "e" }), new FailingCallback("c"));
+
+        // the failing batch ends with c, the next one starts with d
+        assertEquals(4, count);
+        assertEquals(Arrays.asList(new Object[] { new Integer(2), new Integer(2) }), listener.saved);
+        assertEquals(Arrays.asList(new Object[] { new Integer(2) }), listener.failed);
+    }
+
+    public void testTransactionPerBatch() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session, 2);
+        session.save();
+        sessionControl.setVoidCallable(2);
+        // the dummy transaction manager does not bind the session
+        session.logout();
+        sessionControl.setVoidCallable(2);
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        RecordingTransactionManager tm = new RecordingTransactionManager();
+        writer.setTransactionManager(tm);
+        writer.setBatchSize(2);
+        int count = writer.write(Arrays.asList(new Object[] { "a", "b", "c" }), new FailingCallback(null));
+
+        assertEquals(3, count);
+        assertEquals(2, tm.begun);
+        assertEquals(2, tm.committed);
+        assertEquals(0, tm.rolledBack);
+        assertEquals(TransactionDefinition.PROPAGATION_REQUIRES_NEW, tm.propagation);
+    }
+
+    public void testTransactionRolledBack() throws RepositoryException {
+        sfControl.expectAndReturn(sf.getSession(), session);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        RecordingTransactionManager tm = new RecordingTransactionManager();
+        writer.setTransactionManager(tm);
+        try {
+            writer.write(Arrays.asList(new Object[] { "a" }), new FailingCallback("a"));
+            fail("expected exception");
+        } catch (DataIntegrityViolationException e) {
+            // expected
+        }
+
+        assertEquals(0, tm.committed);
+        assertEquals(1, tm.rolledBack);
+        assertEquals(Arrays.asList(new Object[] { new Integer(1) }), listener.failed);
+    }
+
+    private static class FailingCallback implements BatchCallback {
+        private final Object failOn;
+
+        private FailingCallback(Object failOn) {
+            this.failOn = failOn;
+        }
+
+        public long doInBatch(Session session, Object item) throws RepositoryException {
+            if (item.equals(failOn))
+                throw new ConstraintViolationException();
+            return 0;
+        }
+    }
+
+    private static class RecordingListener implements BatchListener {
+        private final List saved = new ArrayList();
+        private final List failed = new ArrayList();
+        private long bytes;
+
+        public void batchSaved(int batchNumber, List items, long bytes) {
+            assertEquals(saved.size() + failed.size() + 1, batchNumber);
+            saved.add(new Integer(items.size()));
+            this.bytes += bytes;
+        }
+
+        public void batchFailed(int batchNumber, List items, RuntimeException ex) {
+            assertEquals(saved.size() + failed.size() + 1, batchNumber);
+            failed.add(new Integer(batchNumber));
+        }
+    }
+
+    private static class RecordingTransactionManager implements PlatformTransactionManager {
+        private int begun;
+        private int committed;
+        private int rolledBack;
+        private int propagation;
+
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            begun++;
+            propagation = definition.getPropagationBehavior();
+            return new SimpleTransactionStatus();
+        }
+
+        public void commit(TransactionStatus status) {
+            committed++;
+        }
+
+        public void rollback(TransactionStatus status) {
+            rolledBack++;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.springmodules.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import junit.framework.TestCase;
+
+public class BatchingEventListenerTests extends TestCase {
+
+    private List batches;
+    private BatchingEventListener listener;
+
+    protected void setUp() {
+        batches = Collections.synchronizedList(new ArrayList());
+    }
+
+    protected void tearDown() {
+        if (listener != null)
+            listener.destroy();
+    }
+
+    public void testBatchSize() {
+        listener = new BatchingEventListener(new RecordingListener(), 60000, 3, false);
+
+        listener.onEvent(events(new Object[] { add("/a"), add("/b") }));
+        assertTrue(batches.isEmpty());
+        listener.onEvent(events(new Object[] { add("/c"), add("/d") }));
+
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(new String[] { "1:/a", "1:/b", "1:/c", "1:/d" }), batches.get(0));
+        assertEquals(4, listener.getReceivedEvents());
+        assertEquals(4, listener.getDeliveredEvents());
+        assertEquals(1, listener.getDeliveredBatches());
+    }
+
+    public void testBatchWindow() throws Exception {
+        listener = new BatchingEventListener(new RecordingListener(), 50, 0, false);
+
+        listener.onEvent(events(new Object[] { add("/a") }));
+        listener.onEvent(events(new Object[] { add("/b") }));
+        assertTrue(batches.isEmpty());
+
+        for (int i = 0; i < 200 && batches.isEmpty(); i++)
+            Thread.sleep(10);
+        assertEquals(Arrays.asList(new Object[] { Arrays.asList(new String[] { "1:/a", "1:/b" }) }), batches);
+    }
+
+    public void testDuplicates() {
+        listener = new BatchingEventListener(new RecordingListener(), 60000, 0, false);
+
+        listener.onEvent(events(new Object[] { changed("/a/p"), changed("/a/p"), add("/a") }));
+        listener.onEvent(events(new Object[] { changed("/a/p"), changed("/a/q") }));
+        listener.flush();
+
+        assertEquals(Arrays.asList(new String[] { "1:/a", "16:/a/p", "16:/a/q" }), batches.get(0));
+        assertEquals(5, listener.getReceivedEvents());
+        assertEquals(3, listener.getDeliveredEvents());
+    }
+
+    public void testDuplicatesKeepLatestOrder() {
+        listener = new BatchingEventListener(new RecordingListener(), 60000, 0, false);
+
+        listener.onEvent(events(new Object[] { add("/x"), removed("/x") }));
+        listener.onEvent(events(new Object[] { add("/x") }));
+        listener.flush();
+
+        // the node exists in the end: the addition has to come last
+        assertEquals(Arrays.asList(new String[] { "2:/x", "1:/x" }), batches.get(0));
+    }
+
+    public void testCollapseDescendants() {
+        listener = new BatchingEventListener(new RecordingListener(), 60000, 0, true);
+
+        listener.onEvent(events(new Object[] { add("/a"), add("/a/b"), changed("/a/b/p"), changed("/ab/p"),
+                changed("/c/p") }));
+        listener.flush();
+
+        assertEquals(Arrays.asList(new String[] { "1:/a", "16:/ab/p", "16:/c/p" }), batches.get(0));
+    }
+
+    public void testDestroyDeliversPendingEvents() {
+        listener = new BatchingEventListener(new RecordingListener(), 60000, 0, false);
+
+        listener.onEvent(events(new Object[] { add("/a") }));
+        listener.destroy();
+        assertEquals(1, batches.size());
+
+        // later events are delivered right away
+        listener.onEvent(events(new Object[] { add("/b") }));
+        assertEquals(2, batches.size());
+    }
+
+    public void testSerializedDelivery() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        listener = new BatchingEventListener(new EventListener() {
+            public void onEvent(EventIterator events) {
+                List batch = new ArrayList();
+                try {
+                    while (events.hasNext())
+                        batch.add(events.nextEvent().getPath());
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+                batches.add(batch);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 60000, 1, false);
+
+        Thread first = new Thread() {
+            public void run() {
+                listener.onEvent(events(new Object[] { add("/a") }));
+            }
+        };
+        first.start();
+        for (int i = 0; i < 500 && batches.isEmpty(); i++)
+            Thread.sleep(10);
+        assertEquals(1, batches.size());
+
+        Thread second = new Thread() {
+            public void run() {
+                listener.onEvent(events(new Object[] { add("/b") }));
+            }
+        };
+        second.start();
+        // the second batch has to wait for the first one to be delivered
+        second.join(100);
+        assertEquals(1, batches.size());
+
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+        assertEquals(Arrays.asList(new Object[] { Arrays.asList(new String[] { "/a" }),
+                Arrays.asList(new String[] { "/b" }) }), batches);
+    }
+
+    public void testEventListenerDefinition() throws Exception {
+        EventListenerDefinition definition = new EventListenerDefinition();
+        EventListener target = new RecordingListener();
+        definition.setListener(target);
+        definition.setBatchWindow(100);
+        definition.setBatchSize(10);
+        definition.setCollapseDescendants(true);
+
+        BatchingEventListener batching = (BatchingEventListener) definition.getObservationListener();
+        assertSame(batching, definition.getObservationListener());
+        assertSame(target, batching.getTarget());
+        assertEquals(100, batching.getBatchWindow());
+        assertEquals(10, batching.getBatchSize());
+        assertTrue(batching.isCollapseDescendants());
+        definition.destroy();
+
+        definition = new EventListenerDefinition();
+        definition.setListener(target);
+        definition.setBatchWindow(100);
+        definition.setAsynchronous(true);
+        batching = (BatchingEventListener) definition.getObservationListener();
+        assertTrue(batching.getTarget() instanceof AsyncEventListener);
+        assertSame(target, ((AsyncEventListener) batching.getTarget()).getTarget());
+        definition.destroy();
+    }
+
+    private static Event add(String path) {
+        return new TestEvent(Event.NODE_ADDED, path);
+    }
+
+    private static Event removed(String path) {
+        return new TestEvent(Event.NODE_REMOVED, path);
+    }
+
+    private static Event changed(String path) {
+        return new TestEvent(Event.PROPERTY_CHANGED, path);
+    }
+
+    private static EventIterator events(Object[] events) {
+        return new EventListIterator(Arrays.asList(events));
+    }
+
+    private class RecordingListener implements EventListener {
+        public void onEvent(EventIterator events) {
+            List batch = new ArrayList();
+            try {
+                while (events.hasNext()) {
+                    Event event = events.nextEvent();
+                    batch.add(event.getType() + ":" + event.getPath());
+                }
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+            batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.springmodules.jcr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class BulkImporterTests extends TestCase {
+
+    private static final int UUID_BEHAVIOR = ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW;
+
+    private List controls;
+    private LinkedList sessions;
+    private List recorders;
+    private BulkImporter importer;
+
+    protected void setUp() throws Exception {
+        controls = new ArrayList();
+        sessions = new LinkedList();
+        recorders = Collections.synchronizedList(new ArrayList());
+
+        importer = new BulkImporter(new SessionFactory() {
+            public synchronized Session getSession() {
+                return (Session) sessions.removeFirst();
+            }
+
+            public SessionHolder getSessionHolder(Session session) {
+                return new SessionHolder(session);
+            }
+        });
+        importer.setConcurrency(2);
+        importer.setQueueCapacity(2);
+    }
+
+    protected void tearDown() {
+        for (int i = 0; i < controls.size(); i++) {
+            ((MockControl) controls.get(i)).verify();
+        }
+    }
+
+    public void testDocumentView() throws Exception {
+        Recorder root = expectRootSession("root");
+        expectChunkSession(null);
+        expectChunkSession(null);
+        replay();
+
+        String xml = "<root xmlns:my='http://my' title='r'> <a my:p='1'><x>text</x></a><b/></root>";
+        int chunks = importer.importXML("/parent", new ByteArrayInputStream(xml.getBytes("UTF-8")), UUID_BEHAVIOR);
+
+        assertEquals(2, chunks);
+        assertEquals("{[my]<root title></root>}", root.toString());
+        List imported = new ArrayList(recorders);
+        Collections.sort(imported);
+        assertEquals("{[my]<a my:p><x>text</x></a>}", imported.get(0));
+        assertEquals("{[my]<b></b>}", imported.get(1));
+    }
+
+    public void testSystemView() throws Exception {
+        Recorder root = expectRootSession("my:root");
+        expectChunkSession(null);
+        replay();
+
+        String xml = "<sv:node xmlns:sv='http://www.jcp.org/jcr/sv/1.0' sv:name='my:root'>"
+                + "<sv:property sv:name='title'><sv:value>r</sv:value></sv:property>"
+                + "<sv:node sv:name='a'><sv:property sv:name='p'><sv:value>1</sv:value></sv:property></sv:node>"
+                + "</sv:node>";
+        int chunks = importer.importXML("/parent", new ByteArrayInputStream(xml.getBytes("UTF-8")), UUID_BEHAVIOR);
+
+        assertEquals(1, chunks);
+        assertEquals("{[sv]<sv:node sv:name><sv:property sv:name><sv:value>r</sv:value></sv:property></sv:node>}",
+                root.toString());
+        assertEquals("{[sv]<sv:node sv:name><sv:property sv:name><sv:value>1</sv:value></sv:property></sv:node>}",
+                recorders.get(0));
+    }
+
+    public void testExternalEntities() throws Exception {
+        File secret = File.createTempFile("secret", ".txt");
+        try {
+            FileWriter writer = new FileWriter(secret);
+            writer.write("secret");
+            writer.close();
+
+            expectRootSession("root");
+            expectChunkSession(null);
+            replay();
+
+            String xml = "<!DOCTYPE root SYSTEM 'http://localhost:1/missing.dtd' [<!ENTITY xxe SYSTEM '"
+                    + secret.toURI() + "'>]><root><a><x>&xxe;</x></a></root>";
+            int chunks = importer.importXML("/parent", new ByteArrayInputStream(xml.getBytes("UTF-8")), UUID_BEHAVIOR);
+
+            assertEquals(1, chunks);
+            assertEquals(-1, recorders.get(0).toString().indexOf("secret"));
+        } finally {
+            secret.delete();
+        }
+    }
+
+    public void testFailingChunk() throws Exception {
+        expectRootSession("root");
+        expectChunkSession(new InvalidItemStateException());
+        replay();
+
+        String xml = "<root><a><x/><y/><z/></a></root>";
+        try {
+            importer.importXML("/parent", new ByteArrayInputStream(xml.getBytes("UTF-8")), UUID_BEHAVIOR);
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        }
+    }
+
+    private Recorder expectRootSession(String name) throws RepositoryException {
+        MockControl sessionControl = MockControl.createControl(Session.class);
+        Session session = (Session) sessionControl.getMock();
+        MockControl parentControl = MockControl.createControl(Node.class);
+        Node parent = (Node) parentControl.getMock();
+        MockControl iterControl = MockControl.createControl(NodeIterator.class);
+        NodeIterator iter = (NodeIterator) iterControl.getMock();
+        MockControl nodeControl = MockControl.createControl(Node.class);
+        Node node = (Node) nodeControl.getMock();
+
+        Recorder recorder = new Recorder(false);
+        sessionControl.expectAndReturn(session.getImportContentHandler("/parent", UUID_BEHAVIOR), recorder);
+        session.save();
+        sessionControl.expectAndReturn(session.getNode("/parent"), parent);
+        parentControl.expectAndReturn(parent.getNodes(name), iter);
+        iterControl.expectAndReturn(iter.hasNext(), true);
+        iterControl.expectAndReturn(iter.nextNode(), node);
+        iterControl.expectAndReturn(iter.hasNext(), false);
+        nodeControl.expectAndReturn(node.getPath(), "/parent/root");
+        session.logout();
+
+        controls.add(sessionControl);
+        controls.add(parentControl);
+        controls.add(iterControl);
+        controls.add(nodeControl);
+        sessions.add(session);
+        return recorder;
+    }
+
+    private void expectChunkSession(RepositoryException saveFailure) throws RepositoryException {
+        MockControl sessionControl = MockControl.createControl(Session.class);
+        Session session = (Session) sessionControl.getMock();
+
+        sessionControl.expectAndReturn(session.getImportContentHandler("/parent/root", UUID_BEHAVIOR),
+                new Recorder(true));
+        session.save();
+        if (saveFailure != null)
+            sessionControl.setThrowable(saveFailure);
+        session.logout();
+
+        controls.add(sessionControl);
+        sessions.add(session);
+    }
+
+    private void replay() {
+        for (int i = 0; i < controls.size(); i++) {
+            ((MockControl) controls.get(i)).replay();
+        }
+    }
+
+    /**
+     * Records the received events in a compact form.
+     */
+    private class Recorder extends DefaultHandler {
+        private final StringBuilder events = new StringBuilder();
+        private final boolean chunk;
+
+        private Recorder(boolean chunk) {
+            this.chunk = chunk;
+        }
+
+        public void startDocument() {
+            events.append('{');
+        }
+
+        public void endDocument() {
+            events.append('}');
+            if (chunk)
+                recorders.add(toString());
+        }
+
+        public void startPrefixMapping(String prefix, String uri) {
+            events.append('[').append(prefix).append(']');
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            events.append('<').append(qName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                events.append(' ').append(atts.getQName(i));
+            }
+            events.append('>');
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            events.append("</").append(qName).append('>');
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            events.append(ch, start, length);
+        }
+
+        public String toString() {
+            return events.toString();
+        }
+    }
+}
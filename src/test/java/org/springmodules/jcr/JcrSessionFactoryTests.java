@@ -104,6 +104,17 @@ public class JcrSessionFactoryTests extends TestCase {
 		assertFalse(factory.equals(fact2));
 	}
 
+	public void testHashCodeFollowsProperties() {
+		int hash = factory.hashCode();
+		assertEquals(hash, factory.hashCode());
+
+		factory.setWorkspaceName("ws");
+		assertEquals(37 * hash + "ws".hashCode(), factory.hashCode());
+
+		factory.setWorkspaceName(null);
+		assertEquals(hash, factory.hashCode());
+	}
+
 	public void testAddListeners() throws RepositoryException {
 		EventListenerDefinition def1 = new EventListenerDefinition();
 		EventListenerDefinition def2 = new EventListenerDefinition();
@@ -146,6 +157,56 @@ public class JcrSessionFactoryTests extends TestCase {
 		omCtrl.verify();
 	}
 
+	public void testSharedObservationSession() throws Exception {
+		EventListenerDefinition def = new EventListenerDefinition();
+		factory.setEventListeners(new EventListenerDefinition[] { def });
+		factory.setSharedObservationSession(true);
+
+		MockControl obsSessionCtrl = MockControl.createControl(Session.class);
+		Session obsSession = (Session) obsSessionCtrl.getMock();
+
+		MockControl sessionCtrl = MockControl.createControl(Session.class);
+		Session session = (Session) sessionCtrl.getMock();
+
+		MockControl wsCtrl = MockControl.createControl(Workspace.class);
+		Workspace ws = (Workspace) wsCtrl.getMock();
+
+		MockControl omCtrl = MockControl.createControl(ObservationManager.class);
+		ObservationManager oManager = (ObservationManager) omCtrl.getMock();
+
+		// afterPropertiesSet
+		repoCtrl.expectAndReturn(repo.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED), "true");
+		repoCtrl.expectAndReturn(repo.login(null, null), obsSession);
+		obsSessionCtrl.expectAndReturn(obsSession.getWorkspace(), ws);
+		wsCtrl.expectAndReturn(ws.getObservationManager(), oManager);
+		oManager.addEventListener(def.getListener(), def.getEventTypes(), def.getAbsPath(), def.isDeep(), def
+				.getUuid(), def.getNodeTypeName(), def.isNoLocal());
+
+		// getSession - no listener registration
+		repoCtrl.expectAndReturn(repo.login(null, null), session);
+
+		// destroy
+		obsSessionCtrl.expectAndReturn(obsSession.isLive(), true);
+		obsSession.logout();
+
+		repoCtrl.replay();
+		obsSessionCtrl.replay();
+		sessionCtrl.replay();
+		wsCtrl.replay();
+		omCtrl.replay();
+
+		factory.afterPropertiesSet();
+		assertSame(obsSession, factory.getObservationSession());
+		assertSame(session, factory.getSession());
+		factory.destroy();
+		assertNull(factory.getObservationSession());
+
+		obsSessionCtrl.verify();
+		sessionCtrl.verify();
+		wsCtrl.verify();
+		omCtrl.verify();
+	}
+
 	public void testRegisterNamespaces() throws Exception {
 		Properties namespaces = new Properties();
 		namespaces.put("foo", "bar");
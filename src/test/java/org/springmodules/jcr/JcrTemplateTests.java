@@ -10,10 +10,17 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 import javax.jcr.AccessDeniedException;
+import javax.jcr.Binary;
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Item;
 import javax.jcr.ItemExistsException;
@@ -23,34 +30,42 @@ import javax.jcr.NoSuchWorkspaceException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
 import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 import javax.jcr.Workspace;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
 import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.NodeType;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 import javax.jcr.version.VersionException;
 
 import junit.framework.TestCase;
 
 import org.easymock.MockControl;
 import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springmodules.jcr.support.ListSessionHolderProviderManager;
+import org.springmodules.jcr.support.SimpleJcrMetrics;
 import org.xml.sax.ContentHandler;
 
 /**
@@ -145,6 +160,69 @@ public class JcrTemplateTests extends TestCase {
 
     }
 
+    public void testSessionProxyReusedForThreadBoundSession() {
+        sfControl.reset();
+        sessionControl.reset();
+
+        sfControl.replay();
+        sessionControl.replay();
+
+        final List proxies = new ArrayList();
+        JcrCallback callback = new JcrCallback() {
+            public Object doInJcr(Session sess) {
+                proxies.add(sess);
+                // logout is suppressed so it will not reach our mock
+                sess.logout();
+                return null;
+            }
+        };
+
+        SessionHolder holder = new SessionHolder(session);
+        TransactionSynchronizationManager.bindResource(sf, holder);
+        try {
+            jt.execute(callback, false);
+            jt.execute(callback, false);
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sf);
+        }
+
+        assertEquals(2, proxies.size());
+        assertNotSame(session, proxies.get(0));
+        assertSame(proxies.get(0), proxies.get(1));
+        assertSame(session, ((DelegatingSession) proxies.get(0)).getTargetSession());
+
+        holder.clear();
+        assertNull(holder.getSessionProxy());
+    }
+
+    public void testExecuteWithTransactionSynchronization() throws RepositoryException {
+        sfControl.reset();
+        sessionControl.reset();
+
+        sfControl.expectAndReturn(sf.getSession(), session);
+        sfControl.expectAndReturn(sf.getSessionHolder(session), new SessionHolder(session));
+        sfControl.replay();
+        // no logout - the session is bound to the transaction
+        sessionControl.replay();
+
+        JcrCallback callback = new JcrCallback() {
+            public Object doInJcr(Session sess) {
+                return sess;
+            }
+        };
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertSame(session, jt.execute(callback, true));
+            // the second call finds the bound session
+            assertSame(session, jt.execute(callback, true));
+            assertTrue(SessionFactoryUtils.isSessionThreadBound(session, sf));
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sf);
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
     public void testTemplateExecuteWithNotAllowCreate() {
         jt.setAllowCreate(false);
         try {
@@ -533,6 +611,149 @@ public class JcrTemplateTests extends TestCase {
         assertSame(jt.getNodeByUUID(uuid), result);
     }
 
+    public void testGetItems() throws RepositoryException {
+        MockControl itemCtrl = MockControl.createControl(Item.class);
+        Item a = (Item) itemCtrl.getMock();
+        Item c = (Item) MockControl.createControl(Item.class).getMock();
+
+        // one session for all the items
+        sessionControl.expectAndReturn(session.getItem("/c"), c);
+        session.getItem("/b");
+        sessionControl.setThrowable(new PathNotFoundException());
+        sessionControl.expectAndReturn(session.getItem("/a"), a);
+        sessionControl.replay();
+        sfControl.replay();
+
+        Map items = jt.getItems(Arrays.asList(new String[] { "/c", "/b", "/a", "/c" }));
+        assertEquals(Arrays.asList(new String[] { "/c", "/b", "/a" }), new ArrayList(items.keySet()));
+        assertSame(c, items.get("/c"));
+        assertTrue(items.containsKey("/b"));
+        assertNull(items.get("/b"));
+        assertSame(a, items.get("/a"));
+    }
+
+    public void testGetItemsWithQuery() throws RepositoryException {
+        Node a = node("/a");
+        Node quoted = node("/o'b");
+        // a same-name sibling is reported with its normalized path
+        Node sibling = node("/c");
+        Property property = (Property) MockControl.createControl(Property.class).getMock();
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl iterCtrl = MockControl.createControl(NodeIterator.class);
+        NodeIterator iter = (NodeIterator) iterCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery("SELECT * FROM [nt:base] AS n WHERE ISSAMENODE(n, ['/a'])"
+                + " OR ISSAMENODE(n, ['/o''b']) OR ISSAMENODE(n, ['/c[1]']) OR ISSAMENODE(n, ['/a/p'])"
+                + " OR ISSAMENODE(n, ['/d'])", Query.JCR_SQL2), query);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getNodes(), iter);
+        iterCtrl.expectAndReturn(iter.hasNext(), true, 3);
+        iterCtrl.expectAndReturn(iter.nextNode(), a);
+        iterCtrl.expectAndReturn(iter.nextNode(), quoted);
+        iterCtrl.expectAndReturn(iter.nextNode(), sibling);
+        iterCtrl.expectAndReturn(iter.hasNext(), false);
+
+        // the same-name sibling, the property and the missing item are
+        // looked up one by one
+        sessionControl.expectAndReturn(session.getItem("/c[1]"), sibling);
+        sessionControl.expectAndReturn(session.getItem("/a/p"), property);
+        session.getItem("/d");
+        sessionControl.setThrowable(new PathNotFoundException());
+
+        sessionControl.replay();
+        sfControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        iterCtrl.replay();
+
+        jt.setBulkFetchByQuery(true);
+        Map items = jt.getItems(Arrays.asList(new String[] { "/a", "/o'b", "/c[1]", "/a/p", "/d" }));
+        assertEquals(Arrays.asList(new String[] { "/a", "/o'b", "/c[1]", "/a/p", "/d" }), new ArrayList(items
+                .keySet()));
+        assertSame(a, items.get("/a"));
+        assertSame(quoted, items.get("/o'b"));
+        assertSame(sibling, items.get("/c[1]"));
+        assertSame(property, items.get("/a/p"));
+        assertNull(items.get("/d"));
+
+        sessionControl.verify();
+        qmCtrl.verify();
+        iterCtrl.verify();
+    }
+
+    private static Node node(String path) throws RepositoryException {
+        MockControl nodeCtrl = MockControl.createControl(Node.class);
+        Node node = (Node) nodeCtrl.getMock();
+        nodeCtrl.expectAndReturn(node.getPath(), path);
+        nodeCtrl.replay();
+        return node;
+    }
+
+    public void testGetNodesByIdentifierWithQuery() throws RepositoryException {
+        MockControl nodeCtrl = MockControl.createControl(Node.class);
+        Node first = (Node) nodeCtrl.getMock();
+        nodeCtrl.expectAndReturn(first.getIdentifier(), "id1");
+        nodeCtrl.replay();
+        Node second = (Node) MockControl.createControl(Node.class).getMock();
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl iterCtrl = MockControl.createControl(NodeIterator.class);
+        NodeIterator iter = (NodeIterator) iterCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(
+                "SELECT * FROM [nt:base] AS n WHERE n.[jcr:uuid] = 'id1' OR n.[jcr:uuid] = 'i''d2'"
+                        + " OR n.[jcr:uuid] = 'id3'", Query.JCR_SQL2), query);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getNodes(), iter);
+        iterCtrl.expectAndReturn(iter.hasNext(), true);
+        iterCtrl.expectAndReturn(iter.nextNode(), first);
+        iterCtrl.expectAndReturn(iter.hasNext(), false);
+
+        // the nodes the query did not find are looked up one by one
+        sessionControl.expectAndReturn(session.getNodeByIdentifier("i'd2"), second);
+        session.getNodeByIdentifier("id3");
+        sessionControl.setThrowable(new ItemNotFoundException());
+
+        sessionControl.replay();
+        sfControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        iterCtrl.replay();
+
+        jt.setBulkFetchByQuery(true);
+        Map nodes = jt.getNodesByIdentifier(Arrays.asList(new String[] { "id1", "i'd2", "id3" }));
+        assertEquals(3, nodes.size());
+        assertSame(first, nodes.get("id1"));
+        assertSame(second, nodes.get("i'd2"));
+        assertNull(nodes.get("id3"));
+
+        qmCtrl.verify();
+        iterCtrl.verify();
+    }
+
     /*
      * Test method for 'org.springmodules.jcr.JcrTemplate.getUserID()'
      */
@@ -710,10 +931,200 @@ public class JcrTemplateTests extends TestCase {
         nodeCtrl.replay();
         
         jt.dump(null);
-        
+
         nodeCtrl.verify();
     }
-    
+
+    public void testDumpNodeToAppendable() throws RepositoryException {
+        sessionControl.replay();
+        sfControl.replay();
+
+        StringBuilder out = new StringBuilder();
+        jt.dump(createTree(), out);
+        assertEquals("/a/a/b/a/b/c/a/d", out.toString());
+    }
+
+    public void testDumpNodeWithLimits() throws RepositoryException {
+        // one session per dump
+        session.logout();
+        sessionControl.setVoidCallable(2);
+        sessionControl.replay();
+        sfControl.replay();
+
+        StringBuilder out = new StringBuilder();
+        jt.dump(createTree(), out, 1, -1);
+        assertEquals("/a/a/b/a/d", out.toString());
+
+        out = new StringBuilder();
+        jt.dump(createTree(), out, -1, 2);
+        assertEquals("/a/a/b", out.toString());
+
+        out = new StringBuilder();
+        jt.dump(createTree(), out, 0, -1);
+        assertEquals("/a", out.toString());
+    }
+
+    /**
+     * Creates the tree /a, /a/b, /a/b/c, /a/d which can be dumped once.
+     */
+    private Node createTree() throws RepositoryException {
+        Node c = createNode("/a/b/c", new Node[0]);
+        Node b = createNode("/a/b", new Node[] { c });
+        Node d = createNode("/a/d", new Node[0]);
+        return createNode("/a", new Node[] { b, d });
+    }
+
+    private Node createNode(String path, Node[] children) throws RepositoryException {
+        MockControl nodeCtrl = MockControl.createNiceControl(Node.class);
+        Node node = (Node) nodeCtrl.getMock();
+
+        MockControl propertiesCtrl = MockControl.createNiceControl(PropertyIterator.class);
+        PropertyIterator properties = (PropertyIterator) propertiesCtrl.getMock();
+        propertiesCtrl.expectAndReturn(properties.hasNext(), false);
+
+        MockControl childrenCtrl = MockControl.createNiceControl(NodeIterator.class);
+        NodeIterator iterator = (NodeIterator) childrenCtrl.getMock();
+        for (int i = 0; i < children.length; i++) {
+            childrenCtrl.expectAndReturn(iterator.hasNext(), true);
+            childrenCtrl.expectAndReturn(iterator.nextNode(), children[i]);
+        }
+        childrenCtrl.expectAndReturn(iterator.hasNext(), false);
+
+        nodeCtrl.expectAndReturn(node.getPath(), path);
+        nodeCtrl.expectAndReturn(node.getProperties(), properties);
+        nodeCtrl.expectAndReturn(node.getNodes(), iterator);
+
+        propertiesCtrl.replay();
+        childrenCtrl.replay();
+        nodeCtrl.replay();
+        return node;
+    }
+
+    public void testSnapshot() throws Exception {
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT+02:00"));
+        date.setTimeInMillis(0);
+
+        MockControl longCtrl = MockControl.createControl(Value.class);
+        Value longValue = (Value) longCtrl.getMock();
+        longCtrl.expectAndReturn(longValue.getLong(), 42, 2);
+        MockControl dateCtrl = MockControl.createControl(Value.class);
+        Value dateValue = (Value) dateCtrl.getMock();
+        dateCtrl.expectAndReturn(dateValue.getDate(), date);
+        MockControl binaryValueCtrl = MockControl.createControl(Value.class);
+        Value binaryValue = (Value) binaryValueCtrl.getMock();
+        MockControl binaryCtrl = MockControl.createControl(Binary.class);
+        Binary binary = (Binary) binaryCtrl.getMock();
+        binaryValueCtrl.expectAndReturn(binaryValue.getBinary(), binary);
+        binaryCtrl.expectAndReturn(binary.getStream(), new ByteArrayInputStream("data".getBytes("UTF-8")));
+        binary.dispose();
+
+        Property longs = createProperty("/a/longs", PropertyType.LONG, new Value[] { longValue, longValue }, true);
+        Property created = createProperty("/a/created", PropertyType.DATE, new Value[] { dateValue }, false);
+        Property data = createProperty("/a/b/data", PropertyType.BINARY, new Value[] { binaryValue }, false);
+        Property skipped = createProperty("/a/b/skipped", PropertyType.STRING, new Value[0], false);
+
+        Node b = createSnapshotNode("/a/b", new Property[] { data, skipped }, new Node[0]);
+        Node a = createSnapshotNode("/a", new Property[] { longs, created }, new Node[] { b });
+        sessionControl.expectAndReturn(session.getNode("/a"), a);
+
+        sessionControl.replay();
+        sfControl.replay();
+        longCtrl.replay();
+        dateCtrl.replay();
+        binaryValueCtrl.replay();
+        binaryCtrl.replay();
+
+        NodeSnapshot snapshot = jt.snapshot("/a", 1, new PropertyFilter() {
+            public boolean accept(Property property) throws RepositoryException {
+                return !property.getName().equals("skipped");
+            }
+        });
+
+        assertEquals("/a", snapshot.getPath());
+        assertEquals("a", snapshot.getName());
+        assertEquals("id/a", snapshot.getIdentifier());
+        assertEquals("nt:unstructured", snapshot.getPrimaryNodeType());
+        assertTrue(snapshot.isChildrenLoaded());
+
+        PropertySnapshot longsSnapshot = snapshot.getProperty("longs");
+        assertTrue(longsSnapshot.isMultiple());
+        assertEquals(2, longsSnapshot.size());
+        assertEquals(new Long(42), longsSnapshot.getValues()[1]);
+        assertEquals("1970-01-01T02:00:00.000+02:00", snapshot.getProperty("created").getString());
+        assertEquals(0, snapshot.getProperty("created").getDate().getTimeInMillis());
+
+        NodeSnapshot child = snapshot.getNode("b");
+        assertSame(child, snapshot.getNodes().get("b"));
+        assertFalse(child.isChildrenLoaded());
+        assertFalse(child.hasProperty("skipped"));
+        assertEquals("data", child.getProperty("data").getString());
+        assertTrue(Arrays.equals("data".getBytes("UTF-8"), (byte[]) child.getProperty("data").getValue()));
+        // names are interned
+        assertSame("data", child.getProperty("data").getName());
+
+        binaryCtrl.verify();
+    }
+
+    private Property createProperty(String path, int type, Value[] values, boolean multiple)
+            throws RepositoryException {
+        MockControl propertyCtrl = MockControl.createControl(Property.class);
+        Property property = (Property) propertyCtrl.getMock();
+        // a new string, to check the interning
+        propertyCtrl.expectAndReturn(property.getName(), new String(path.substring(path.lastIndexOf('/') + 1)),
+                MockControl.ONE_OR_MORE);
+        propertyCtrl.expectAndReturn(property.getPath(), path, MockControl.ZERO_OR_MORE);
+        propertyCtrl.expectAndReturn(property.getType(), type, MockControl.ZERO_OR_MORE);
+        propertyCtrl.expectAndReturn(property.isMultiple(), multiple, MockControl.ZERO_OR_MORE);
+        if (values.length > 0) {
+            if (multiple)
+                propertyCtrl.expectAndReturn(property.getValues(), values);
+            else
+                propertyCtrl.expectAndReturn(property.getValue(), values[0]);
+        }
+        propertyCtrl.replay();
+        return property;
+    }
+
+    private Node createSnapshotNode(String path, Property[] props, Node[] children) throws RepositoryException {
+        MockControl nodeCtrl = MockControl.createControl(Node.class);
+        Node node = (Node) nodeCtrl.getMock();
+        MockControl typeCtrl = MockControl.createControl(NodeType.class);
+        NodeType type = (NodeType) typeCtrl.getMock();
+
+        MockControl propertiesCtrl = MockControl.createControl(PropertyIterator.class);
+        PropertyIterator propertyIter = (PropertyIterator) propertiesCtrl.getMock();
+        for (int i = 0; i < props.length; i++) {
+            propertiesCtrl.expectAndReturn(propertyIter.hasNext(), true);
+            propertiesCtrl.expectAndReturn(propertyIter.nextProperty(), props[i]);
+        }
+        propertiesCtrl.expectAndReturn(propertyIter.hasNext(), false);
+
+        nodeCtrl.expectAndReturn(node.getPath(), path);
+        nodeCtrl.expectAndReturn(node.getName(), path.substring(path.lastIndexOf('/') + 1));
+        nodeCtrl.expectAndReturn(node.getIdentifier(), "id" + path);
+        nodeCtrl.expectAndReturn(node.getPrimaryNodeType(), type);
+        typeCtrl.expectAndReturn(type.getName(), "nt:unstructured");
+        nodeCtrl.expectAndReturn(node.getMixinNodeTypes(), new NodeType[0]);
+        nodeCtrl.expectAndReturn(node.getProperties(), propertyIter);
+        if (children.length > 0) {
+            MockControl childrenCtrl = MockControl.createControl(NodeIterator.class);
+            NodeIterator iterator = (NodeIterator) childrenCtrl.getMock();
+            for (int i = 0; i < children.length; i++) {
+                childrenCtrl.expectAndReturn(iterator.hasNext(), true);
+                childrenCtrl.expectAndReturn(iterator.nextNode(), children[i]);
+            }
+            childrenCtrl.expectAndReturn(iterator.hasNext(), false);
+            childrenCtrl.replay();
+            nodeCtrl.expectAndReturn(node.getNodes(), iterator);
+        }
+        nodeCtrl.expectAndReturn(node.getIndex(), 1, MockControl.ZERO_OR_MORE);
+
+        propertiesCtrl.replay();
+        typeCtrl.replay();
+        nodeCtrl.replay();
+        return node;
+    }
+
     public void testQueryNode() throws RepositoryException
     {
         try {
@@ -882,4 +1293,532 @@ public class JcrTemplateTests extends TestCase {
         queryCtrl.verify();
         resultCtrl.verify();
     }
+
+    public void testQueryCache() throws RepositoryException {
+        sfControl.reset();
+        sessionControl.reset();
+
+        String stmt = "//*";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+
+        // the query is parsed only once
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.XPATH), query);
+        queryCtrl.expectAndReturn(query.execute(), result, 2);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+
+        jt.setQueryCacheSize(10);
+        TransactionSynchronizationManager.bindResource(sf, new SessionHolder(session));
+        try {
+            assertSame(result, jt.query(stmt));
+            assertSame(result, jt.query(stmt));
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sf);
+        }
+
+        assertEquals(1, jt.getQueryCacheHits());
+        assertEquals(1, jt.getQueryCacheMisses());
+
+        wsCtrl.verify();
+        qmCtrl.verify();
+        queryCtrl.verify();
+    }
+
+    public void testQueryCacheSkipsUnboundSessions() throws RepositoryException {
+        sfControl.reset();
+        sessionControl.reset();
+
+        String stmt = "//*";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+
+        // each execution opens (and logs out) its own session: nothing to reuse
+        sfControl.expectAndReturn(sf.getSession(), session, 2);
+        sessionControl.expectAndReturn(session.getWorkspace(), ws, 2);
+        session.logout();
+        sessionControl.setVoidCallable(2);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm, 2);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.XPATH), query, 2);
+        queryCtrl.expectAndReturn(query.execute(), result, 2);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+
+        jt.setQueryCacheSize(10);
+        assertSame(result, jt.query(stmt));
+        assertSame(result, jt.query(stmt));
+        assertEquals(0, jt.getQueryCacheHits());
+        assertEquals(0, jt.getQueryCacheMisses());
+
+        qmCtrl.verify();
+        queryCtrl.verify();
+    }
+
+    public void testQueryCacheEviction() throws RepositoryException {
+        String stmt = "//*";
+
+        MockControl sessCtrl = MockControl.createControl(Session.class);
+        Session sess = (Session) sessCtrl.getMock();
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+
+        // parsed again once the session has been logged out by the factory
+        sessCtrl.expectAndReturn(sess.getWorkspace(), ws, 2);
+        sess.logout();
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm, 2);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.XPATH), query, 2);
+        queryCtrl.expectAndReturn(query.execute(), result, 3);
+
+        sessCtrl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+
+        JcrSessionFactory factory = new JcrSessionFactory();
+        factory.setRepository(repository);
+        JcrTemplate template = new JcrTemplate(factory);
+        template.setQueryCacheSize(10);
+
+        TransactionSynchronizationManager.bindResource(factory, new SessionHolder(sess));
+        try {
+            assertSame(result, template.query(stmt));
+            assertSame(result, template.query(stmt));
+            assertEquals(1, template.getQueryCacheHits());
+            factory.releaseSession(sess);
+            assertSame(result, template.query(stmt));
+            assertEquals(1, template.getQueryCacheHits());
+            assertEquals(2, template.getQueryCacheMisses());
+        } finally {
+            TransactionSynchronizationManager.unbindResource(factory);
+        }
+
+        sessCtrl.verify();
+        qmCtrl.verify();
+        queryCtrl.verify();
+    }
+
+    public void testQueryForList() throws RepositoryException {
+        String stmt = "SELECT * FROM [nt:base] WHERE [title] = $title";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl vfCtrl = MockControl.createControl(ValueFactory.class);
+        ValueFactory vf = (ValueFactory) vfCtrl.getMock();
+        MockControl valueCtrl = MockControl.createControl(Value.class);
+        Value value = (Value) valueCtrl.getMock();
+        MockControl iterCtrl = MockControl.createControl(NodeIterator.class);
+        NodeIterator iter = (NodeIterator) iterCtrl.getMock();
+        MockControl ndCtrl = MockControl.createControl(Node.class);
+        Node nd = (Node) ndCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.JCR_SQL2), query);
+        queryCtrl.expectAndReturn(query.getBindVariableNames(), new String[] { "title" });
+        sessionControl.expectAndReturn(session.getValueFactory(), vf);
+        vfCtrl.expectAndReturn(vf.createValue("foo"), value);
+        query.bindValue("title", value);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getNodes(), iter);
+        iterCtrl.expectAndReturn(iter.hasNext(), true);
+        iterCtrl.expectAndReturn(iter.nextNode(), nd);
+        iterCtrl.expectAndReturn(iter.hasNext(), false);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        vfCtrl.replay();
+        iterCtrl.replay();
+
+        Map bindings = new HashMap();
+        bindings.put("title", "foo");
+        List nodes = jt.queryForList(stmt, bindings);
+        assertEquals(1, nodes.size());
+        assertSame(nd, nodes.get(0));
+
+        queryCtrl.verify();
+        vfCtrl.verify();
+    }
+
+    public void testQueryInParallel() throws RepositoryException {
+        String stmt1 = "//*/@bogus:title";
+        String stmt2 = "//*";
+        List list = new ArrayList();
+        list.add(stmt1);
+        list.add(stmt2);
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+
+        // one session per statement
+        session.logout();
+        sessionControl.expectAndReturn(session.getWorkspace(), ws, 2);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm, 2);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt1, Query.XPATH), query);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt2, Query.XPATH), query);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        queryCtrl.expectAndThrow(query.execute(), new RepositoryException());
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+
+        final List executed = new ArrayList();
+        jt.setQueryExecutor(new Executor() {
+            public void execute(Runnable command) {
+                executed.add(command);
+                command.run();
+            }
+        });
+
+        Map results = jt.query(list, null, true);
+        assertEquals(2, executed.size());
+        assertEquals(list, new ArrayList(results.keySet()));
+        assertSame(result, results.get(stmt1));
+        assertNull(results.get(stmt2));
+
+        wsCtrl.verify();
+        qmCtrl.verify();
+        queryCtrl.verify();
+    }
+
+    public void testQueryInParallelReleasesLateSessions() throws Exception {
+        List list = new ArrayList();
+        list.add("//a");
+        list.add("//b");
+
+        MockControl lateCtrl = MockControl.createControl(Session.class);
+        final Session late = (Session) lateCtrl.getMock();
+        late.logout();
+        lateCtrl.replay();
+
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        SessionFactory factory = new SessionFactory() {
+            public Session getSession() throws RepositoryException {
+                if (Thread.currentThread() == caller) {
+                    throw new RepositoryException("login failed");
+                }
+                opening.countDown();
+                try {
+                    failed.await();
+                } catch (InterruptedException e) {
+                    throw new RepositoryException(e);
+                }
+                return late;
+            }
+
+            public SessionHolder getSessionHolder(Session session) {
+                return new SessionHolder(session);
+            }
+        };
+
+        final Thread[] worker = new Thread[1];
+        JcrTemplate template = new JcrTemplate(factory);
+        template.setQueryExecutor(new Executor() {
+            private boolean first = true;
+
+            public void execute(Runnable command) {
+                if (first) {
+                    // the first statement fails right away
+                    first = false;
+                    command.run();
+                    return;
+                }
+                // while the second one is still opening its session
+                worker[0] = new Thread(command);
+                worker[0].start();
+                try {
+                    opening.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        try {
+            template.query(list, null, false);
+            fail("expected exception");
+        } catch (DataAccessException e) {
+            // expected
+        }
+        failed.countDown();
+        worker[0].join();
+
+        lateCtrl.verify();
+    }
+
+    public void testQueryInParallelWithBoundSession() throws RepositoryException {
+        String stmt1 = "//a";
+        String stmt2 = "//b";
+        List list = new ArrayList();
+        list.add(stmt1);
+        list.add(stmt2);
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+
+        // the queries run one after another on the bound session
+        sessionControl.reset();
+        sfControl.reset();
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt1, Query.XPATH), query);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt2, Query.XPATH), query);
+        queryCtrl.expectAndReturn(query.execute(), result, 2);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+
+        jt.setQueryExecutor(new Executor() {
+            public void execute(Runnable command) {
+                fail("no worker session expected");
+            }
+        });
+
+        TransactionSynchronizationManager.bindResource(sf, new SessionHolder(session));
+        try {
+            Map results = jt.query(list, null, false);
+            assertSame(result, results.get(stmt1));
+            assertSame(result, results.get(stmt2));
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sf);
+        }
+
+        wsCtrl.verify();
+        qmCtrl.verify();
+        queryCtrl.verify();
+    }
+
+    public void testQueryForPage() throws RepositoryException {
+        String stmt = "SELECT * FROM [nt:base]";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl rowsCtrl = MockControl.createControl(RowIterator.class);
+        RowIterator rows = (RowIterator) rowsCtrl.getMock();
+        MockControl rowCtrl = MockControl.createNiceControl(Row.class);
+        Row row = (Row) rowCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.JCR_SQL2), query);
+        query.setOffset(20);
+        query.setLimit(2);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getRows(), rows);
+        rowsCtrl.expectAndReturn(rows.hasNext(), true, 2);
+        rowsCtrl.expectAndReturn(rows.nextRow(), row, 2);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        rowsCtrl.replay();
+
+        List page = jt.queryForPage(stmt, 20, 2, new RowMapper() {
+            public Object mapRow(Row row, int rowNum) {
+                return new Integer(rowNum);
+            }
+        });
+        assertEquals(2, page.size());
+        assertEquals(new Integer(0), page.get(0));
+        assertEquals(new Integer(1), page.get(1));
+
+        queryCtrl.verify();
+        rowsCtrl.verify();
+    }
+
+    public void testSlowOperation() throws RepositoryException {
+        String stmt = "SELECT * FROM [nt:base]";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl rowsCtrl = MockControl.createControl(RowIterator.class);
+        RowIterator rows = (RowIterator) rowsCtrl.getMock();
+        MockControl rowCtrl = MockControl.createNiceControl(Row.class);
+        Row row = (Row) rowCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.JCR_SQL2), query);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getRows(), rows);
+        rowsCtrl.expectAndReturn(rows.hasNext(), true);
+        rowsCtrl.expectAndReturn(rows.nextRow(), row);
+        rowsCtrl.expectAndReturn(rows.hasNext(), false);
+        sessionControl.expectAndReturn(session.isLive(), true);
+        session.logout();
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        rowsCtrl.replay();
+
+        SimpleJcrMetrics metrics = new SimpleJcrMetrics();
+        jt.setMetrics(metrics);
+        jt.setSlowOperationThreshold(1);
+
+        jt.queryForPage(stmt, 0, -1, new RowMapper() {
+            public Object mapRow(Row row, int rowNum) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return row;
+            }
+        });
+
+        assertEquals(1, metrics.getSlowOperations());
+        assertEquals(1, metrics.getOperation("queryForPage").getSlow());
+        String[] slow = metrics.getRecentSlowOperations();
+        assertEquals(1, slow.length);
+        assertTrue(slow[0], slow[0].startsWith("queryForPage took "));
+        assertTrue(slow[0], slow[0].endsWith("[workspace=<default>, language=" + Query.JCR_SQL2 + ", statement=" + stmt
+                + ", rows=1]"));
+
+        // fast operations are not reported
+        jt.setSlowOperationThreshold(60000);
+        jt.isLive();
+        assertEquals(1, metrics.getSlowOperations());
+
+        queryCtrl.verify();
+        rowsCtrl.verify();
+    }
+
+    public void testQueryForStream() throws RepositoryException {
+        String stmt = "SELECT * FROM [nt:base]";
+
+        MockControl wsCtrl = MockControl.createControl(Workspace.class);
+        Workspace ws = (Workspace) wsCtrl.getMock();
+        MockControl qmCtrl = MockControl.createControl(QueryManager.class);
+        QueryManager qm = (QueryManager) qmCtrl.getMock();
+        MockControl queryCtrl = MockControl.createControl(Query.class);
+        Query query = (Query) queryCtrl.getMock();
+        MockControl resultCtrl = MockControl.createControl(QueryResult.class);
+        QueryResult result = (QueryResult) resultCtrl.getMock();
+        MockControl rowsCtrl = MockControl.createControl(RowIterator.class);
+        RowIterator rows = (RowIterator) rowsCtrl.getMock();
+        MockControl rowCtrl = MockControl.createControl(Row.class);
+        Row row = (Row) rowCtrl.getMock();
+        MockControl ndCtrl = MockControl.createControl(Node.class);
+        Node nd = (Node) ndCtrl.getMock();
+
+        sessionControl.expectAndReturn(session.getWorkspace(), ws);
+        wsCtrl.expectAndReturn(ws.getQueryManager(), qm);
+        qmCtrl.expectAndReturn(qm.createQuery(stmt, Query.JCR_SQL2), query);
+        queryCtrl.expectAndReturn(query.execute(), result);
+        resultCtrl.expectAndReturn(result.getRows(), rows);
+        rowsCtrl.expectAndReturn(rows.hasNext(), true, 2);
+        rowsCtrl.expectAndReturn(rows.nextRow(), row);
+        rowsCtrl.expectAndReturn(rows.hasNext(), false);
+        rowCtrl.expectAndReturn(row.getNode(), nd);
+
+        sfControl.replay();
+        sessionControl.replay();
+        wsCtrl.replay();
+        qmCtrl.replay();
+        queryCtrl.replay();
+        resultCtrl.replay();
+        rowsCtrl.replay();
+        rowCtrl.replay();
+
+        RowStream stream = jt.queryForStream(stmt, new RowMapper() {
+            public Object mapRow(Row row, int rowNum) throws RepositoryException {
+                return row.getNode();
+            }
+        });
+        try {
+            assertTrue(stream.hasNext());
+            assertSame(nd, stream.next());
+            // exhausting the stream releases the session
+            assertFalse(stream.hasNext());
+            assertTrue(stream.isClosed());
+        } finally {
+            stream.close();
+        }
+
+        rowsCtrl.verify();
+        rowCtrl.verify();
+    }
 }
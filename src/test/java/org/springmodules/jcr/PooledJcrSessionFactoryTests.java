@@ -0,0 +1,141 @@
+package org.springmodules.jcr;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+
+public class PooledJcrSessionFactoryTests extends TestCase {
+
+	private PooledJcrSessionFactory factory;
+
+	private MockControl repoCtrl;
+
+	private Repository repo;
+
+	private MockControl sessionCtrl;
+
+	private Session session;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		repoCtrl = MockControl.createControl(Repository.class);
+		repo = (Repository) repoCtrl.getMock();
+
+		sessionCtrl = MockControl.createControl(Session.class);
+		session = (Session) sessionCtrl.getMock();
+
+		factory = new PooledJcrSessionFactory();
+		factory.setRepository(repo);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		repoCtrl = null;
+		repo = null;
+		sessionCtrl = null;
+		session = null;
+		factory = null;
+	}
+
+	public void testSessionIsRecycled() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), session);
+		sessionCtrl.expectAndReturn(session.isLive(), true, 2);
+		session.refresh(false);
+
+		repoCtrl.replay();
+		sessionCtrl.replay();
+
+		factory.afterPropertiesSet();
+
+		Session first = factory.getSession();
+		assertSame(session, first);
+		assertEquals(1, factory.getNumActive());
+
+		SessionFactoryUtils.releaseSession(first, factory);
+		assertEquals(0, factory.getNumActive());
+		assertEquals(1, factory.getNumIdle());
+
+		Session second = factory.getSession();
+		assertSame(first, second);
+		assertEquals(0, factory.getNumIdle());
+
+		repoCtrl.verify();
+		sessionCtrl.verify();
+	}
+
+	public void testBorrowTimeout() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), session);
+
+		repoCtrl.replay();
+		sessionCtrl.replay();
+
+		factory.setMaxActive(1);
+		factory.setBorrowTimeout(10);
+		factory.afterPropertiesSet();
+
+		factory.getSession();
+		try {
+			factory.getSession();
+			fail("expected exception (pool exhausted)");
+		}
+		catch (RepositoryException e) {
+			// expected
+		}
+
+		repoCtrl.verify();
+		sessionCtrl.verify();
+	}
+
+	public void testSessionOverMaxIdleIsLoggedOut() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), session);
+		session.logout();
+
+		repoCtrl.replay();
+		sessionCtrl.replay();
+
+		factory.setMaxIdle(0);
+		factory.afterPropertiesSet();
+
+		SessionFactoryUtils.releaseSession(factory.getSession(), factory);
+		assertEquals(0, factory.getNumIdle());
+		assertEquals(0, factory.getNumActive());
+
+		repoCtrl.verify();
+		sessionCtrl.verify();
+	}
+
+	public void testMinIdleAndDestroy() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), session);
+		session.logout();
+
+		repoCtrl.replay();
+		sessionCtrl.replay();
+
+		factory.setMinIdle(1);
+		factory.afterPropertiesSet();
+		assertEquals(1, factory.getNumIdle());
+
+		factory.destroy();
+		assertEquals(0, factory.getNumIdle());
+
+		repoCtrl.verify();
+		sessionCtrl.verify();
+	}
+
+	public void testForeignSessionIsLoggedOut() throws Exception {
+		session.logout();
+
+		repoCtrl.replay();
+		sessionCtrl.replay();
+
+		factory.afterPropertiesSet();
+		factory.releaseSession(session);
+
+		repoCtrl.verify();
+		sessionCtrl.verify();
+	}
+}
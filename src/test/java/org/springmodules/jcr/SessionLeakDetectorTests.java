@@ -0,0 +1,132 @@
+package org.springmodules.jcr;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springmodules.jcr.support.SimpleJcrMetrics;
+
+public class SessionLeakDetectorTests extends TestCase {
+
+	private MockControl repoCtrl, sessCtrl;
+	private Repository repo;
+	private Session sess;
+	private JcrSessionFactory sf;
+	private SessionLeakDetector detector;
+	private SimpleJcrMetrics metrics;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		repoCtrl = MockControl.createControl(Repository.class);
+		repo = (Repository) repoCtrl.getMock();
+		sessCtrl = MockControl.createControl(Session.class);
+		sess = (Session) sessCtrl.getMock();
+
+		detector = new SessionLeakDetector();
+		detector.setCheckInterval(0);
+		detector.setSampleRate(1);
+		metrics = new SimpleJcrMetrics();
+
+		sf = new JcrSessionFactory();
+		sf.setRepository(repo);
+		sf.setMetrics(metrics);
+		sf.setLeakDetector(detector);
+	}
+
+	protected void tearDown() throws Exception {
+		detector.destroy();
+		super.tearDown();
+	}
+
+	public void testReleasedSession() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), sess);
+		sess.logout();
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		sf.afterPropertiesSet();
+		assertSame(metrics, detector.getMetrics());
+
+		Session session = SessionFactoryUtils.getSession(sf, true);
+		assertEquals(1, detector.getTrackedSessions());
+		assertEquals(1, detector.getAllocationSites().size());
+		SessionFactoryUtils.releaseSession(session, sf);
+		assertEquals(0, detector.getTrackedSessions());
+
+		detector.setLeakThreshold(-1);
+		detector.check();
+		assertEquals(0, detector.getLeakedSessions());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testSessionHeldPastThreshold() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), sess);
+		sessCtrl.expectAndReturn(sess.isLive(), true, 3);
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		sf.afterPropertiesSet();
+		SessionFactoryUtils.getSession(sf, true);
+
+		detector.check();
+		assertEquals(0, detector.getLeakedSessions());
+
+		detector.setLeakThreshold(-1);
+		detector.check();
+		// reported once only
+		detector.check();
+		assertEquals(1, detector.getLeakedSessions());
+		assertEquals(1, metrics.getSessionsLeaked());
+		assertEquals(1, detector.getTrackedSessions());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testSessionLoggedOutDirectly() throws Exception {
+		repoCtrl.expectAndReturn(repo.login(null, null), sess);
+		sessCtrl.expectAndReturn(sess.isLive(), false);
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		sf.afterPropertiesSet();
+		SessionFactoryUtils.getSession(sf, true);
+		detector.setLeakThreshold(-1);
+		detector.check();
+		assertEquals(0, detector.getLeakedSessions());
+		assertEquals(0, detector.getTrackedSessions());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testGarbageCollectedSession() throws Exception {
+		detector.setMetrics(metrics);
+		detector.sessionOpened((Session) MockControl.createControl(Session.class).getMock());
+		assertEquals(1, detector.getTrackedSessions());
+
+		for (int i = 0; i < 50 && detector.getLeakedSessions() == 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+			detector.check();
+		}
+		assertEquals(1, detector.getLeakedSessions());
+		assertEquals(1, metrics.getSessionsLeaked());
+		assertEquals(0, detector.getTrackedSessions());
+	}
+
+	public void testSampleRate() throws Exception {
+		detector.setSampleRate(2);
+		Session[] sessions = new Session[4];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = (Session) MockControl.createControl(Session.class).getMock();
+			detector.sessionOpened(sessions[i]);
+		}
+		assertEquals(4, detector.getTrackedSessions());
+		assertEquals(2, detector.getAllocationSites().size());
+	}
+}
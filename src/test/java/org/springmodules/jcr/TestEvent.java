@@ -0,0 +1,62 @@
+package org.springmodules.jcr;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.jcr.observation.Event;
+
+/**
+ * Event stub for the observation tests.
+ */
+public class TestEvent implements Event {
+
+	private final int type;
+
+	private final String path;
+
+	/**
+	 * Create a node added event.
+	 *
+	 * @param path
+	 */
+	public TestEvent(String path) {
+		this(Event.NODE_ADDED, path);
+	}
+
+	/**
+	 * @param type
+	 * @param path
+	 */
+	public TestEvent(int type, String path) {
+		this.type = type;
+		this.path = path;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getUserID() {
+		return "user";
+	}
+
+	public String getIdentifier() {
+		return null;
+	}
+
+	public Map getInfo() {
+		return Collections.EMPTY_MAP;
+	}
+
+	public String getUserData() {
+		return null;
+	}
+
+	public long getDate() {
+		return 0;
+	}
+}
@@ -54,6 +54,18 @@ public class JcrNamespaceHandlerTests extends TestCase {
 				beanDefinition, "nodeTypeName")));
 	}
 
+	public void testAsynchronousEventListenerDefinition() throws Exception {
+		RootBeanDefinition beanDefinition = (RootBeanDefinition) this.beanFactory.getBeanDefinition("eventListenerAsync");
+		assertSame(EventListenerDefinition.class, beanDefinition.getBeanClass());
+		assertPropertyValue(beanDefinition, "asynchronous", "true");
+		assertPropertyValue(beanDefinition, "queueCapacity", "50");
+		assertPropertyValue(beanDefinition, "dispatchThreads", "2");
+		assertPropertyValue(beanDefinition, "backpressurePolicy", "COALESCE");
+		assertPropertyValue(beanDefinition, "batchWindow", "200");
+		assertPropertyValue(beanDefinition, "batchSize", "500");
+		assertPropertyValue(beanDefinition, "collapseDescendants", "true");
+	}
+
 	public void testSessionFactory() throws Exception {
 		RootBeanDefinition beanDefinition = (RootBeanDefinition) this.beanFactory.getBeanDefinition("sessionFactory");
 		assertSame(JcrSessionFactory.class, beanDefinition.getBeanClass());
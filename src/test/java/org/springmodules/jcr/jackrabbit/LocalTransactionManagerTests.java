@@ -3,29 +3,38 @@ package org.springmodules.jcr.jackrabbit;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
 import junit.framework.TestCase;
 
 import org.apache.jackrabbit.api.XASession;
+import org.easymock.AbstractMatcher;
+import org.easymock.ArgumentsMatcher;
 import org.easymock.MockControl;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.transaction.InvalidIsolationLevelException;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionTimedOutException;
 import org.springframework.transaction.UnexpectedRollbackException;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 import org.springmodules.jcr.JcrCallback;
+import org.springmodules.jcr.JcrSessionFactory;
 import org.springmodules.jcr.JcrTemplate;
 import org.springmodules.jcr.SessionFactory;
 import org.springmodules.jcr.SessionHolderProviderManager;
 import org.springmodules.jcr.jackrabbit.support.UserTxSessionHolder;
 import org.springmodules.jcr.support.ListSessionHolderProviderManager;
+import org.springmodules.jcr.support.SimpleJcrMetrics;
 
 public class LocalTransactionManagerTests extends TestCase {
 
@@ -60,10 +69,8 @@ public class LocalTransactionManagerTests extends TestCase {
 
 		xaRes.start(xidMock, XAResource.TMNOFLAGS);
 		xaResControl.setMatcher(MockControl.ALWAYS_MATCHER);
-		xaRes.prepare(xidMock);
-		xaResControl.setMatcher(MockControl.ALWAYS_MATCHER);
-		xaResControl.setReturnValue(0);
-		xaRes.commit(xidMock, false);
+		// one-phase commit: no prepare
+		xaRes.commit(xidMock, true);
 		xaResControl.setMatcher(MockControl.ALWAYS_MATCHER);
 		xaRes.end(xidMock, XAResource.TMSUCCESS);
 		xaResControl.setMatcher(MockControl.ALWAYS_MATCHER);
@@ -352,6 +359,320 @@ public class LocalTransactionManagerTests extends TestCase {
 		xaResControl.verify();
 	}
 
+	public void testReadOnlyTransaction() throws Exception {
+		MockControl sfControl = MockControl.createControl(SessionFactory.class);
+		final SessionFactory sf = (SessionFactory) sfControl.getMock();
+		// no XAResource call is expected
+		MockControl sessionControl = MockControl.createControl(XAResourceSession.class);
+		final XAResourceSession session = (XAResourceSession) sessionControl.getMock();
+
+		sfControl.expectAndReturn(sf.getSession(), session);
+		sessionControl.expectAndReturn(session.itemExists("/a"), true, 2);
+		session.logout();
+
+		sfControl.replay();
+		sessionControl.replay();
+
+		PlatformTransactionManager tm = new LocalTransactionManager(sf);
+		TransactionTemplate tt = new TransactionTemplate(tm);
+		tt.setReadOnly(true);
+
+		tt.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				UserTxSessionHolder holder = (UserTxSessionHolder) TransactionSynchronizationManager.getResource(sf);
+				assertTrue(holder.isReadOnly());
+				JcrTemplate template = new JcrTemplate(sf);
+				assertTrue(template.itemExists("/a"));
+				try {
+					template.save();
+					fail("expected exception");
+				}
+				catch (InvalidDataAccessApiUsageException e) {
+					// expected
+				}
+				try {
+					template.execute(new JcrCallback() {
+						public Object doInJcr(Session se) throws RepositoryException {
+							se.save();
+							return null;
+						}
+					});
+					fail("expected exception");
+				}
+				catch (InvalidDataAccessApiUsageException e) {
+					// expected
+				}
+				try {
+					template.execute(new JcrCallback() {
+						public Object doInJcr(Session se) throws RepositoryException {
+							assertTrue(se.itemExists("/a"));
+							se.save();
+							return null;
+						}
+					}, true);
+					fail("expected exception");
+				}
+				catch (InvalidDataAccessApiUsageException e) {
+					// expected
+				}
+			}
+		});
+
+		assertTrue("Hasn't thread session", !TransactionSynchronizationManager.hasResource(sf));
+		assertTrue("JTA synchronizations not active", !TransactionSynchronizationManager.isSynchronizationActive());
+
+		sfControl.verify();
+		sessionControl.verify();
+	}
+
+	public void testOnePhaseCommit() throws Exception {
+		doTestCommit(true);
+	}
+
+	public void testTwoPhaseCommit() throws Exception {
+		doTestCommit(false);
+	}
+
+	private void doTestCommit(boolean onePhase) throws Exception {
+		MockControl sfControl = MockControl.createControl(SessionFactory.class);
+		final SessionFactory sf = (SessionFactory) sfControl.getMock();
+		MockControl sessionControl = MockControl.createStrictControl(XAResourceSession.class);
+		final XAResourceSession session = (XAResourceSession) sessionControl.getMock();
+		Xid xid = new XidMock();
+
+		sfControl.expectAndReturn(sf.getSession(), session);
+		session.start(xid, XAResource.TMNOFLAGS);
+		sessionControl.setMatcher(ANY_XID);
+		session.save();
+		session.end(xid, XAResource.TMSUCCESS);
+		sessionControl.setMatcher(ANY_XID);
+		if (!onePhase) {
+			session.prepare(xid);
+			sessionControl.setMatcher(ANY_XID);
+			sessionControl.setReturnValue(XAResource.XA_OK);
+		}
+		session.commit(xid, onePhase);
+		sessionControl.setMatcher(ANY_XID);
+		session.logout();
+
+		sfControl.replay();
+		sessionControl.replay();
+
+		LocalTransactionManager tm = new LocalTransactionManager(sf);
+		assertTrue(tm.isOnePhaseCommit());
+		tm.setOnePhaseCommit(onePhase);
+		TransactionTemplate tt = new TransactionTemplate(tm);
+		tt.execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				new JcrTemplate(sf).save();
+			}
+		});
+
+		sfControl.verify();
+		sessionControl.verify();
+	}
+
+	public void testTimeoutInTemplate() throws Exception {
+		doTestTimeout(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				sleep(1100);
+				try {
+					new JcrTemplate(timedSessionFactory).save();
+					fail("expected exception");
+				}
+				catch (TransactionTimedOutException e) {
+					// expected
+				}
+			}
+		}, false, UnexpectedRollbackException.class);
+	}
+
+	public void testTimeoutBeforeCommit() throws Exception {
+		doTestTimeout(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				sleep(1100);
+			}
+		}, false, TransactionTimedOutException.class);
+	}
+
+	public void testExpiredTransactionRollback() throws Exception {
+		doTestTimeout(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				for (int i = 0; i < 50 && !status.isRollbackOnly(); i++) {
+					sleep(50);
+				}
+				assertTrue(status.isRollbackOnly());
+				// the branch is left to this thread, which may still be using the session
+				UserTxSessionHolder holder = (UserTxSessionHolder) TransactionSynchronizationManager
+						.getResource(timedSessionFactory);
+				try {
+					assertEquals(Status.STATUS_MARKED_ROLLBACK, holder.getTransaction().getStatus());
+				}
+				catch (SystemException e) {
+					throw new IllegalStateException(e);
+				}
+				try {
+					new JcrTemplate(timedSessionFactory).save();
+					fail("expected exception");
+				}
+				catch (TransactionTimedOutException e) {
+					// expected
+				}
+			}
+		}, true, UnexpectedRollbackException.class);
+	}
+
+	public void testRollbackOnlySave() throws Exception {
+		MockControl sfControl = MockControl.createControl(SessionFactory.class);
+		final SessionFactory sf = (SessionFactory) sfControl.getMock();
+		MockControl sessionControl = MockControl.createStrictControl(XAResourceSession.class);
+		final XAResourceSession session = (XAResourceSession) sessionControl.getMock();
+		Xid xid = new XidMock();
+
+		sfControl.expectAndReturn(sf.getSession(), session);
+		session.start(xid, XAResource.TMNOFLAGS);
+		sessionControl.setMatcher(ANY_XID);
+		session.end(xid, XAResource.TMFAIL);
+		sessionControl.setMatcher(ANY_XID);
+		session.rollback(xid);
+		sessionControl.setMatcher(ANY_XID);
+		session.logout();
+
+		sfControl.replay();
+		sessionControl.replay();
+
+		TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(sf));
+		try {
+			tt.execute(new TransactionCallbackWithoutResult() {
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					((UserTxSessionHolder) TransactionSynchronizationManager.getResource(sf)).setRollbackOnly();
+					JcrTemplate template = new JcrTemplate(sf);
+					try {
+						template.save();
+						fail("expected exception");
+					}
+					catch (InvalidDataAccessApiUsageException e) {
+						// expected
+					}
+					try {
+						template.execute(new JcrCallback() {
+							public Object doInJcr(Session se) throws RepositoryException {
+								se.save();
+								return null;
+							}
+						});
+						fail("expected exception");
+					}
+					catch (InvalidDataAccessApiUsageException e) {
+						// expected
+					}
+				}
+			});
+			fail("expected exception");
+		}
+		catch (UnexpectedRollbackException e) {
+			// expected
+		}
+
+		sfControl.verify();
+		sessionControl.verify();
+	}
+
+	private SessionFactory timedSessionFactory;
+
+	private void doTestTimeout(TransactionCallbackWithoutResult callback, boolean rollbackExpired,
+			Class<? extends Exception> expected) throws Exception {
+		MockControl sfControl = MockControl.createControl(SessionFactory.class);
+		timedSessionFactory = (SessionFactory) sfControl.getMock();
+		MockControl sessionControl = MockControl.createStrictControl(XAResourceSession.class);
+		final XAResourceSession session = (XAResourceSession) sessionControl.getMock();
+		Xid xid = new XidMock();
+
+		sfControl.expectAndReturn(timedSessionFactory.getSession(), session);
+		sessionControl.expectAndReturn(session.setTransactionTimeout(1), true);
+		session.start(xid, XAResource.TMNOFLAGS);
+		sessionControl.setMatcher(ANY_XID);
+		// the expired transaction is rolled back, only once
+		session.end(xid, XAResource.TMFAIL);
+		sessionControl.setMatcher(ANY_XID);
+		session.rollback(xid);
+		sessionControl.setMatcher(ANY_XID);
+		session.logout();
+
+		sfControl.replay();
+		sessionControl.replay();
+
+		LocalTransactionManager tm = new LocalTransactionManager(timedSessionFactory);
+		tm.setRollbackExpiredTransactions(rollbackExpired);
+		TransactionTemplate tt = new TransactionTemplate(tm);
+		tt.setTimeout(1);
+		try {
+			tt.execute(callback);
+			fail("expected exception");
+		}
+		catch (Exception e) {
+			assertTrue(e.toString(), expected.isInstance(e));
+		}
+		finally {
+			tm.destroy();
+		}
+
+		assertTrue("Hasn't thread session", !TransactionSynchronizationManager.hasResource(timedSessionFactory));
+		sfControl.verify();
+		sessionControl.verify();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void testSessionMetrics() throws Exception {
+		MockControl repoControl = MockControl.createControl(Repository.class);
+		Repository repo = (Repository) repoControl.getMock();
+		MockControl sessionControl = MockControl.createNiceControl(XAResourceSession.class);
+		XAResourceSession session = (XAResourceSession) sessionControl.getMock();
+
+		repoControl.expectAndReturn(repo.login(null, null), session);
+		repoControl.replay();
+		sessionControl.replay();
+
+		SimpleJcrMetrics metrics = new SimpleJcrMetrics();
+		JcrSessionFactory sf = new JcrSessionFactory();
+		sf.setRepository(repo);
+		sf.setMetrics(metrics);
+
+		new TransactionTemplate(new LocalTransactionManager(sf)).execute(new TransactionCallbackWithoutResult() {
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+			}
+		});
+
+		assertEquals(1, metrics.getSessionsOpened());
+		assertEquals(1, metrics.getSessionsReleased());
+		assertEquals(0, metrics.getOpenSessions());
+		repoControl.verify();
+	}
+
+	/**
+	 * Matches any transaction id, the other arguments by equality.
+	 */
+	private static final ArgumentsMatcher ANY_XID = new AbstractMatcher() {
+		protected boolean argumentMatches(Object expected, Object actual) {
+			return (expected instanceof Xid ? actual instanceof Xid : super.argumentMatches(expected, actual));
+		}
+	};
+
+	/**
+	 * Session which is its own XA resource, like the sessions of a JCA
+	 * deployment.
+	 */
+	protected interface XAResourceSession extends Session, XAResource {
+	}
+
 	/**
 	 * Simple mock which overrides equals.
 	 * 
@@ -0,0 +1,139 @@
+package org.springmodules.jcr.jackrabbit.support;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.transaction.xa.Xid;
+
+import junit.framework.TestCase;
+
+public class XidGeneratorTests extends TestCase {
+
+	public void testFormat() {
+		XidGenerator generator = new XidGenerator();
+		Xid first = generator.nextXid();
+		Xid second = generator.nextXid();
+
+		assertEquals(XidGenerator.FORMAT_ID, first.getFormatId());
+		assertEquals(16, first.getGlobalTransactionId().length);
+		assertTrue(first.getBranchQualifier().length > 0);
+		assertTrue(Arrays.equals(first.getBranchQualifier(), second.getBranchQualifier()));
+		assertFalse(first.equals(second));
+		assertEquals(2, generator.getSequence());
+	}
+
+	public void testNodeId() {
+		XidGenerator generator = new XidGenerator("node1");
+		byte[] globalTxId = generator.nextXid().getGlobalTransactionId();
+		assertEquals(21, globalTxId.length);
+		assertEquals("node1", new String(globalTxId, 0, 5));
+		assertEquals(1, globalTxId[20]);
+
+		Xid other = new XidGenerator("node2").nextXid();
+		assertFalse(generator.nextXid().equals(other));
+		assertFalse(new XidGenerator("node1").nextXid().equals(other));
+
+		try {
+			new XidGenerator("");
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		char[] longId = new char[49];
+		Arrays.fill(longId, 'n');
+		try {
+			new XidGenerator(new String(longId));
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(64, new XidGenerator(new String(longId, 0, 48)).nextXid().getGlobalTransactionId().length);
+	}
+
+	public void testSameNodeId() {
+		// e.g. two transaction managers, or a generator recreated after a
+		// context refresh
+		Xid xid = new XidGenerator("node").nextXid();
+		Xid other = new XidGenerator("node").nextXid();
+		assertFalse(xid.equals(other));
+		assertTrue(xid.toString().startsWith("Xid[6e6f6465"));
+		assertTrue(xid.toString().endsWith("0000000000000001]"));
+	}
+
+	public void testEquality() {
+		Xid xid = new XidGenerator().nextXid();
+		Xid same = new CopiedXid(xid);
+		assertEquals(xid, same);
+		assertEquals(xid.hashCode(), Arrays.hashCode(xid.getGlobalTransactionId()));
+	}
+
+	public void testDefensiveCopies() {
+		XidGenerator generator = new XidGenerator();
+		Xid xid = generator.nextXid();
+		Xid next = generator.nextXid();
+		xid.getBranchQualifier()[0] = 42;
+		xid.getGlobalTransactionId()[0]++;
+		assertEquals(1, next.getBranchQualifier()[0]);
+		assertEquals(1, xid.getBranchQualifier()[0]);
+		assertEquals(xid, new CopiedXid(xid));
+	}
+
+	public void testRandomPrefix() {
+		assertFalse(new XidGenerator().nextXid().equals(new XidGenerator().nextXid()));
+		assertSame(XidGenerator.getDefault(), XidGenerator.getDefault());
+	}
+
+	public void testConcurrentGeneration() throws Exception {
+		final XidGenerator generator = new XidGenerator();
+		final Set<Xid> xids = Collections.newSetFromMap(new ConcurrentHashMap<Xid, Boolean>());
+		final int threads = 8, perThread = 5000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < perThread; j++) {
+						xids.add(generator.nextXid());
+					}
+				}
+			};
+			workers[i].start();
+		}
+		start.countDown();
+		for (int i = 0; i < threads; i++) {
+			workers[i].join();
+		}
+		assertEquals(threads * perThread, xids.size());
+		assertEquals(threads * perThread, generator.getSequence());
+	}
+
+	private static class CopiedXid implements Xid {
+		private final byte[] globalTxId;
+		private final byte[] branchQualifier;
+
+		private CopiedXid(Xid xid) {
+			globalTxId = xid.getGlobalTransactionId();
+			branchQualifier = xid.getBranchQualifier();
+		}
+
+		public int getFormatId() {
+			return XidGenerator.FORMAT_ID;
+		}
+
+		public byte[] getGlobalTransactionId() {
+			return globalTxId;
+		}
+
+		public byte[] getBranchQualifier() {
+			return branchQualifier;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.springmodules.jcr.support;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.ItemSnapshot;
+import org.springmodules.jcr.NodeSnapshot;
+import org.springmodules.jcr.SessionFactory;
+import org.springmodules.jcr.SessionHolder;
+
+public class CachingJcrTemplateTests extends TestCase {
+
+	private MockControl sfCtrl, sessCtrl;
+	private SessionFactory sf;
+	private Session sess;
+	private NodeCache cache;
+	private CachingJcrTemplate template;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		sfCtrl = MockControl.createControl(SessionFactory.class);
+		sf = (SessionFactory) sfCtrl.getMock();
+		sessCtrl = MockControl.createControl(Session.class);
+		sess = (Session) sessCtrl.getMock();
+
+		cache = new NodeCache(10);
+		template = new CachingJcrTemplate(sf, cache);
+		template.setAllowCreate(true);
+	}
+
+	public void testAfterPropertiesSet() {
+		CachingJcrTemplate template = new CachingJcrTemplate();
+		template.setSessionFactory(sf);
+		try {
+			template.afterPropertiesSet();
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testGetItemSnapshot() throws RepositoryException {
+		Node node = node("/a", "id-a");
+
+		// the repository is read only once
+		sfCtrl.expectAndReturn(sf.getSession(), sess);
+		sessCtrl.expectAndReturn(sess.getItem("/a"), node);
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), false);
+		sess.logout();
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		ItemSnapshot item = template.getItemSnapshot("/a");
+		assertEquals("/a", item.getPath());
+		assertTrue(item.isNode());
+		assertSame(item, template.getItemSnapshot("/a"));
+		assertSame(item, template.getNodeSnapshot("/a"));
+		assertSame(item, template.getNodeSnapshotByIdentifier("id-a"));
+		assertTrue(template.itemExists("/a"));
+		assertEquals(1, template.getCacheMisses());
+		assertEquals(4, template.getCacheHits());
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testMissingItem() throws RepositoryException {
+		sfCtrl.expectAndReturn(sf.getSession(), sess);
+		sess.getItem("/a");
+		sessCtrl.setThrowable(new PathNotFoundException());
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), false);
+		sess.logout();
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		assertNull(template.getItemSnapshot("/a"));
+		assertNull(template.getItemSnapshot("/a"));
+		assertFalse(template.itemExists("/a"));
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testPendingChanges() throws RepositoryException {
+		sfCtrl.expectAndReturn(sf.getSession(), sess, 2);
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), true, 2);
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), true, 2);
+		sess.logout();
+		sessCtrl.setVoidCallable(2);
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		assertTrue(template.itemExists("/a"));
+		assertTrue(template.itemExists("/a"));
+		assertEquals(0, cache.size());
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testTransaction() throws RepositoryException {
+		// saved but not committed yet: nothing is cached
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), true, 2);
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		SessionHolder holder = new SessionHolder(sess);
+		holder.setSynchronizedWithTransaction(true);
+		TransactionSynchronizationManager.bindResource(sf, holder);
+		try {
+			assertTrue(template.itemExists("/a"));
+			assertTrue(template.itemExists("/a"));
+		} finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+		}
+		assertEquals(0, cache.size());
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testTransactionReadsOwnChanges() throws RepositoryException {
+		// another thread cached the committed state
+		cache.putExists("/added", false, cache.getGeneration());
+		cache.putExists("/removed", true, cache.getGeneration());
+
+		sessCtrl.expectAndReturn(sess.itemExists("/added"), true);
+		sessCtrl.expectAndReturn(sess.itemExists("/removed"), false);
+		sess.getItem("/removed");
+		sessCtrl.setThrowable(new PathNotFoundException());
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		SessionHolder holder = new SessionHolder(sess);
+		holder.setSynchronizedWithTransaction(true);
+		TransactionSynchronizationManager.bindResource(sf, holder);
+		try {
+			assertTrue(template.itemExists("/added"));
+			assertFalse(template.itemExists("/removed"));
+			assertNull(template.getItemSnapshot("/removed"));
+		} finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+		}
+		assertEquals(0, template.getCacheHits());
+		assertEquals(Boolean.FALSE, cache.exists("/added"));
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testBoundSessionWithPendingChanges() throws RepositoryException {
+		cache.putExists("/a", false, cache.getGeneration());
+
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), true, 2);
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), true);
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		TransactionSynchronizationManager.bindResource(sf, new SessionHolder(sess));
+		try {
+			assertTrue(template.itemExists("/a"));
+		} finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+		}
+		assertEquals(0, template.getCacheHits());
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testInvalidation() throws RepositoryException {
+		sfCtrl.expectAndReturn(sf.getSession(), sess, 2);
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), false);
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), false);
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), true);
+		sessCtrl.expectAndReturn(sess.hasPendingChanges(), false);
+		sess.logout();
+		sessCtrl.setVoidCallable(2);
+
+		sfCtrl.replay();
+		sessCtrl.replay();
+
+		assertFalse(template.itemExists("/a"));
+		cache.invalidate("/a", true);
+		assertTrue(template.itemExists("/a"));
+		assertTrue(template.itemExists("/a"));
+
+		sfCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	private static Node node(String path, String identifier) throws RepositoryException {
+		MockControl nodeCtrl = MockControl.createNiceControl(Node.class);
+		Node node = (Node) nodeCtrl.getMock();
+		MockControl typeCtrl = MockControl.createNiceControl(NodeType.class);
+		NodeType type = (NodeType) typeCtrl.getMock();
+		MockControl propsCtrl = MockControl.createNiceControl(PropertyIterator.class);
+		PropertyIterator props = (PropertyIterator) propsCtrl.getMock();
+
+		nodeCtrl.expectAndReturn(node.isNode(), true);
+		nodeCtrl.expectAndReturn(node.getPath(), path);
+		nodeCtrl.expectAndReturn(node.getName(), path.substring(path.lastIndexOf('/') + 1));
+		nodeCtrl.expectAndReturn(node.getIdentifier(), identifier);
+		nodeCtrl.expectAndReturn(node.getPrimaryNodeType(), type);
+		nodeCtrl.expectAndReturn(node.getMixinNodeTypes(), new NodeType[0]);
+		nodeCtrl.expectAndReturn(node.getProperties(), props);
+		typeCtrl.expectAndReturn(type.getName(), "nt:unstructured");
+		propsCtrl.expectAndReturn(props.hasNext(), false);
+
+		nodeCtrl.replay();
+		typeCtrl.replay();
+		propsCtrl.replay();
+		return node;
+	}
+}
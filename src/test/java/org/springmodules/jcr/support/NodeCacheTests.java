@@ -0,0 +1,139 @@
+package org.springmodules.jcr.support;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springmodules.jcr.NodeSnapshot;
+import org.springmodules.jcr.TestEvent;
+
+public class NodeCacheTests extends TestCase {
+
+	private NodeCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache = new NodeCache(3);
+	}
+
+	public void testPutAndGet() throws Exception {
+		NodeSnapshot a = snapshot("/a", "id-a");
+		assertTrue(cache.put(a, cache.getGeneration()));
+		assertTrue(cache.putExists("/missing", false, cache.getGeneration()));
+
+		assertSame(a, cache.getItem("/a"));
+		assertSame(a, cache.getNodeByIdentifier("id-a"));
+		assertEquals(Boolean.TRUE, cache.exists("/a"));
+		assertEquals(Boolean.FALSE, cache.exists("/missing"));
+		assertNull(cache.getItem("/missing"));
+		assertNull(cache.exists("/unknown"));
+
+		// an existence flag does not replace a snapshot
+		cache.putExists("/a", true, cache.getGeneration());
+		assertSame(a, cache.getItem("/a"));
+	}
+
+	public void testEviction() throws Exception {
+		long generation = cache.getGeneration();
+		cache.put(snapshot("/a", "id-a"), generation);
+		cache.put(snapshot("/b", "id-b"), generation);
+		cache.put(snapshot("/c", "id-c"), generation);
+		// touch /a so /b is the eldest entry
+		cache.getItem("/a");
+		cache.put(snapshot("/d", "id-d"), generation);
+
+		assertEquals(3, cache.size());
+		assertNull(cache.getItem("/b"));
+		assertNull(cache.getNodeByIdentifier("id-b"));
+		assertNotNull(cache.getItem("/a"));
+	}
+
+	public void testStaleGeneration() throws Exception {
+		long generation = cache.getGeneration();
+		cache.invalidate("/a", false);
+
+		assertFalse(cache.put(snapshot("/a", "id-a"), generation));
+		assertFalse(cache.putExists("/a", true, generation));
+		assertEquals(0, cache.size());
+	}
+
+	public void testNodeEvent() throws Exception {
+		cache = new NodeCache(10);
+		long generation = cache.getGeneration();
+		cache.put(snapshot("/a", "id-a"), generation);
+		cache.put(snapshot("/a/b", "id-b"), generation);
+		cache.put(snapshot("/a/b/c", "id-c"), generation);
+		cache.put(snapshot("/a/bc", "id-bc"), generation);
+		cache.put(snapshot("/x", "id-x"), generation);
+
+		cache.onEvent(events(new Event[] { new TestEvent(Event.NODE_REMOVED, "/a/b") }));
+
+		assertNull(cache.getItem("/a"));
+		assertNull(cache.getItem("/a/b"));
+		assertNull(cache.getItem("/a/b/c"));
+		assertNull(cache.getNodeByIdentifier("id-c"));
+		assertNotNull(cache.getItem("/a/bc"));
+		assertNotNull(cache.getItem("/x"));
+		assertTrue(cache.getGeneration() > generation);
+	}
+
+	public void testPropertyEvent() throws Exception {
+		cache = new NodeCache(10);
+		long generation = cache.getGeneration();
+		cache.put(snapshot("/a", "id-a"), generation);
+		cache.put(snapshot("/a/b", "id-b"), generation);
+		cache.putExists("/a/p", false, generation);
+
+		cache.onEvent(events(new Event[] { new TestEvent(Event.PROPERTY_ADDED, "/a/p"),
+				new TestEvent(Event.PERSIST, "/") }));
+
+		assertNull(cache.exists("/a/p"));
+		assertNull(cache.getItem("/a"));
+		assertNotNull(cache.getItem("/a/b"));
+	}
+
+	private static NodeSnapshot snapshot(String path, String identifier) throws RepositoryException {
+		MockControl nodeCtrl = MockControl.createNiceControl(Node.class);
+		Node node = (Node) nodeCtrl.getMock();
+		MockControl typeCtrl = MockControl.createNiceControl(NodeType.class);
+		NodeType type = (NodeType) typeCtrl.getMock();
+		MockControl propsCtrl = MockControl.createNiceControl(PropertyIterator.class);
+		PropertyIterator props = (PropertyIterator) propsCtrl.getMock();
+
+		nodeCtrl.expectAndReturn(node.getPath(), path);
+		nodeCtrl.expectAndReturn(node.getName(), path.substring(path.lastIndexOf('/') + 1));
+		nodeCtrl.expectAndReturn(node.getIdentifier(), identifier);
+		nodeCtrl.expectAndReturn(node.getPrimaryNodeType(), type);
+		nodeCtrl.expectAndReturn(node.getMixinNodeTypes(), new NodeType[0]);
+		nodeCtrl.expectAndReturn(node.getProperties(), props);
+		typeCtrl.expectAndReturn(type.getName(), "nt:unstructured");
+		propsCtrl.expectAndReturn(props.hasNext(), false);
+
+		nodeCtrl.replay();
+		typeCtrl.replay();
+		propsCtrl.replay();
+		return new NodeSnapshot(node);
+	}
+
+	private static EventIterator events(Event[] events) {
+		final Iterator iter = Arrays.asList(events).iterator();
+		MockControl iterCtrl = MockControl.createControl(EventIterator.class);
+		EventIterator eventIter = (EventIterator) iterCtrl.getMock();
+		for (int i = 0; i < events.length; i++) {
+			iterCtrl.expectAndReturn(eventIter.hasNext(), true);
+			iterCtrl.expectAndReturn(eventIter.nextEvent(), iter.next());
+		}
+		iterCtrl.expectAndReturn(eventIter.hasNext(), false);
+		iterCtrl.replay();
+		return eventIter;
+	}
+}
@@ -24,7 +24,9 @@ import org.springframework.mock.web.MockServletContext;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.StaticWebApplicationContext;
+import org.springmodules.jcr.LazySessionHolder;
 import org.springmodules.jcr.SessionFactory;
+import org.springmodules.jcr.SessionFactoryUtils;
 import org.springmodules.jcr.SessionHolder;
 /**
  * @author Costin Leau
@@ -97,6 +99,89 @@ public class OpenSessionInViewTests extends TestCase {
         sessionControl.verify();
     }
 
+    public void testLazyOpenSessionInViewInterceptor() throws Exception {
+        MockControl sfControl = MockControl.createControl(SessionFactory.class);
+        SessionFactory sf = (SessionFactory) sfControl.getMock();
+        MockControl sessionControl = MockControl.createControl(Session.class);
+        Session session = (Session) sessionControl.getMock();
+
+        OpenSessionInViewInterceptor interceptor = new OpenSessionInViewInterceptor();
+        interceptor.setSessionFactory(sf);
+        interceptor.setLazySessionAcquisition(true);
+        interceptor.afterPropertiesSet();
+
+        MockServletContext sc = new MockServletContext();
+        MockHttpServletRequest request = new MockHttpServletRequest(sc);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // no JCR access: no login, no logout
+        sfControl.replay();
+        sessionControl.replay();
+
+        interceptor.preHandle(request, response, "handler");
+        assertTrue(TransactionSynchronizationManager.getResource(sf) instanceof LazySessionHolder);
+        interceptor.afterCompletion(request, response, "handler", null);
+        assertFalse(TransactionSynchronizationManager.hasResource(sf));
+
+        sfControl.verify();
+        sessionControl.verify();
+
+        // the session is opened on the first access and then reused
+        sfControl.reset();
+        sessionControl.reset();
+        sfControl.expectAndReturn(sf.getSession(), session);
+        SessionHolder holder = new SessionHolder(session);
+        sfControl.expectAndReturn(sf.getSessionHolder(session), holder);
+        session.logout();
+        sfControl.replay();
+        sessionControl.replay();
+
+        interceptor.preHandle(request, response, "handler");
+        assertSame(session, SessionFactoryUtils.getSession(sf, false));
+        assertSame(holder, TransactionSynchronizationManager.getResource(sf));
+        assertSame(session, SessionFactoryUtils.getSession(sf, false));
+        interceptor.afterCompletion(request, response, "handler", null);
+        assertFalse(TransactionSynchronizationManager.hasResource(sf));
+
+        sfControl.verify();
+        sessionControl.verify();
+    }
+
+    public void testLazyOpenSessionInViewFilter() throws Exception {
+        MockControl sfControl = MockControl.createControl(SessionFactory.class);
+        final SessionFactory sf = (SessionFactory) sfControl.getMock();
+        sfControl.replay();
+
+        MockServletContext sc = new MockServletContext();
+        StaticWebApplicationContext wac = new StaticWebApplicationContext();
+        wac.setServletContext(sc);
+        wac.getDefaultListableBeanFactory().registerSingleton("sessionFactory", sf);
+        wac.refresh();
+        sc.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, wac);
+        MockHttpServletRequest request = new MockHttpServletRequest(sc);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        MockFilterConfig filterConfig = new MockFilterConfig(wac.getServletContext(), "filter");
+        filterConfig.addInitParameter("lazySessionAcquisition", "true");
+        OpenSessionInViewFilter filter = new OpenSessionInViewFilter();
+        filter.init(filterConfig);
+
+        filter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse)
+                throws IOException, ServletException {
+                SessionHolder holder = (SessionHolder) TransactionSynchronizationManager.getResource(sf);
+                assertTrue(holder instanceof LazySessionHolder);
+                assertFalse(holder.hasSession());
+                servletRequest.setAttribute("invoked", Boolean.TRUE);
+            }
+        });
+        assertFalse(TransactionSynchronizationManager.hasResource(sf));
+        assertNotNull(request.getAttribute("invoked"));
+
+        sfControl.verify();
+        wac.close();
+    }
+
     public void testOpenSessionInViewFilter() throws Exception {
         MockControl sfControl = MockControl.createControl(SessionFactory.class);
         final SessionFactory sf = (SessionFactory) sfControl.getMock();
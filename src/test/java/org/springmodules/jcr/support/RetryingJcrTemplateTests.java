@@ -0,0 +1,118 @@
+package org.springmodules.jcr.support;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.JcrSessionFactory;
+import org.springmodules.jcr.SessionHolder;
+
+public class RetryingJcrTemplateTests extends TestCase {
+
+	private MockControl repoCtrl, sessCtrl;
+	private Repository repo;
+	private Session sess;
+	private JcrSessionFactory sf;
+	private RetryingJcrTemplate template;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		repoCtrl = MockControl.createControl(Repository.class);
+		repo = (Repository) repoCtrl.getMock();
+		sessCtrl = MockControl.createStrictControl(Session.class);
+		sess = (Session) sessCtrl.getMock();
+
+		sf = new JcrSessionFactory();
+		sf.setRepository(repo);
+
+		template = new RetryingJcrTemplate(sf);
+		template.setAllowCreate(true);
+		template.setInitialBackoff(1);
+	}
+
+	public void testRetry() throws RepositoryException {
+		repoCtrl.expectAndReturn(repo.login(null, null), sess, 2);
+		sess.save();
+		sessCtrl.setThrowable(new InvalidItemStateException());
+		sess.refresh(false);
+		sess.logout();
+		sess.save();
+		sess.logout();
+
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		template.save();
+		assertEquals(1, template.getRetryCount());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testMaxAttempts() throws RepositoryException {
+		repoCtrl.expectAndReturn(repo.login(null, null), sess, 2);
+		for (int i = 0; i < 2; i++) {
+			sess.save();
+			sessCtrl.setThrowable(new LockException());
+			sess.refresh(false);
+			sess.logout();
+		}
+
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		template.setMaxAttempts(2);
+		try {
+			template.save();
+			fail("expected exception");
+		} catch (ConcurrencyFailureException e) {
+			// expected
+		}
+		assertEquals(1, template.getRetryCount());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testNoRetryWithBoundSession() throws RepositoryException {
+		sess.save();
+		sessCtrl.setThrowable(new InvalidItemStateException());
+
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		TransactionSynchronizationManager.bindResource(sf, new SessionHolder(sess));
+		try {
+			template.save();
+			fail("expected exception");
+		} catch (ConcurrencyFailureException e) {
+			// expected
+		} finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+		}
+		assertEquals(0, template.getRetryCount());
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testBackoff() {
+		template.setInitialBackoff(100);
+		template.setMaxBackoff(300);
+		for (int i = 0; i < 10; i++) {
+			long first = template.getBackoff(1);
+			assertTrue(first >= 50 && first <= 100);
+			long second = template.getBackoff(2);
+			assertTrue(second >= 100 && second <= 200);
+			long capped = template.getBackoff(5);
+			assertTrue(capped >= 150 && capped <= 300);
+		}
+	}
+}
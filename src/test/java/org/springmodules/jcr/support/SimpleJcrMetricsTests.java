@@ -0,0 +1,123 @@
+package org.springmodules.jcr.support;
+
+import javax.jcr.Item;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.easymock.MockControl;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springmodules.jcr.JcrSessionFactory;
+import org.springmodules.jcr.JcrTemplate;
+import org.springmodules.jcr.SessionHolder;
+
+public class SimpleJcrMetricsTests extends TestCase {
+
+	private MockControl repoCtrl, sessCtrl;
+	private Repository repo;
+	private Session sess;
+	private JcrSessionFactory sf;
+	private SimpleJcrMetrics metrics;
+	private JcrTemplate template;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		repoCtrl = MockControl.createControl(Repository.class);
+		repo = (Repository) repoCtrl.getMock();
+		sessCtrl = MockControl.createControl(Session.class);
+		sess = (Session) sessCtrl.getMock();
+
+		metrics = new SimpleJcrMetrics();
+		sf = new JcrSessionFactory();
+		sf.setRepository(repo);
+		sf.setMetrics(metrics);
+
+		template = new JcrTemplate(sf);
+		template.setAllowCreate(true);
+	}
+
+	public void testOperation() throws RepositoryException {
+		Item item = (Item) MockControl.createControl(Item.class).getMock();
+		repoCtrl.expectAndReturn(repo.login(null, null), sess, 2);
+		sessCtrl.expectAndReturn(sess.getItem("/a"), item);
+		sess.getItem("/b");
+		sessCtrl.setThrowable(new PathNotFoundException());
+		sess.logout();
+		sessCtrl.setVoidCallable(2);
+
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		assertSame(item, template.getItem("/a"));
+		try {
+			template.getItem("/b");
+			fail("expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+
+		SimpleJcrMetrics.OperationStats stats = metrics.getOperation("getItem");
+		assertEquals(2, stats.getCount());
+		assertEquals(1, stats.getFailures());
+		assertTrue(stats.getMaxNanos() > 0);
+		assertTrue(stats.getTotalNanos() >= stats.getMaxNanos());
+		assertEquals(2, metrics.getSessionsOpened());
+		assertEquals(2, metrics.getSessionsReleased());
+		assertEquals(0, metrics.getOpenSessions());
+		assertEquals(new Long(1), metrics.getTranslatedExceptions().get(DataRetrievalFailureException.class.getName()));
+
+		repoCtrl.verify();
+		sessCtrl.verify();
+	}
+
+	public void testReusedSession() throws RepositoryException {
+		sessCtrl.expectAndReturn(sess.itemExists("/a"), true);
+		repoCtrl.replay();
+		sessCtrl.replay();
+
+		TransactionSynchronizationManager.bindResource(sf, new SessionHolder(sess));
+		try {
+			assertTrue(template.itemExists("/a"));
+		} finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+		}
+
+		assertEquals(1, metrics.getOperation("itemExists").getCount());
+		assertEquals(1, metrics.getSessionsReused());
+		assertEquals(0, metrics.getSessionsOpened());
+		assertEquals(0, metrics.getSessionsReleased());
+
+		metrics.reset();
+		assertNull(metrics.getOperation("itemExists"));
+		assertEquals(0, metrics.getSessionsReused());
+	}
+
+	public void testRecentSlowOperations() {
+		metrics.setSlowOperationSampleSize(2);
+		metrics.slowOperation("save", 3000000, "workspace=a");
+		metrics.slowOperation("save", 4000000, "workspace=b");
+		metrics.slowOperation("query", 5000000, "workspace=c");
+
+		assertEquals(3, metrics.getSlowOperations());
+		assertEquals(2, metrics.getOperation("save").getSlow());
+		String[] recent = metrics.getRecentSlowOperations();
+		assertEquals(2, recent.length);
+		assertEquals("save took 4 ms [workspace=b]", recent[0]);
+		assertEquals("query took 5 ms [workspace=c]", recent[1]);
+
+		metrics.reset();
+		assertEquals(0, metrics.getSlowOperations());
+		assertEquals(0, metrics.getRecentSlowOperations().length);
+	}
+
+	public void testTemplateMetrics() {
+		SimpleJcrMetrics own = new SimpleJcrMetrics();
+		assertSame(metrics, template.getMetrics());
+		template.setMetrics(own);
+		assertSame(own, template.getMetrics());
+	}
+}